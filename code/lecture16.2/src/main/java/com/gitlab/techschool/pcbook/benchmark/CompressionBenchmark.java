@@ -0,0 +1,86 @@
+package com.gitlab.techschool.pcbook.benchmark;
+
+import com.github.techschool.pcbook.pb.Laptop;
+import com.github.techschool.pcbook.pb.RateLaptopRequest;
+import com.github.techschool.pcbook.pb.SearchLaptopResponse;
+import com.github.techschool.pcbook.pb.UploadImageRequest;
+import com.gitlab.techschool.pcbook.sample.Generator;
+import com.gitlab.techschool.pcbook.service.Lz4Codec;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.MessageLite;
+import io.grpc.Codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Compression ratio and CPU cost of each codec on the messages of each RPC.
+// Usage: CompressionBenchmark [megabytes per case]
+public class CompressionBenchmark {
+    public static void main(String[] args) throws Exception {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+
+        Generator generator = new Generator();
+        SearchLaptopResponse single = SearchLaptopResponse.newBuilder().setLaptop(generator.NewLaptop()).build();
+        SearchLaptopResponse.Builder batch = SearchLaptopResponse.newBuilder();
+        for (int i = 0; i < 128; i++) {
+            batch.addLaptops(generator.NewLaptop());
+        }
+        // image chunks are already compressed data, random bytes behave the same
+        byte[] chunk = new byte[1024];
+        ThreadLocalRandom.current().nextBytes(chunk);
+        UploadImageRequest upload = UploadImageRequest.newBuilder().setChunkData(ByteString.copyFrom(chunk)).build();
+        RateLaptopRequest rate = RateLaptopRequest.newBuilder()
+                .setLaptopId(generator.NewLaptop().getId())
+                .setScore(7)
+                .build();
+
+        Codec[] codecs = {new Codec.Gzip(), new Lz4Codec()};
+        for (int round = 0; round < 2; round++) {
+            System.out.printf("round %d%n", round + 1);
+            for (Codec codec : codecs) {
+                run("search, 1 laptop", single, codec, megabytes);
+                run("search, 128 laptops", batch.build(), codec, megabytes);
+                run("upload image chunk", upload, codec, megabytes);
+                run("rate laptop", rate, codec, megabytes);
+            }
+        }
+    }
+
+    private static void run(String name, MessageLite message, Codec codec, int megabytes) throws IOException {
+        byte[] bytes = message.toByteArray();
+        int iterations = Math.max(1, (megabytes << 20) / bytes.length);
+
+        byte[] compressed = null;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length);
+            try (OutputStream os = codec.compress(out)) {
+                os.write(bytes);
+            }
+            compressed = out.toByteArray();
+        }
+        long compressNanos = System.nanoTime() - start;
+
+        byte[] buffer = new byte[bytes.length];
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            try (InputStream is = codec.decompress(new ByteArrayInputStream(compressed))) {
+                int read = 0;
+                while (read < buffer.length) {
+                    read += is.read(buffer, read, buffer.length - read);
+                }
+            }
+        }
+        long decompressNanos = System.nanoTime() - start;
+
+        System.out.printf("%-20s %-4s %7d -> %7d bytes (%5.1f%% saved), compress %8.0f ns = %6.0f MB/s, decompress %8.0f ns%n",
+                name, codec.getMessageEncoding(), bytes.length, compressed.length,
+                100.0 * (bytes.length - compressed.length) / bytes.length,
+                (double) compressNanos / iterations, (double) bytes.length * iterations / compressNanos * 1e3,
+                (double) decompressNanos / iterations);
+    }
+}
@@ -0,0 +1,82 @@
+package com.gitlab.techschool.pcbook.benchmark;
+
+import com.gitlab.techschool.pcbook.service.DiskImageStore;
+import com.gitlab.techschool.pcbook.service.ImageWriter;
+import com.google.protobuf.ByteString;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+// Commits small images from many threads at once: one index fsync per image,
+// against batches of up to 128 images, without and with a linger.
+// Usage: GroupCommitBenchmark [threads] [uploads per thread] [image bytes]
+public class GroupCommitBenchmark {
+    // the random contents aren't images, the pipeline warns about each of them
+    private static final Logger serviceLogger = Logger.getLogger("com.gitlab.techschool.pcbook.service");
+
+    public static void main(String[] args) throws Exception {
+        serviceLogger.setLevel(Level.SEVERE);
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int uploads = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int imageSize = args.length > 2 ? Integer.parseInt(args[2]) : 4096;
+
+        for (int round = 0; round < 3; round++) {
+            System.out.printf("round %d%n", round + 1);
+            run("batch 1", threads, uploads, imageSize, 1, 0);
+            run("batch 128", threads, uploads, imageSize, 128, 0);
+            run("batch 128, linger 1ms", threads, uploads, imageSize, 128, TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    private static void run(String name, int threads, int uploads, int imageSize, int batchSize, long linger)
+            throws Exception {
+        Path folder = Files.createTempDirectory("group-commit");
+        try (DiskImageStore store = new DiskImageStore(folder.toString(), DiskImageStore.DEFAULT_MAX_IMAGE_SIZE,
+                DiskImageStore.DEFAULT_SESSION_TTL, batchSize, linger)) {
+            AtomicLong latency = new AtomicLong();
+            Thread[] workers = new Thread[threads];
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                int seed = t;
+                workers[t] = new Thread(() -> {
+                    Random random = new Random(seed);
+                    byte[] image = new byte[imageSize];
+                    try {
+                        for (int i = 0; i < uploads; i++) {
+                            // distinct contents, a duplicate would skip the rename
+                            random.nextBytes(image);
+                            long begin = System.nanoTime();
+                            ImageWriter writer = store.Create("laptop-" + seed, ".jpg");
+                            writer.write(ByteString.copyFrom(image));
+                            writer.commit();
+                            latency.addAndGet(System.nanoTime() - begin);
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+                workers[t].start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            long elapsed = System.nanoTime() - start;
+
+            long total = (long) threads * uploads;
+            System.out.printf("%-24s %8.0f uploads/s, %6.2f ms per upload, %5.1f images per batch%n", name,
+                    total * 1e9 / elapsed, latency.get() / 1e6 / total,
+                    (double) store.getCommitter().getCommitCount() / store.getCommitter().getBatchCount());
+        } finally {
+            try (Stream<Path> paths = Files.walk(folder)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+}
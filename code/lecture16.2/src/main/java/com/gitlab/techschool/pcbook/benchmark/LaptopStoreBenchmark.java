@@ -0,0 +1,80 @@
+package com.gitlab.techschool.pcbook.benchmark;
+
+import com.github.techschool.pcbook.pb.Laptop;
+import com.gitlab.techschool.pcbook.sample.Generator;
+import com.gitlab.techschool.pcbook.service.InMemoryLaptopStore;
+import com.google.protobuf.FieldMask;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Measures ingest and price update throughput of the in-memory store at catalog scale.
+// Usage: LaptopStoreBenchmark [laptops] [updates] [threads]
+public class LaptopStoreBenchmark {
+    public static void main(String[] args) throws Exception {
+        int laptops = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int updates = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        Generator generator = new Generator();
+        List<Laptop> catalog = new ArrayList<>(laptops);
+        for (int i = 0; i < laptops; i++) {
+            catalog.add(generator.NewLaptop());
+        }
+
+        InMemoryLaptopStore laptopStore = new InMemoryLaptopStore();
+        long start = System.nanoTime();
+        run(threads, laptops, i -> laptopStore.Save(catalog.get(i)));
+        report("save", laptops, System.nanoTime() - start);
+
+        FieldMask mask = FieldMask.newBuilder().addPaths("price_usd").build();
+        for (int round = 0; round < 3; round++) {
+            start = System.nanoTime();
+            run(threads, updates, i -> {
+                Laptop laptop = catalog.get(ThreadLocalRandom.current().nextInt(laptops));
+                Laptop patch = Laptop.newBuilder()
+                        .setId(laptop.getId())
+                        .setPriceUsd(ThreadLocalRandom.current().nextDouble(1500, 3500))
+                        .build();
+                laptopStore.Update(patch, mask);
+            });
+            report("update price (round " + (round + 1) + ")", updates, System.nanoTime() - start);
+        }
+
+        System.out.printf("price index entries: %d for %d laptops%n",
+                laptopStore.getPriceIndex().size(), laptops);
+    }
+
+    private interface Operation {
+        void run(int i) throws Exception;
+    }
+
+    private static void run(int threads, int count, Operation operation) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int first = t;
+            futures.add(executor.submit(() -> {
+                for (int i = first; i < count; i += threads) {
+                    operation.run(i);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    private static void report(String name, int operations, long nanos) {
+        double seconds = nanos / 1e9;
+        System.out.printf("%-28s %,12d ops in %7.3f s = %,12.0f ops/s%n", name, operations, seconds, operations / seconds);
+    }
+}
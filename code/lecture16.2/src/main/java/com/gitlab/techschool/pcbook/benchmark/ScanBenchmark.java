@@ -0,0 +1,71 @@
+package com.gitlab.techschool.pcbook.benchmark;
+
+import com.github.techschool.pcbook.pb.Filter;
+import com.github.techschool.pcbook.pb.Laptop;
+import com.github.techschool.pcbook.pb.Memory;
+import com.gitlab.techschool.pcbook.sample.Generator;
+import com.gitlab.techschool.pcbook.service.FilterMatcher;
+import com.google.protobuf.ByteString;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Scans serialized laptops with a filter: parse every record and then filter,
+// against filtering on the wire format and parsing only the matches.
+// Usage: ScanBenchmark [laptops]
+public class ScanBenchmark {
+    public static void main(String[] args) throws Exception {
+        int laptops = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+
+        Generator generator = new Generator();
+        List<ByteString> records = new ArrayList<>(laptops);
+        for (int i = 0; i < laptops; i++) {
+            records.add(generator.NewLaptop().toByteString());
+        }
+
+        Filter selective = Filter.newBuilder()
+                .setMaxPriceUsd(2000)
+                .setMinCpuCores(4)
+                .setMinCpuGhz(2.5)
+                .setMinRam(Memory.newBuilder().setValue(8).setUnit(Memory.Unit.GIGABYTE))
+                .build();
+        Filter everything = Filter.newBuilder().setMaxPriceUsd(Double.MAX_VALUE).build();
+
+        for (int round = 0; round < 5; round++) {
+            System.out.printf("round %d%n", round + 1);
+            run("selective", records, selective);
+            run("everything", records, everything);
+        }
+    }
+
+    private static void run(String name, List<ByteString> records, Filter filter) throws Exception {
+        long start = System.nanoTime();
+        long parsedMatches = 0;
+        for (ByteString record : records) {
+            Laptop laptop = Laptop.parseFrom(record);
+            if (FilterMatcher.isQualified(filter, laptop)) {
+                parsedMatches++;
+            }
+        }
+        long parseNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        long lazyMatches = 0;
+        for (ByteString record : records) {
+            if (FilterMatcher.isQualified(filter, record)) {
+                Laptop laptop = Laptop.parseFrom(record);
+                if (laptop != null) {
+                    lazyMatches++;
+                }
+            }
+        }
+        long lazyNanos = System.nanoTime() - start;
+
+        if (parsedMatches != lazyMatches) {
+            throw new IllegalStateException("different results: " + parsedMatches + " and " + lazyMatches);
+        }
+        System.out.printf("%-10s %5.1f%% match   parse then filter %,12.0f records/s   filter on bytes %,12.0f records/s%n",
+                name, 100.0 * parsedMatches / records.size(),
+                records.size() / (parseNanos / 1e9), records.size() / (lazyNanos / 1e9));
+    }
+}
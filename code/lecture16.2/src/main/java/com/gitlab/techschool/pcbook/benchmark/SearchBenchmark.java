@@ -0,0 +1,91 @@
+package com.gitlab.techschool.pcbook.benchmark;
+
+import com.github.techschool.pcbook.pb.Filter;
+import com.github.techschool.pcbook.pb.LaptopServiceGrpc;
+import com.github.techschool.pcbook.pb.SearchLaptopRequest;
+import com.github.techschool.pcbook.pb.SearchLaptopResponse;
+import com.gitlab.techschool.pcbook.sample.Generator;
+import com.gitlab.techschool.pcbook.service.DiskImageStore;
+import com.gitlab.techschool.pcbook.service.InMemoryLaptopStore;
+import com.gitlab.techschool.pcbook.service.InMemoryRatingStore;
+import com.gitlab.techschool.pcbook.service.LaptopService;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Compares single-laptop and batched search responses over a local plaintext connection,
+// for a small and a large result set.
+// Usage: SearchBenchmark [small] [large]
+public class SearchBenchmark {
+    private static final int[] BATCH_SIZES = {0, 16, 128, 1024};
+
+    public static void main(String[] args) throws Exception {
+        int small = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int large = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+
+        // per laptop logging would dominate the measurement
+        Logger.getLogger(LaptopService.class.getName()).setLevel(Level.WARNING);
+
+        Generator generator = new Generator();
+        InMemoryLaptopStore laptopStore = new InMemoryLaptopStore();
+        for (int i = 0; i < large; i++) {
+            laptopStore.Save(generator.NewLaptop());
+        }
+
+        LaptopService laptopService = new LaptopService(laptopStore, new DiskImageStore("img"), new InMemoryRatingStore());
+        Server server = ServerBuilder.forPort(0).addService(laptopService.bindSerialized()).build().start();
+        ManagedChannel channel = ManagedChannelBuilder.forAddress("localhost", server.getPort())
+                .usePlaintext()
+                .build();
+        LaptopServiceGrpc.LaptopServiceBlockingStub stub = LaptopServiceGrpc.newBlockingStub(channel);
+
+        try {
+            // the price index returns the cheapest laptops first, so a low price limit gives a small result set
+            Filter everything = Filter.newBuilder().setMaxPriceUsd(Double.MAX_VALUE).build();
+            Filter cheap = Filter.newBuilder().setMaxPriceUsd(1500 + 2000.0 * small / large).build();
+
+            for (int round = 0; round < 3; round++) {
+                System.out.printf("round %d%n", round + 1);
+                for (int batchSize : BATCH_SIZES) {
+                    run(stub, "small", cheap, batchSize, Math.max(1, 200_000 / small));
+                }
+                for (int batchSize : BATCH_SIZES) {
+                    run(stub, "large", everything, batchSize, 1);
+                }
+            }
+        } finally {
+            channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+            server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    private static void run(LaptopServiceGrpc.LaptopServiceBlockingStub stub, String name, Filter filter,
+                            int batchSize, int searches) {
+        SearchLaptopRequest request = SearchLaptopRequest.newBuilder()
+                .setFilter(filter)
+                .setBatchSize(batchSize)
+                .build();
+
+        long laptops = 0;
+        long responses = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < searches; i++) {
+            Iterator<SearchLaptopResponse> it = stub.searchLaptop(request);
+            while (it.hasNext()) {
+                SearchLaptopResponse response = it.next();
+                laptops += response.hasLaptop() ? 1 : response.getLaptopsCount();
+                responses++;
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("%-6s batch %-5s %,9d laptops in %,8d responses, %7.3f s = %,10.0f laptops/s%n",
+                name, batchSize == 0 ? "off" : batchSize, laptops, responses, seconds, laptops / seconds);
+    }
+}
@@ -0,0 +1,108 @@
+package com.gitlab.techschool.pcbook.benchmark;
+
+import com.github.techschool.pcbook.pb.CreateLaptopRequest;
+import com.github.techschool.pcbook.pb.Filter;
+import com.github.techschool.pcbook.pb.Laptop;
+import com.github.techschool.pcbook.pb.LaptopServiceGrpc;
+import com.github.techschool.pcbook.pb.SearchLaptopRequest;
+import com.github.techschool.pcbook.pb.SearchLaptopResponse;
+import com.gitlab.techschool.pcbook.sample.Generator;
+import com.gitlab.techschool.pcbook.service.DiskImageStore;
+import com.gitlab.techschool.pcbook.service.InMemoryLaptopStore;
+import com.gitlab.techschool.pcbook.service.InMemoryRatingStore;
+import com.gitlab.techschool.pcbook.service.LaptopServer;
+import com.gitlab.techschool.pcbook.service.LaptopService;
+import com.gitlab.techschool.pcbook.service.MessageCompression;
+import io.grpc.ManagedChannel;
+import io.grpc.netty.NettyChannelBuilder;
+import io.grpc.netty.NettyServerBuilder;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Throughput and heap allocation per operation of CreateLaptop and SearchLaptop over the Netty transport.
+// Allocation is summed over all threads of the process, client and server included.
+// Usage: TransportBenchmark [creates] [searches]
+public class TransportBenchmark {
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        int creates = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        int searches = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        Logger.getLogger(LaptopService.class.getName()).setLevel(Level.WARNING);
+
+        InMemoryLaptopStore laptopStore = new InMemoryLaptopStore();
+        LaptopServer server = new LaptopServer(NettyServerBuilder.forPort(0), 0, laptopStore,
+                new DiskImageStore("img"), new InMemoryRatingStore(), MessageCompression.none());
+        server.start();
+        ManagedChannel channel = NettyChannelBuilder.forAddress("localhost", server.getPort())
+                .usePlaintext()
+                .build();
+        LaptopServiceGrpc.LaptopServiceBlockingStub stub = LaptopServiceGrpc.newBlockingStub(channel);
+
+        try {
+            Generator generator = new Generator();
+            for (int round = 0; round < 3; round++) {
+                System.out.printf("round %d%n", round + 1);
+
+                List<CreateLaptopRequest> requests = new ArrayList<>(creates);
+                for (int i = 0; i < creates; i++) {
+                    requests.add(CreateLaptopRequest.newBuilder().setLaptop(generator.NewLaptop()).build());
+                }
+                long allocated = allocatedBytes();
+                long start = System.nanoTime();
+                for (CreateLaptopRequest request : requests) {
+                    stub.createLaptop(request);
+                }
+                report("create", creates, System.nanoTime() - start, allocatedBytes() - allocated);
+
+                Filter everything = Filter.newBuilder().setMaxPriceUsd(Double.MAX_VALUE).build();
+                search(stub, "search, batch off", SearchLaptopRequest.newBuilder().setFilter(everything).build(),
+                        Math.max(1, searches / 10));
+                search(stub, "search, batch 128", SearchLaptopRequest.newBuilder()
+                        .setFilter(everything)
+                        .setBatchSize(128)
+                        .build(), searches);
+            }
+        } finally {
+            channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+            server.stop();
+        }
+    }
+
+    private static void search(LaptopServiceGrpc.LaptopServiceBlockingStub stub, String name,
+                               SearchLaptopRequest request, int searches) {
+        long laptops = 0;
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < searches; i++) {
+            Iterator<SearchLaptopResponse> it = stub.searchLaptop(request);
+            while (it.hasNext()) {
+                SearchLaptopResponse response = it.next();
+                laptops += response.hasLaptop() ? 1 : response.getLaptopsCount();
+            }
+        }
+        report(name + " (per laptop)", laptops, System.nanoTime() - start, allocatedBytes() - allocated);
+    }
+
+    private static long allocatedBytes() {
+        long total = 0;
+        for (long allocated : THREADS.getThreadAllocatedBytes(THREADS.getAllThreadIds())) {
+            total += Math.max(allocated, 0);
+        }
+        return total;
+    }
+
+    private static void report(String name, long operations, long nanos, long allocated) {
+        double seconds = nanos / 1e9;
+        System.out.printf("%-30s %,10d ops in %7.3f s = %,10.0f ops/s, %,8d bytes allocated per op%n",
+                name, operations, seconds, operations / seconds, allocated / operations);
+    }
+}
@@ -0,0 +1,138 @@
+package com.gitlab.techschool.pcbook.benchmark;
+
+import com.github.techschool.pcbook.pb.Laptop;
+import com.gitlab.techschool.pcbook.sample.Generator;
+import com.gitlab.techschool.pcbook.service.ChunkSizer;
+import com.gitlab.techschool.pcbook.service.DiskImageStore;
+import com.gitlab.techschool.pcbook.service.ImageMetadata;
+import com.gitlab.techschool.pcbook.service.InMemoryLaptopStore;
+import com.gitlab.techschool.pcbook.service.InMemoryRatingStore;
+import com.gitlab.techschool.pcbook.service.LaptopClient;
+import com.gitlab.techschool.pcbook.service.LaptopServer;
+import com.gitlab.techschool.pcbook.service.MessageCompression;
+import io.grpc.netty.NettyServerBuilder;
+
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+// Uploads one large image through LaptopClient over the Netty transport, with fixed chunk sizes
+// and with the chunk size adapted to the throughput, with and without the CRC32C of the chunks
+// and of the image. The server computes the image CRC32C in both cases. Allocation is summed over all threads,
+// client and server included, the peak heap is sampled every 10 milliseconds.
+// Usage: UploadBenchmark [megabytes]
+public class UploadBenchmark {
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    // every chunk and every request is logged at INFO
+    private static final Logger serviceLogger = Logger.getLogger("com.gitlab.techschool.pcbook.service");
+
+    public static void main(String[] args) throws Exception {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        serviceLogger.setLevel(Level.WARNING);
+
+        Path folder = Files.createTempDirectory("upload");
+        Path image = folder.resolve("image.jpg");
+        byte[] block = new byte[1 << 20];
+        new Random(5).nextBytes(block);
+        try (OutputStream output = Files.newOutputStream(image)) {
+            for (int i = 0; i < megabytes; i++) {
+                output.write(block);
+            }
+        }
+
+        // the cost of the checksum alone, over the same bytes
+        CRC32C crc = new CRC32C();
+        long crcStart = System.nanoTime();
+        for (int i = 0; i < megabytes; i++) {
+            crc.update(block);
+        }
+        System.out.printf("CRC32C %.1f MB/s%n", megabytes / ((System.nanoTime() - crcStart) / 1e9));
+
+        InMemoryLaptopStore laptopStore = new InMemoryLaptopStore();
+        Laptop laptop = new Generator().NewLaptop();
+        laptopStore.Save(laptop);
+        DiskImageStore imageStore = new DiskImageStore(folder.resolve("img").toString());
+        LaptopServer server = new LaptopServer(NettyServerBuilder.forPort(0), 0, laptopStore, imageStore,
+                new InMemoryRatingStore(), MessageCompression.none());
+        server.start();
+        LaptopClient client = new LaptopClient("localhost", server.getPort());
+
+        try {
+            for (int round = 0; round < 3; round++) {
+                System.out.printf("round %d%n", round + 1);
+                run("fixed 64 KB", client, imageStore, laptop, image, megabytes, 64 << 10, 64 << 10, true);
+                run("fixed 1 MB", client, imageStore, laptop, image, megabytes, 1 << 20, 1 << 20, true);
+                run("adaptive", client, imageStore, laptop, image, megabytes,
+                        ChunkSizer.MIN_CHUNK_SIZE, ChunkSizer.MAX_CHUNK_SIZE, true);
+                run("64 KB, no CRC", client, imageStore, laptop, image, megabytes, 64 << 10, 64 << 10, false);
+                run("1 MB, no CRC", client, imageStore, laptop, image, megabytes, 1 << 20, 1 << 20, false);
+            }
+        } finally {
+            client.shutdown();
+            server.stop();
+            imageStore.close();
+            try (Stream<Path> paths = Files.walk(folder)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    private static void run(String name, LaptopClient client, DiskImageStore imageStore, Laptop laptop, Path image,
+                            int megabytes, int minChunkSize, int maxChunkSize, boolean checksums) throws Exception {
+        client.setChunkSizes(minChunkSize, maxChunkSize);
+        client.setChecksums(checksums);
+        client.setUploadDeadline(1, TimeUnit.MINUTES);
+        System.gc();
+
+        AtomicLong peakHeap = new AtomicLong();
+        Runtime runtime = Runtime.getRuntime();
+        Thread sampler = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                peakHeap.accumulateAndGet(runtime.totalMemory() - runtime.freeMemory(), Math::max);
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        sampler.setDaemon(true);
+        long baseHeap = runtime.totalMemory() - runtime.freeMemory();
+        sampler.start();
+
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        client.uploadImage(laptop.getId(), image.toString());
+        long nanos = System.nanoTime() - start;
+        allocated = allocatedBytes() - allocated;
+        sampler.interrupt();
+        sampler.join();
+
+        int images = 0;
+        for (ImageMetadata metadata : imageStore.FindByLaptop(laptop.getId())) {
+            imageStore.Delete(metadata.getID());
+            images++;
+        }
+        System.out.printf("%-14s %8.1f MB/s, %,8d KB allocated per MB, peak heap %,6d MB over %,6d MB%s%n",
+                name, megabytes / (nanos / 1e9), allocated / 1024 / megabytes,
+                peakHeap.get() >> 20, baseHeap >> 20, images == 1 ? "" : " (upload failed)");
+    }
+
+    private static long allocatedBytes() {
+        long total = 0;
+        for (long allocated : THREADS.getThreadAllocatedBytes(THREADS.getAllThreadIds())) {
+            total += Math.max(allocated, 0);
+        }
+        return total;
+    }
+}
@@ -0,0 +1,134 @@
+package com.gitlab.techschool.pcbook.benchmark;
+
+import com.github.techschool.pcbook.pb.Laptop;
+import com.gitlab.techschool.pcbook.sample.Generator;
+import com.gitlab.techschool.pcbook.service.DiskImageStore;
+import com.gitlab.techschool.pcbook.service.ImageMetadata;
+import com.gitlab.techschool.pcbook.service.InMemoryLaptopStore;
+import com.gitlab.techschool.pcbook.service.InMemoryRatingStore;
+import com.gitlab.techschool.pcbook.service.LaptopClient;
+import com.gitlab.techschool.pcbook.service.LaptopServer;
+import com.gitlab.techschool.pcbook.service.MessageCompression;
+import com.gitlab.techschool.pcbook.service.UploadThrottle;
+import io.grpc.netty.NettyServerBuilder;
+
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+// Uploads the same image from several clients at once, each on its own connection, through servers
+// with a large and a small upload budget and with a bandwidth limit per client. All the clients run
+// on this host, so they share one bucket. The peak heap is sampled every 10 milliseconds.
+// Usage: UploadThrottleBenchmark [clients] [megabytes]
+public class UploadThrottleBenchmark {
+    // every chunk and every request is logged at INFO
+    private static final Logger serviceLogger = Logger.getLogger("com.gitlab.techschool.pcbook.service");
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int megabytes = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        serviceLogger.setLevel(Level.WARNING);
+
+        Path folder = Files.createTempDirectory("throttle");
+        Path image = folder.resolve("image.jpg");
+        byte[] block = new byte[1 << 20];
+        new Random(7).nextBytes(block);
+        try (OutputStream output = Files.newOutputStream(image)) {
+            for (int i = 0; i < megabytes; i++) {
+                output.write(block);
+            }
+        }
+
+        try {
+            run("budget 64 MB", new UploadThrottle(), clients, megabytes, folder, image);
+            run("budget 4 MB", new UploadThrottle(4 << 20, 0, 0), clients, megabytes, folder, image);
+            run("50 MB/s per host", new UploadThrottle(UploadThrottle.DEFAULT_BUDGET, 50 << 20, 1 << 20),
+                    clients, megabytes, folder, image);
+        } finally {
+            try (Stream<Path> paths = Files.walk(folder)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    private static void run(String name, UploadThrottle throttle, int clients, int megabytes, Path folder,
+                            Path image) throws Exception {
+        InMemoryLaptopStore laptopStore = new InMemoryLaptopStore();
+        Laptop laptop = new Generator().NewLaptop();
+        laptopStore.Save(laptop);
+        DiskImageStore imageStore = new DiskImageStore(folder.resolve("img").toString());
+        LaptopServer server = new LaptopServer(NettyServerBuilder.forPort(0), 0, laptopStore, imageStore,
+                new InMemoryRatingStore(), MessageCompression.none(), throttle);
+        server.start();
+        List<LaptopClient> connections = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            LaptopClient client = new LaptopClient("localhost", server.getPort());
+            client.setUploadDeadline(1, TimeUnit.MINUTES);
+            connections.add(client);
+        }
+        System.gc();
+
+        AtomicLong peakHeap = new AtomicLong();
+        Runtime runtime = Runtime.getRuntime();
+        Thread sampler = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                peakHeap.accumulateAndGet(runtime.totalMemory() - runtime.freeMemory(), Math::max);
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        sampler.setDaemon(true);
+        long baseHeap = runtime.totalMemory() - runtime.freeMemory();
+        sampler.start();
+
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        long start = System.nanoTime();
+        try {
+            List<Future<?>> uploads = new ArrayList<>();
+            for (LaptopClient client : connections) {
+                uploads.add(executor.submit(() -> {
+                    client.uploadImage(laptop.getId(), image.toString());
+                    return null;
+                }));
+            }
+            for (Future<?> upload : uploads) {
+                upload.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        long nanos = System.nanoTime() - start;
+        sampler.interrupt();
+        sampler.join();
+
+        int images = 0;
+        for (ImageMetadata metadata : imageStore.FindByLaptop(laptop.getId())) {
+            imageStore.Delete(metadata.getID());
+            images++;
+        }
+        System.out.printf("%-18s %8.1f MB/s, peak heap %,6d MB over %,6d MB, %,6d waits, %d of %d uploaded%n",
+                name, (long) clients * megabytes / (nanos / 1e9), peakHeap.get() >> 20, baseHeap >> 20,
+                throttle.getWaitCount(), images, clients);
+
+        for (LaptopClient client : connections) {
+            client.shutdown();
+        }
+        server.stop();
+        imageStore.close();
+    }
+}
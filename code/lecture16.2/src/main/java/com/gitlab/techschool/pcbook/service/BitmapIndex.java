@@ -0,0 +1,32 @@
+package com.gitlab.techschool.pcbook.service;
+
+import java.util.concurrent.ConcurrentSkipListMap;
+
+// Secondary index with one bitmap of laptop ordinals per distinct value of a small-domain field.
+public class BitmapIndex {
+    private final ConcurrentSkipListMap<Integer, ConcurrentBitSet> bitmaps;
+
+    public BitmapIndex() {
+        bitmaps = new ConcurrentSkipListMap<>();
+    }
+
+    public void add(int value, int ordinal) {
+        bitmaps.computeIfAbsent(value, k -> new ConcurrentBitSet()).set(ordinal);
+    }
+
+    public void remove(int value, int ordinal) {
+        ConcurrentBitSet bitmap = bitmaps.get(value);
+        if (bitmap != null) {
+            bitmap.clear(ordinal);
+        }
+    }
+
+    // returns the union of the bitmaps of all values >= value, covering ordinals [0, ordinalCount)
+    public long[] atLeast(int value, int ordinalCount) {
+        long[] words = new long[(ordinalCount + 63) >>> 6];
+        for (ConcurrentBitSet bitmap : bitmaps.tailMap(value, true).values()) {
+            bitmap.orInto(words);
+        }
+        return words;
+    }
+}
@@ -0,0 +1,127 @@
+package com.gitlab.techschool.pcbook.service;
+
+import com.github.techschool.pcbook.pb.Filter;
+import com.github.techschool.pcbook.pb.Laptop;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.FieldMask;
+import io.grpc.Context;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+// Answers most lookups of unknown laptop IDs from a Bloom filter, without touching the backend.
+// Deleted IDs stay in the filter and just cost a backend lookup, like any false positive.
+public class BloomFilterLaptopStore implements LaptopStore {
+    private static final Logger logger = Logger.getLogger(BloomFilterLaptopStore.class.getName());
+
+    private final LaptopStore backend;
+    private final ScalableBloomFilter filter;
+    private final LongAdder negatives;
+    private final LongAdder falsePositives;
+    private final LongAdder positives;
+
+    public BloomFilterLaptopStore(LaptopStore backend, int expectedInsertions, double falsePositiveRate) {
+        this.backend = backend;
+        this.filter = new ScalableBloomFilter(expectedInsertions, falsePositiveRate);
+        this.negatives = new LongAdder();
+        this.falsePositives = new LongAdder();
+        this.positives = new LongAdder();
+
+        // pick up the laptops the backend already has
+        Filter everything = Filter.newBuilder().setMaxPriceUsd(Double.MAX_VALUE).build();
+        backend.Search(Context.ROOT, everything, laptop -> filter.add(laptop.getId()));
+    }
+
+    @Override
+    public void Save(Laptop laptop) throws Exception {
+        // added first, so that a concurrent Exists never misses a saved laptop
+        filter.add(laptop.getId());
+        backend.Save(laptop);
+    }
+
+    @Override
+    public Laptop Update(Laptop laptop, FieldMask mask) throws Exception {
+        if (!filter.mightContain(laptop.getId())) {
+            throw new NotFoundException("laptop ID doesn't exist");
+        }
+        return backend.Update(laptop, mask);
+    }
+
+    @Override
+    public void Delete(String id) throws Exception {
+        backend.Delete(id);
+    }
+
+    @Override
+    public Laptop Find(String id) {
+        if (!mightExist(id)) {
+            return null;
+        }
+
+        Laptop laptop = backend.Find(id);
+        record(laptop != null);
+        return laptop;
+    }
+
+    @Override
+    public ByteString FindSerialized(String id) {
+        if (!mightExist(id)) {
+            return null;
+        }
+
+        ByteString laptop = backend.FindSerialized(id);
+        record(laptop != null);
+        return laptop;
+    }
+
+    @Override
+    public boolean Exists(String id) {
+        if (!mightExist(id)) {
+            return false;
+        }
+
+        boolean exists = backend.Exists(id);
+        record(exists);
+        return exists;
+    }
+
+    @Override
+    public LaptopCursor Cursor(Filter filter, LaptopProjection projection) {
+        return backend.Cursor(filter, projection);
+    }
+
+    public ScalableBloomFilter getFilter() {
+        return filter;
+    }
+
+    // share of the lookups for unknown IDs that still went to the backend
+    public double observedFalsePositiveRate() {
+        long negativeCount = negatives.sum();
+        long falsePositiveCount = falsePositives.sum();
+        long total = negativeCount + falsePositiveCount;
+        return total == 0 ? 0 : (double) falsePositiveCount / total;
+    }
+
+    public void logStats() {
+        logger.info(String.format("laptop bloom filter: stages = %d, configured fpp = %.4f, expected fpp = %.4f, " +
+                        "observed fpp = %.4f, rejected = %d, false positives = %d, found = %d",
+                filter.stageCount(), filter.getFalsePositiveRate(), filter.expectedFalsePositiveRate(),
+                observedFalsePositiveRate(), negatives.sum(), falsePositives.sum(), positives.sum()));
+    }
+
+    private boolean mightExist(String id) {
+        if (filter.mightContain(id)) {
+            return true;
+        }
+        negatives.increment();
+        return false;
+    }
+
+    private void record(boolean exists) {
+        if (exists) {
+            positives.increment();
+        } else {
+            falsePositives.increment();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.gitlab.techschool.pcbook.service;
+
+import com.github.techschool.pcbook.pb.Laptop;
+import com.gitlab.techschool.pcbook.sample.Generator;
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class BloomFilterLaptopStoreTest {
+
+    @Test
+    public void rejectsUnknownIDs() throws Exception {
+        InMemoryLaptopStore backend = new InMemoryLaptopStore();
+        Generator generator = new Generator();
+        Laptop before = generator.NewLaptop();
+        backend.Save(before);
+
+        double falsePositiveRate = 0.01;
+        BloomFilterLaptopStore laptopStore = new BloomFilterLaptopStore(backend, 1000, falsePositiveRate);
+        assertTrue(laptopStore.Exists(before.getId()));
+
+        // grow well past the expected number of laptops
+        int n = 5000;
+        String[] ids = new String[n];
+        for (int i = 0; i < n; i++) {
+            Laptop laptop = generator.NewLaptop();
+            laptopStore.Save(laptop);
+            ids[i] = laptop.getId();
+        }
+        assertTrue(laptopStore.getFilter().stageCount() > 1);
+
+        for (String id : ids) {
+            assertTrue(laptopStore.Exists(id));
+        }
+
+        int lookups = 20000;
+        for (int i = 0; i < lookups; i++) {
+            assertFalse(laptopStore.Exists(UUID.randomUUID().toString()));
+        }
+        assertTrue(laptopStore.observedFalsePositiveRate() < falsePositiveRate);
+        assertTrue(laptopStore.getFilter().expectedFalsePositiveRate() < falsePositiveRate);
+    }
+}
@@ -0,0 +1,128 @@
+package com.gitlab.techschool.pcbook.service;
+
+import com.github.techschool.pcbook.pb.Filter;
+import com.github.techschool.pcbook.pb.Laptop;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.FieldMask;
+
+import java.util.logging.Logger;
+
+// Read-through cache in front of any laptop store. Writes go to the backend first and then to the cache,
+// both under the lock of the ID's stripe, so the cache ends up with the last write of every laptop.
+// Searches always go to the backend.
+public class CachingLaptopStore implements LaptopStore {
+    private static final Logger logger = Logger.getLogger(CachingLaptopStore.class.getName());
+    private static final int WRITE_STRIPES = 64;
+
+    private final LaptopStore backend;
+    private final TinyLfuCache<String, Laptop> cache;
+    private final Object[] locks;
+    // bumped by every write, a load only fills the cache if no write hit its stripe meanwhile, guarded by the locks
+    private final long[] writes;
+
+    public CachingLaptopStore(LaptopStore backend, int maximumSize) {
+        this.backend = backend;
+        this.cache = new TinyLfuCache<>(maximumSize);
+        this.locks = new Object[WRITE_STRIPES];
+        for (int i = 0; i < WRITE_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+        this.writes = new long[WRITE_STRIPES];
+    }
+
+    @Override
+    public void Save(Laptop laptop) throws Exception {
+        int stripe = stripe(laptop.getId());
+        synchronized (locks[stripe]) {
+            backend.Save(laptop);
+            writes[stripe]++;
+            cache.put(laptop.getId(), laptop.toBuilder().build());
+        }
+    }
+
+    @Override
+    public Laptop Update(Laptop laptop, FieldMask mask) throws Exception {
+        int stripe = stripe(laptop.getId());
+        Laptop updated;
+        synchronized (locks[stripe]) {
+            try {
+                updated = backend.Update(laptop, mask);
+            } catch (Exception e) {
+                // the backend may have applied part of the write
+                writes[stripe]++;
+                cache.invalidate(laptop.getId());
+                throw e;
+            }
+            writes[stripe]++;
+            cache.put(updated.getId(), updated);
+        }
+        return updated.toBuilder().build();
+    }
+
+    @Override
+    public void Delete(String id) throws Exception {
+        int stripe = stripe(id);
+        synchronized (locks[stripe]) {
+            try {
+                backend.Delete(id);
+            } finally {
+                writes[stripe]++;
+                cache.invalidate(id);
+            }
+        }
+    }
+
+    @Override
+    public Laptop Find(String id) {
+        Laptop cached = cache.getIfPresent(id);
+        if (cached != null) {
+            // deep copy
+            return cached.toBuilder().build();
+        }
+
+        // the backend is read outside the lock, a write in between makes the laptop too old to cache
+        int stripe = stripe(id);
+        long before;
+        synchronized (locks[stripe]) {
+            before = writes[stripe];
+        }
+        Laptop laptop = backend.Find(id);
+        if (laptop != null) {
+            synchronized (locks[stripe]) {
+                if (writes[stripe] == before) {
+                    cache.putIfAbsent(id, laptop.toBuilder().build());
+                }
+            }
+        }
+        return laptop;
+    }
+
+    // the cache holds objects, the serialized form is kept by the backend
+    @Override
+    public ByteString FindSerialized(String id) {
+        return backend.FindSerialized(id);
+    }
+
+    @Override
+    public boolean Exists(String id) {
+        return cache.getIfPresent(id) != null || backend.Exists(id);
+    }
+
+    @Override
+    public LaptopCursor Cursor(Filter filter, LaptopProjection projection) {
+        return backend.Cursor(filter, projection);
+    }
+
+    public TinyLfuCache<String, Laptop> getCache() {
+        return cache;
+    }
+
+    public void logStats() {
+        logger.info(String.format("laptop cache: size = %d, hits = %d, misses = %d, hit rate = %.3f, evictions = %d",
+                cache.size(), cache.hitCount(), cache.missCount(), cache.hitRate(), cache.evictionCount()));
+    }
+
+    private static int stripe(String id) {
+        return (id.hashCode() & 0x7fffffff) % WRITE_STRIPES;
+    }
+}
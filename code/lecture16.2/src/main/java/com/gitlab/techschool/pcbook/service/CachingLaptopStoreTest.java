@@ -0,0 +1,99 @@
+package com.gitlab.techschool.pcbook.service;
+
+import com.github.techschool.pcbook.pb.Laptop;
+import com.gitlab.techschool.pcbook.sample.Generator;
+import com.google.protobuf.FieldMask;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CachingLaptopStoreTest {
+
+    @Test
+    public void writeThroughAndReadThrough() throws Exception {
+        InMemoryLaptopStore backend = new InMemoryLaptopStore();
+        CachingLaptopStore laptopStore = new CachingLaptopStore(backend, 100);
+        Generator generator = new Generator();
+
+        Laptop laptop = generator.NewLaptop();
+        laptopStore.Save(laptop);
+        assertEquals(laptop, laptopStore.Find(laptop.getId()));
+        assertEquals(1, laptopStore.getCache().hitCount());
+
+        // saved behind the cache's back, so the first read is a miss that fills the cache
+        Laptop other = generator.NewLaptop();
+        backend.Save(other);
+        assertEquals(other, laptopStore.Find(other.getId()));
+        assertEquals(other, laptopStore.Find(other.getId()));
+        assertEquals(1, laptopStore.getCache().missCount());
+        assertEquals(2, laptopStore.getCache().hitCount());
+
+        Laptop patch = Laptop.newBuilder().setId(laptop.getId()).setPriceUsd(1234).build();
+        laptopStore.Update(patch, FieldMask.newBuilder().addPaths("price_usd").build());
+        assertEquals(1234, laptopStore.Find(laptop.getId()).getPriceUsd(), 1e-9);
+
+        laptopStore.Delete(laptop.getId());
+        assertNull(laptopStore.Find(laptop.getId()));
+    }
+
+    @Test
+    public void loadRacingADeleteIsNotCached() throws Exception {
+        Generator generator = new Generator();
+        Laptop laptop = generator.NewLaptop();
+        CachingLaptopStore[] laptopStore = new CachingLaptopStore[1];
+        // the load reads the laptop, then the delete runs before the load fills the cache
+        InMemoryLaptopStore backend = new InMemoryLaptopStore() {
+            @Override
+            public Laptop Find(String id) {
+                Laptop found = super.Find(id);
+                try {
+                    laptopStore[0].Delete(id);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+                return found;
+            }
+        };
+        backend.Save(laptop);
+        laptopStore[0] = new CachingLaptopStore(backend, 100);
+
+        assertEquals(laptop, laptopStore[0].Find(laptop.getId()));
+        assertNull(laptopStore[0].getCache().getIfPresent(laptop.getId()));
+        assertFalse(laptopStore[0].Exists(laptop.getId()));
+    }
+
+    @Test
+    public void frequentKeysSurviveAScan() {
+        int maximumSize = 100;
+        TinyLfuCache<String, String> cache = new TinyLfuCache<>(maximumSize);
+
+        String[] hot = new String[maximumSize / 2];
+        for (int i = 0; i < hot.length; i++) {
+            hot[i] = "hot-" + i;
+            cache.put(hot[i], hot[i]);
+        }
+        for (int round = 0; round < 5; round++) {
+            for (String key : hot) {
+                assertNotNull(cache.getIfPresent(key));
+            }
+        }
+
+        // a long scan of keys read only once must not flush the popular ones
+        for (int i = 0; i < 3 * maximumSize; i++) {
+            String key = "scan-" + i;
+            cache.getIfPresent(key);
+            cache.putIfAbsent(key, key);
+        }
+
+        assertTrue(cache.size() <= maximumSize);
+        assertTrue(cache.evictionCount() >= 3 * maximumSize - maximumSize / 2);
+
+        int survivors = 0;
+        for (String key : hot) {
+            if (cache.getIfPresent(key) != null) {
+                survivors++;
+            }
+        }
+        assertEquals(hot.length, survivors);
+    }
+}
@@ -0,0 +1,86 @@
+package com.gitlab.techschool.pcbook.service;
+
+import com.github.techschool.pcbook.pb.Filter;
+import com.github.techschool.pcbook.pb.Laptop;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Statistics about the laptops in a store, maintained incrementally on every write.
+// They only need to be good enough for the planner to rank access paths.
+public class CatalogStatistics {
+    private static final double PRICE_BUCKET_USD = 50;
+    private static final double GHZ_BUCKET = 0.1;
+    private static final double RAM_BUCKET_BIT = 1L << 33; // 1 GIGABYTE
+
+    private final LongAdder rows;
+    private final Histogram price;
+    private final Histogram cpuGhz;
+    private final Histogram ram;
+    private final FrequencyTable<Integer> cpuCores;
+
+    public CatalogStatistics() {
+        rows = new LongAdder();
+        price = new Histogram(PRICE_BUCKET_USD);
+        cpuGhz = new Histogram(GHZ_BUCKET);
+        ram = new Histogram(RAM_BUCKET_BIT);
+        cpuCores = new FrequencyTable<>();
+    }
+
+    public void record(Laptop laptop) {
+        rows.increment();
+        price.add(laptop.getPriceUsd());
+        cpuGhz.add(laptop.getCpu().getMinGhz());
+        ram.add(FilterMatcher.toBit(laptop.getRam()));
+        cpuCores.add(laptop.getCpu().getNumberCores());
+    }
+
+    public void forget(Laptop laptop) {
+        rows.decrement();
+        price.remove(laptop.getPriceUsd());
+        cpuGhz.remove(laptop.getCpu().getMinGhz());
+        ram.remove(FilterMatcher.toBit(laptop.getRam()));
+        cpuCores.remove(laptop.getCpu().getNumberCores());
+    }
+
+    public long rowCount() {
+        return Math.max(rows.sum(), 0);
+    }
+
+    public double estimatePriceAtMost(double maxPriceUsd) {
+        return clamp(price.estimateAtMost(maxPriceUsd));
+    }
+
+    public double estimateRamAtLeast(long minRamBit) {
+        return clamp(ram.estimateAtLeast(minRamBit));
+    }
+
+    public double estimateGhzAtLeast(double minGhz) {
+        return clamp(cpuGhz.estimateAtLeast(minGhz));
+    }
+
+    public double estimateCoresAtLeast(int minCores) {
+        return clamp(cpuCores.countAtLeast(minCores));
+    }
+
+    public int distinctCoresAtLeast(int minCores) {
+        return cpuCores.distinctAtLeast(minCores);
+    }
+
+    // estimated number of laptops matching the whole filter, assuming independent predicates
+    public double estimateMatches(Filter filter) {
+        double total = rowCount();
+        if (total == 0) {
+            return 0;
+        }
+
+        double selectivity = estimatePriceAtMost(filter.getMaxPriceUsd()) / total
+                * estimateCoresAtLeast(filter.getMinCpuCores()) / total
+                * estimateGhzAtLeast(filter.getMinCpuGhz()) / total
+                * estimateRamAtLeast(FilterMatcher.toBit(filter.getMinRam())) / total;
+        return total * selectivity;
+    }
+
+    private double clamp(double estimate) {
+        return Math.min(Math.max(estimate, 0), rowCount());
+    }
+}
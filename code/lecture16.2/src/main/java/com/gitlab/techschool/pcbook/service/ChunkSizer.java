@@ -0,0 +1,78 @@
+package com.gitlab.techschool.pcbook.service;
+
+import java.util.concurrent.TimeUnit;
+
+// Picks the chunk size of an upload by hill climbing on the measured throughput: the size keeps
+// moving in the same direction, doubling or halving, while the throughput improves and turns back
+// once it drops. Large chunks cut the per-message overhead on a fast link, small ones keep
+// the flow-control window moving on a slow one.
+public class ChunkSizer {
+    public static final int MIN_CHUNK_SIZE = 64 << 10; // 64 kilobytes
+    public static final int MAX_CHUNK_SIZE = 1 << 20; // 1 megabyte
+    private static final int SAMPLE_CHUNKS = 8;
+    private static final long SAMPLE_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final double TOLERANCE = 0.05; // smaller changes of throughput are noise
+
+    private final int minSize;
+    private final int maxSize;
+    private int size;
+    private boolean growing;
+    private double lastThroughput; // bytes per second of the previous sample
+    private long sampleStart;
+    private long sampleBytes;
+    private int sampleChunks;
+
+    public ChunkSizer() {
+        this(MIN_CHUNK_SIZE, MAX_CHUNK_SIZE);
+    }
+
+    // the size is fixed when minSize equals maxSize
+    public ChunkSizer(int minSize, int maxSize) {
+        if (minSize <= 0 || minSize > maxSize) {
+            throw new IllegalArgumentException("bad chunk size range [" + minSize + ", " + maxSize + "]");
+        }
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.size = minSize;
+        this.growing = true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // marks the start of the stream, the first sample measures from here
+    public void start(long now) {
+        sampleStart = now;
+        sampleBytes = 0;
+        sampleChunks = 0;
+    }
+
+    // records a chunk handed to the transport, now is System.nanoTime()
+    public void sent(int bytes, long now) {
+        sampleBytes += bytes;
+        sampleChunks++;
+        long elapsed = now - sampleStart;
+        if (sampleChunks < SAMPLE_CHUNKS || elapsed < SAMPLE_NANOS) {
+            return;
+        }
+
+        double throughput = sampleBytes * 1e9 / elapsed;
+        if (throughput < lastThroughput * (1 - TOLERANCE)) {
+            growing = !growing;
+            step();
+        } else if (throughput > lastThroughput * (1 + TOLERANCE)) {
+            step();
+        }
+        lastThroughput = throughput;
+        start(now);
+    }
+
+    private void step() {
+        int next = growing ? size * 2 : size / 2;
+        // stays at a bound until the throughput drops and turns the size back
+        if (next >= minSize && next <= maxSize) {
+            size = next;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.gitlab.techschool.pcbook.service;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.IntToDoubleFunction;
+
+import static org.junit.Assert.*;
+
+public class ChunkSizerTest {
+    @Test
+    public void growWhileLargerChunksAreFaster() {
+        // a fixed cost per message, so the larger the chunk the better
+        ChunkSizer sizer = new ChunkSizer();
+        Set<Integer> sizes = send(sizer, size -> 2_000_000 + size * 10.0, 2000);
+        assertEquals(ChunkSizer.MAX_CHUNK_SIZE, sizer.size());
+        assertTrue(sizes.contains(128 << 10));
+    }
+
+    @Test
+    public void settleAroundTheFastestSize() {
+        // chunks over 256 kilobytes stall the window, at the same cost per message
+        ChunkSizer sizer = new ChunkSizer();
+        Set<Integer> sizes = send(sizer, size -> 2_000_000 + size * (size > 256 << 10 ? 40.0 : 10.0), 4000);
+        assertTrue(sizer.size() >= 128 << 10 && sizer.size() <= 512 << 10);
+        assertFalse(sizes.contains(ChunkSizer.MAX_CHUNK_SIZE));
+    }
+
+    @Test
+    public void keepFixedSize() {
+        ChunkSizer sizer = new ChunkSizer(64 << 10, 64 << 10);
+        Set<Integer> sizes = send(sizer, size -> 2_000_000 + size * 10.0, 1000);
+        assertEquals(1, sizes.size());
+        assertEquals(64 << 10, sizer.size());
+    }
+
+    // sends chunks on a simulated link, returns the sizes used after the first
+    private static Set<Integer> send(ChunkSizer sizer, IntToDoubleFunction nanosPerChunk, int chunks) {
+        Set<Integer> sizes = new HashSet<>();
+        long now = 0;
+        sizer.start(now);
+        for (int i = 0; i < chunks; i++) {
+            int size = sizer.size();
+            sizes.add(size);
+            now += (long) nanosPerChunk.applyAsDouble(size);
+            sizer.sent(size, now);
+        }
+        return sizes;
+    }
+}
@@ -0,0 +1,35 @@
+package com.gitlab.techschool.pcbook.service;
+
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.ForwardingClientCall;
+import io.grpc.MethodDescriptor;
+
+// Compresses the requests of each method with its configured encoding, above the size threshold
+public class ClientCompressionInterceptor implements ClientInterceptor {
+    private final MessageCompression compression;
+
+    public ClientCompressionInterceptor(MessageCompression compression) {
+        this.compression = compression;
+    }
+
+    @Override
+    public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(MethodDescriptor<ReqT, RespT> method,
+                                                               CallOptions callOptions, Channel next) {
+        String encoding = compression.encodingOf(method);
+        if (encoding == null) {
+            return next.newCall(method, callOptions);
+        }
+
+        return new ForwardingClientCall.SimpleForwardingClientCall<ReqT, RespT>(
+                next.newCall(method, callOptions.withCompression(encoding))) {
+            @Override
+            public void sendMessage(ReqT message) {
+                setMessageCompression(compression.shouldCompress(message));
+                super.sendMessage(message);
+            }
+        };
+    }
+}
@@ -0,0 +1,251 @@
+package com.gitlab.techschool.pcbook.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Logger;
+
+// Append-only file of serialized laptops, read through memory-mapped regions.
+// Record layout: int length | short id length | id (UTF-8) | laptop bytes.
+// A record never crosses a region boundary, a zero length means the rest of the region is empty.
+// Once the records replaced or removed take half of the file, the live ones are copied to a new file
+// that takes its place. Readers and scans started before keep the mappings of the old file.
+public class ColdLaptopFile implements Closeable {
+    private static final Logger logger = Logger.getLogger(ColdLaptopFile.class.getName());
+    private static final int HEADER_SIZE = Integer.BYTES + Short.BYTES;
+    private static final double COMPACT_RATIO = 0.5;
+
+    private final Path path;
+    private final int regionSize;
+    private volatile Generation current;
+    private long deadBytes; // guarded by this
+    private int compactions; // guarded by this
+
+    public ColdLaptopFile(Path path, int regionSize) throws IOException {
+        this.path = path;
+        this.regionSize = regionSize;
+        this.current = new Generation(path);
+    }
+
+    public boolean contains(String id) {
+        return current.index.containsKey(id);
+    }
+
+    public int count() {
+        return current.index.size();
+    }
+
+    public synchronized long getDeadBytes() {
+        return deadBytes;
+    }
+
+    public synchronized int getCompactionCount() {
+        return compactions;
+    }
+
+    // bytes the file takes, including the unused end of its last region
+    public synchronized long getFileSize() {
+        return (long) current.regions.size() * regionSize;
+    }
+
+    public synchronized void append(String id, byte[] laptop) throws IOException {
+        Long previous = current.index.get(id);
+        current.put(id.getBytes(StandardCharsets.UTF_8), ByteBuffer.wrap(laptop));
+        if (previous != null) {
+            deadBytes += current.recordSize(previous);
+        }
+        maybeCompact();
+    }
+
+    public synchronized boolean remove(String id) {
+        Long previous = current.index.remove(id);
+        if (previous == null) {
+            return false;
+        }
+        deadBytes += current.recordSize(previous);
+        maybeCompact();
+        return true;
+    }
+
+    // returns a read-only view of the laptop bytes inside the mapped file, or null if there is no record
+    public ByteBuffer read(String id) {
+        Generation generation = current;
+        Long offset = generation.index.get(id);
+        if (offset == null) {
+            return null;
+        }
+        ByteBuffer region = generation.regions.get((int) (offset / regionSize)).duplicate();
+        int position = (int) (offset % regionSize);
+        int length = region.getInt(position);
+        int keyLength = region.getShort(position + Integer.BYTES);
+        region.limit(position + Integer.BYTES + length);
+        region.position(position + HEADER_SIZE + keyLength);
+        return region.slice().asReadOnlyBuffer();
+    }
+
+    // visits the live records in file order, covers the records appended before the call
+    public synchronized Records records() {
+        return new Records(current, current.end);
+    }
+
+    // copies the live records to a new file which replaces this one, returns false if there was nothing to reclaim
+    public synchronized boolean compact() throws IOException {
+        if (deadBytes == 0) {
+            return false;
+        }
+
+        Path temp = path.resolveSibling(path.getFileName() + ".compact");
+        Generation next = new Generation(temp);
+        try {
+            Records records = new Records(current, current.end);
+            while (records.next()) {
+                next.put(records.id().getBytes(StandardCharsets.UTF_8), records.laptop());
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            next.channel.close();
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+
+        // the mappings of the old file stay valid after its channel is closed
+        Generation previous = current;
+        current = next;
+        deadBytes = 0;
+        compactions++;
+        previous.channel.close();
+        return true;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        current.channel.close();
+    }
+
+    // the write that crossed the threshold succeeded, a failed compaction is tried again on the next one
+    private void maybeCompact() {
+        if (deadBytes < regionSize || deadBytes < current.end * COMPACT_RATIO) {
+            return;
+        }
+        try {
+            compact();
+        } catch (IOException e) {
+            logger.warning("cannot compact cold laptop file: " + e.getMessage());
+        }
+    }
+
+    // one file with its mappings and the offsets of its live records
+    private class Generation {
+        private final FileChannel channel;
+        private final List<MappedByteBuffer> regions;
+        private final ConcurrentMap<String, Long> index; // ID -> offset of its live record
+        private long end; // guarded by the file
+
+        Generation(Path path) throws IOException {
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.regions = new CopyOnWriteArrayList<>();
+            this.index = new ConcurrentHashMap<>();
+        }
+
+        void put(byte[] key, ByteBuffer laptop) throws IOException {
+            int size = HEADER_SIZE + key.length + laptop.remaining();
+            if (size > regionSize) {
+                throw new IOException("laptop record is larger than a region: " + size);
+            }
+
+            int offset = (int) (end % regionSize);
+            if (offset + size > regionSize) {
+                end += regionSize - offset; // the rest of the region stays zero
+            }
+
+            ByteBuffer region = region((int) (end / regionSize)).duplicate();
+            region.position((int) (end % regionSize));
+            region.putInt(size - Integer.BYTES);
+            region.putShort((short) key.length);
+            region.put(key);
+            region.put(laptop.duplicate());
+
+            index.put(new String(key, StandardCharsets.UTF_8), end);
+            end += size;
+        }
+
+        int recordSize(long offset) {
+            ByteBuffer region = regions.get((int) (offset / regionSize));
+            return Integer.BYTES + region.getInt((int) (offset % regionSize));
+        }
+
+        private MappedByteBuffer region(int regionIndex) throws IOException {
+            while (regions.size() <= regionIndex) {
+                long position = (long) regions.size() * regionSize;
+                regions.add(channel.map(FileChannel.MapMode.READ_WRITE, position, regionSize));
+            }
+            return regions.get(regionIndex);
+        }
+    }
+
+    // a scan started before a compaction goes on over the old file, with its records as of the compaction
+    public class Records {
+        private final Generation generation;
+        private final long limit;
+        private long offset;
+        private String id;
+        private ByteBuffer laptop;
+
+        private Records(Generation generation, long limit) {
+            this.generation = generation;
+            this.limit = limit;
+        }
+
+        // moves to the next live record, returns false at the end of the file
+        public boolean next() {
+            while (offset < limit) {
+                ByteBuffer region = generation.regions.get((int) (offset / regionSize)).duplicate();
+                int position = (int) (offset % regionSize);
+                int length = position + Integer.BYTES <= regionSize ? region.getInt(position) : 0;
+                if (length == 0) {
+                    offset += regionSize - position;
+                    continue;
+                }
+
+                int keyLength = region.getShort(position + Integer.BYTES);
+                byte[] key = new byte[keyLength];
+                region.position(position + HEADER_SIZE);
+                region.get(key);
+                String recordId = new String(key, StandardCharsets.UTF_8);
+
+                long recordOffset = offset;
+                offset += Integer.BYTES + length;
+                Long live = generation.index.get(recordId);
+                if (live != null && live == recordOffset) {
+                    region.limit(position + Integer.BYTES + length);
+                    id = recordId;
+                    laptop = region.slice().asReadOnlyBuffer();
+                    return true;
+                }
+            }
+            id = null;
+            laptop = null;
+            return false;
+        }
+
+        public String id() {
+            return id;
+        }
+
+        public ByteBuffer laptop() {
+            return laptop;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.gitlab.techschool.pcbook.service;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ColdLaptopFileTest {
+    private static final int REGION_SIZE = 4096;
+
+    private Path path;
+    private ColdLaptopFile file;
+
+    @Before
+    public void setUp() throws Exception {
+        path = Files.createTempFile("laptops", ".cold");
+        file = new ColdLaptopFile(path, REGION_SIZE);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        file.close();
+        Files.deleteIfExists(path);
+    }
+
+    @Test
+    public void compactReplacedRecords() throws Exception {
+        // the same ten laptops evicted again and again
+        for (int round = 0; round < 100; round++) {
+            for (int i = 0; i < 10; i++) {
+                file.append("laptop-" + i, laptop(i, round));
+            }
+        }
+
+        assertTrue(file.getCompactionCount() > 0);
+        assertTrue(file.getFileSize() <= 2 * REGION_SIZE);
+        assertEquals(10, file.count());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(ByteBuffer.wrap(laptop(i, 99)), file.read("laptop-" + i));
+        }
+    }
+
+    @Test
+    public void scanKeepsTheFileItStarted() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            file.append("laptop-" + i, laptop(i, 0));
+        }
+        ColdLaptopFile.Records records = file.records();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(file.remove("laptop-" + i));
+        }
+        assertTrue(file.compact());
+        assertEquals(0, file.getDeadBytes());
+        assertFalse(file.compact());
+
+        // the scan sees the records as of the compaction
+        Set<String> scanned = new HashSet<>();
+        while (records.next()) {
+            assertEquals(ByteBuffer.wrap(laptop(Integer.parseInt(records.id().substring(7)), 0)), records.laptop());
+            scanned.add(records.id());
+        }
+        assertEquals(10, scanned.size());
+        assertFalse(scanned.contains("laptop-0"));
+
+        records = file.records();
+        scanned.clear();
+        while (records.next()) {
+            scanned.add(records.id());
+        }
+        assertEquals(10, scanned.size());
+        assertNull(file.read("laptop-0"));
+        assertEquals(ByteBuffer.wrap(laptop(15, 0)), file.read("laptop-15"));
+    }
+
+    private static byte[] laptop(int id, int version) {
+        byte[] bytes = new byte[200];
+        bytes[0] = (byte) id;
+        bytes[1] = (byte) version;
+        return bytes;
+    }
+}
@@ -0,0 +1,75 @@
+package com.gitlab.techschool.pcbook.service;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Lock-free bit set that grows in fixed-size pages, so readers never wait for writers.
+public class ConcurrentBitSet {
+    private static final int WORDS_PER_PAGE = 1024; // 65536 bits
+
+    private volatile AtomicLongArray[] pages;
+
+    public ConcurrentBitSet() {
+        pages = new AtomicLongArray[0];
+    }
+
+    public void set(int index) {
+        int word = index >>> 6;
+        AtomicLongArray page = page(word / WORDS_PER_PAGE);
+        long mask = 1L << index;
+        page.getAndAccumulate(word % WORDS_PER_PAGE, mask, (current, bit) -> current | bit);
+    }
+
+    public void clear(int index) {
+        int word = index >>> 6;
+        AtomicLongArray[] current = pages;
+        if (word / WORDS_PER_PAGE >= current.length) {
+            return;
+        }
+        long mask = ~(1L << index);
+        current[word / WORDS_PER_PAGE].getAndAccumulate(word % WORDS_PER_PAGE, mask, (value, bits) -> value & bits);
+    }
+
+    public boolean get(int index) {
+        int word = index >>> 6;
+        AtomicLongArray[] current = pages;
+        if (word / WORDS_PER_PAGE >= current.length) {
+            return false;
+        }
+        return (current[word / WORDS_PER_PAGE].get(word % WORDS_PER_PAGE) & (1L << index)) != 0;
+    }
+
+    // ORs this set into the given words, ignoring bits beyond words.length * 64
+    public void orInto(long[] words) {
+        AtomicLongArray[] current = pages;
+        for (int p = 0; p < current.length; p++) {
+            for (int w = 0; w < WORDS_PER_PAGE; w++) {
+                int word = p * WORDS_PER_PAGE + w;
+                if (word >= words.length) {
+                    return;
+                }
+                words[word] |= current[p].get(w);
+            }
+        }
+    }
+
+    private AtomicLongArray page(int pageIndex) {
+        AtomicLongArray[] current = pages;
+        if (pageIndex < current.length) {
+            return current[pageIndex];
+        }
+
+        synchronized (this) {
+            current = pages;
+            if (pageIndex >= current.length) {
+                AtomicLongArray[] grown = new AtomicLongArray[pageIndex + 1];
+                System.arraycopy(current, 0, grown, 0, current.length);
+                for (int p = current.length; p < grown.length; p++) {
+                    grown[p] = new AtomicLongArray(WORDS_PER_PAGE);
+                }
+                pages = grown;
+                current = grown;
+            }
+            return current[pageIndex];
+        }
+    }
+}
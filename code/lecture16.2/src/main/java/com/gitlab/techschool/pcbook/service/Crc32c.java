@@ -0,0 +1,76 @@
+package com.gitlab.techschool.pcbook.service;
+
+import com.google.protobuf.ByteString;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+// CRC32C of the image bytes, checked chunk by chunk and for the whole image.
+// The JDK computes it with the CPU's CRC32C instructions where there are some, at gigabytes per second.
+public final class Crc32c {
+    private static final int POLYNOMIAL = 0x82F63B78; // reversed
+
+    // ZEROS[k] appends 2^k zero bytes to a CRC, as a 32x32 matrix over GF(2), one column per int
+    private static final int[][] ZEROS = zeros();
+
+    private Crc32c() {
+    }
+
+    public static int of(ByteString bytes) {
+        CRC32C crc = new CRC32C();
+        update(crc, bytes);
+        return (int) crc.getValue();
+    }
+
+    // reads the bytes in place, a ByteString wrapping a mapping or a direct buffer isn't copied
+    public static void update(CRC32C crc, ByteString bytes) {
+        for (ByteBuffer buffer : bytes.asReadOnlyByteBufferList()) {
+            crc.update(buffer);
+        }
+    }
+
+    // CRC32C of two byte runs one after the other, from the CRC32C of each and the length of the second.
+    // Costs at most one matrix product per bit of the length, so a chunk's CRC serves both the chunk and the image.
+    public static int combine(int crc1, int crc2, long length2) {
+        for (int k = 0; length2 != 0; k++, length2 >>>= 1) {
+            if ((length2 & 1) != 0) {
+                crc1 = times(ZEROS[k], crc1);
+            }
+        }
+        return crc1 ^ crc2;
+    }
+
+    private static int[][] zeros() {
+        // a zero bit shifts the register right and folds the low bit back in with the polynomial
+        int[] zeroBit = new int[Integer.SIZE];
+        zeroBit[0] = POLYNOMIAL;
+        for (int n = 1; n < Integer.SIZE; n++) {
+            zeroBit[n] = 1 << (n - 1);
+        }
+
+        int[][] zeros = new int[Long.SIZE - 1][];
+        zeros[0] = square(square(square(zeroBit)));
+        for (int k = 1; k < zeros.length; k++) {
+            zeros[k] = square(zeros[k - 1]);
+        }
+        return zeros;
+    }
+
+    private static int[] square(int[] matrix) {
+        int[] square = new int[Integer.SIZE];
+        for (int n = 0; n < Integer.SIZE; n++) {
+            square[n] = times(matrix, matrix[n]);
+        }
+        return square;
+    }
+
+    private static int times(int[] matrix, int vector) {
+        int product = 0;
+        for (int n = 0; vector != 0; n++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                product ^= matrix[n];
+            }
+        }
+        return product;
+    }
+}
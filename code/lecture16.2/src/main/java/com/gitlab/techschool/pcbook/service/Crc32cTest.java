@@ -0,0 +1,40 @@
+package com.gitlab.techschool.pcbook.service;
+
+import com.google.protobuf.ByteString;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class Crc32cTest {
+    @Test
+    public void combineTheCrcsOfTwoRuns() {
+        byte[] bytes = new byte[300_000];
+        new Random(42).nextBytes(bytes);
+        ByteString image = ByteString.copyFrom(bytes);
+        int expected = Crc32c.of(image);
+
+        for (int split : new int[]{0, 1, 7, 4096, 65_537, bytes.length - 1, bytes.length}) {
+            ByteString first = image.substring(0, split);
+            ByteString second = image.substring(split);
+            assertEquals("split at " + split, expected,
+                    Crc32c.combine(Crc32c.of(first), Crc32c.of(second), second.size()));
+        }
+    }
+
+    @Test
+    public void combineChunkByChunk() {
+        byte[] bytes = new byte[100_000];
+        new Random(7).nextBytes(bytes);
+        ByteString image = ByteString.copyFrom(bytes);
+
+        // the way the client builds the image CRC32C from the CRC32C of its chunks
+        int crc = Crc32c.of(ByteString.EMPTY);
+        for (int offset = 0, size = 1; offset < bytes.length; offset += size, size = size * 3 + 1) {
+            ByteString chunk = image.substring(offset, Math.min(offset + size, bytes.length));
+            crc = Crc32c.combine(crc, Crc32c.of(chunk), chunk.size());
+        }
+        assertEquals(Crc32c.of(image), crc);
+    }
+}
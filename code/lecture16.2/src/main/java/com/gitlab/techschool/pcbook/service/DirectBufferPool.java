@@ -0,0 +1,39 @@
+package com.gitlab.techschool.pcbook.service;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// Reuses direct buffers of a fixed size. Allocating a direct buffer is slow and its memory
+// is only freed by the GC, so the buffers are kept around instead of being dropped after each use.
+public class DirectBufferPool {
+    private final int bufferSize;
+    private final BlockingQueue<ByteBuffer> free;
+
+    // keeps at most maxIdle buffers, the ones released beyond that are left to the GC
+    public DirectBufferPool(int bufferSize, int maxIdle) {
+        this.bufferSize = bufferSize;
+        this.free = new ArrayBlockingQueue<>(maxIdle);
+    }
+
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        free.offer(buffer);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getIdleCount() {
+        return free.size();
+    }
+}
@@ -1,33 +1,972 @@
 package com.gitlab.techschool.pcbook.service;
 
-import java.io.ByteArrayOutputStream;
-import java.io.FileOutputStream;
+import com.google.protobuf.ByteString;
+
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+// Streams every image to a temporary file next to its final path and renames it on commit,
+// so a reader never sees a partial image and an upload only holds one pooled buffer in memory.
+// An upload session keeps its temporary file between streams, until it is committed or expires.
+// A multipart upload preallocates its file and every part stream writes its own region of it.
+// Committed files are stored once per content, under their SHA-256, and shared by all the images
+// with that content: uploading a duplicate only costs hashing it.
+// The metadata is kept in an ImageIndex file, so the images are found again after a restart.
+// Every new content is handed to a ThumbnailPipeline that resizes it in the background.
+// A commit hands its open file to a GroupCommitter. For each batch of concurrent commits, its thread
+// fsyncs the data of the new contents, moves their files into place, fsyncs every folder the batch changed
+// once and makes the images visible with one fsync of the index. A duplicate is deleted without an fsync.
+public class DiskImageStore implements ImageStore, Closeable {
+    public static final long DEFAULT_MAX_IMAGE_SIZE = 4L << 30; // 4 gigabytes
+    public static final long DEFAULT_SESSION_TTL = TimeUnit.HOURS.toNanos(24);
+    private static final int BUFFER_SIZE = 64 << 10; // 64 kilobytes
+    private static final int MAX_IDLE_BUFFERS = 64;
+    private static final int MAX_PARTS = 10_000;
+    private static final String TEMP_SUFFIX = ".part";
+    private static final String BLOB_FOLDER = "blobs";
+    private static final String INDEX_FILE = "images.idx";
+    private static final String VARIANT_FOLDER = "variants";
+    public static final int DEFAULT_COMMIT_BATCH_SIZE = 128;
+    public static final long DEFAULT_COMMIT_LINGER = 0; // the commits arriving during an fsync are batched anyway
 
-public class DiskImageStore implements ImageStore {
     private String imageFolder;
-    private ConcurrentMap<String, ImageMetadata> data;
+    private long maxImageSize;
+    private long sessionTTL;
+    private DirectBufferPool buffers;
+    private ImageIndex index;
+    private ThumbnailPipeline variants;
+    private GroupCommitter<PendingImage, String> committer;
+    private ConcurrentMap<String, UploadSession> sessions;
+    private ConcurrentMap<String, MultipartUpload> multipartUploads;
+    private Map<String, Blob> blobs; // content hash -> file, guarded by itself
+
+    public DiskImageStore(String imageFolder) throws IOException {
+        this(imageFolder, DEFAULT_MAX_IMAGE_SIZE);
+    }
+
+    public DiskImageStore(String imageFolder, long maxImageSize) throws IOException {
+        this(imageFolder, maxImageSize, DEFAULT_SESSION_TTL);
+    }
+
+    // sessionTTL is how long, in nanoseconds, an upload can go without a stream before it is dropped
+    public DiskImageStore(String imageFolder, long maxImageSize, long sessionTTL) throws IOException {
+        this(imageFolder, maxImageSize, sessionTTL, DEFAULT_COMMIT_BATCH_SIZE, DEFAULT_COMMIT_LINGER);
+    }
 
-    public DiskImageStore(String imageFolder) {
+    // at most commitBatchSize images share an index fsync, a batch that isn't full
+    // waits up to commitLinger nanoseconds for more commits
+    public DiskImageStore(String imageFolder, long maxImageSize, long sessionTTL, int commitBatchSize,
+                          long commitLinger) throws IOException {
         this.imageFolder = imageFolder;
-        this.data = new ConcurrentHashMap<>(0);
+        this.maxImageSize = maxImageSize;
+        this.sessionTTL = sessionTTL;
+        this.buffers = new DirectBufferPool(BUFFER_SIZE, MAX_IDLE_BUFFERS);
+        this.sessions = new ConcurrentHashMap<>(0);
+        this.multipartUploads = new ConcurrentHashMap<>(0);
+        this.blobs = new HashMap<>();
+
+        Files.createDirectories(Paths.get(imageFolder));
+        this.index = new ImageIndex(Paths.get(imageFolder, INDEX_FILE), this::blobPath);
+        this.variants = new ThumbnailPipeline(Paths.get(imageFolder, VARIANT_FOLDER));
+        for (ImageMetadata metadata : index.values()) {
+            Blob blob = blobs.computeIfAbsent(metadata.getHash(), k -> new Blob(Paths.get(metadata.getPath()),
+                    metadata.getSize()));
+            blob.references++;
+        }
+        // the upload sessions don't survive a restart
+        try (DirectoryStream<Path> temporary = Files.newDirectoryStream(Paths.get(imageFolder), "*" + TEMP_SUFFIX)) {
+            for (Path path : temporary) {
+                Files.deleteIfExists(path);
+            }
+        }
+        this.committer = new GroupCommitter<>("image-commit", commitBatchSize, commitLinger, this::commitImages);
     }
 
     @Override
-    public String Save(String laptopID, String imageType, ByteArrayOutputStream imageData) throws IOException {
-        String imageID = UUID.randomUUID().toString();
-        String imagePath = String.format("%s/%s%s", imageFolder, imageID, imageType);
+    public ImageWriter Create(String laptopID, String imageType) throws IOException {
+        UploadSession session = open(laptopID, imageType, false);
+        return session.attach(0);
+    }
+
+    @Override
+    public String Initiate(String laptopID, String imageType) throws IOException {
+        expireSessions(System.nanoTime());
+        UploadSession session = open(laptopID, imageType, true);
+        sessions.put(session.imageID, session);
+        return session.imageID;
+    }
+
+    @Override
+    public ImageWriter Resume(String uploadID, long offset) throws IOException {
+        UploadSession session = sessions.get(uploadID);
+        if (session == null) {
+            throw new NotFoundException("upload ID doesn't exist");
+        }
+        return session.attach(offset);
+    }
 
-        FileOutputStream fileOutputStream = new FileOutputStream(imagePath);
-        imageData.writeTo(fileOutputStream);
-        fileOutputStream.close();
+    @Override
+    public long Query(String uploadID) {
+        UploadSession session = sessions.get(uploadID);
+        if (session != null) {
+            return session.getStored();
+        }
+        return multipart(uploadID).getReceived();
+    }
 
-        ImageMetadata metadata = new ImageMetadata(laptopID, imageType, imagePath);
-        data.put(imageID, metadata);
+    @Override
+    public String InitiateMultipart(String laptopID, String imageType, long size, long partSize) throws IOException {
+        if (size > maxImageSize) {
+            throw new ImageTooLargeException("image is too large: " + size);
+        }
+        // size + partSize - 1 overflows for a part size close to Long.MAX_VALUE
+        long partCount = size > 0 && partSize > 0 ? (size - 1) / partSize + 1 : 0;
+        if (partCount < 1 || partCount > MAX_PARTS) {
+            throw new IllegalArgumentException("cannot split " + size + " bytes into parts of " + partSize
+                    + " bytes, at most " + MAX_PARTS + " parts");
+        }
+        expireSessions(System.nanoTime());
 
+        String imageID = UUID.randomUUID().toString();
+        Path tempPath = Paths.get(imageFolder, imageID + imageType + TEMP_SUFFIX);
+        FileChannel channel;
+        try {
+            try (RandomAccessFile file = new RandomAccessFile(tempPath.toFile(), "rw")) {
+                file.setLength(size);
+            }
+            channel = FileChannel.open(tempPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            Files.deleteIfExists(tempPath);
+            throw e;
+        }
+
+        MultipartUpload upload = new MultipartUpload(imageID, laptopID, imageType, tempPath, channel, size, partSize,
+                (int) partCount);
+        multipartUploads.put(imageID, upload);
         return imageID;
     }
+
+    @Override
+    public ImageWriter WritePart(String uploadID, int partNumber) {
+        return multipart(uploadID).attach(partNumber);
+    }
+
+    @Override
+    public CompletableFuture<String> Complete(String uploadID) throws IOException {
+        return multipart(uploadID).complete();
+    }
+
+    @Override
+    public void Delete(String imageID) throws IOException {
+        ImageMetadata metadata = index.remove(imageID);
+        if (metadata == null) {
+            throw new NotFoundException("image ID doesn't exist");
+        }
+
+        release(metadata.getHash());
+    }
+
+    @Override
+    public ImageMetadata Find(String imageID) {
+        return index.get(imageID);
+    }
+
+    @Override
+    public List<ImageMetadata> FindByLaptop(String laptopID) {
+        return index.findByLaptop(laptopID);
+    }
+
+    @Override
+    public CompletableFuture<ImageVariant> GetVariant(String imageID, String variant) {
+        ImageMetadata metadata = index.get(imageID);
+        if (metadata == null) {
+            throw new NotFoundException("image ID doesn't exist");
+        }
+        return variants.get(metadata, variant);
+    }
+
+    @Override
+    public ImageReader Open(String imageID) throws IOException {
+        ImageMetadata metadata = index.get(imageID);
+        if (metadata == null) {
+            throw new NotFoundException("image ID doesn't exist");
+        }
+        return new MappedImageReader(FileChannel.open(Paths.get(metadata.getPath()), StandardOpenOption.READ));
+    }
+
+    public int getBlobCount() {
+        synchronized (blobs) {
+            return blobs.size();
+        }
+    }
+
+    // bytes on disk, each distinct content counted once
+    public long getBlobBytes() {
+        synchronized (blobs) {
+            long total = 0;
+            for (Blob blob : blobs.values()) {
+                total += blob.size;
+            }
+            return total;
+        }
+    }
+
+    public long getMaxImageSize() {
+        return maxImageSize;
+    }
+
+    public DirectBufferPool getBuffers() {
+        return buffers;
+    }
+
+    public ThumbnailPipeline getVariants() {
+        return variants;
+    }
+
+    public GroupCommitter<PendingImage, String> getCommitter() {
+        return committer;
+    }
+
+    @Override
+    public void close() throws IOException {
+        committer.close();
+        variants.close();
+        index.close();
+    }
+
+    // drops the sessions that had no stream for longer than the TTL
+    public void expireSessions(long now) {
+        Iterator<UploadSession> it = sessions.values().iterator();
+        while (it.hasNext()) {
+            UploadSession session = it.next();
+            if (session.expire(now - sessionTTL)) {
+                it.remove();
+            }
+        }
+        Iterator<MultipartUpload> uploads = multipartUploads.values().iterator();
+        while (uploads.hasNext()) {
+            MultipartUpload upload = uploads.next();
+            if (upload.expire(now - sessionTTL)) {
+                uploads.remove();
+            }
+        }
+    }
+
+    private MultipartUpload multipart(String uploadID) {
+        MultipartUpload upload = multipartUploads.get(uploadID);
+        if (upload == null) {
+            throw new NotFoundException("upload ID doesn't exist");
+        }
+        return upload;
+    }
+
+    private UploadSession open(String laptopID, String imageType, boolean resumable) throws IOException {
+        String imageID = UUID.randomUUID().toString();
+        Path tempPath = Paths.get(imageFolder, imageID + imageType + TEMP_SUFFIX);
+        Files.createFile(tempPath);
+        return new UploadSession(imageID, laptopID, imageType, tempPath, resumable);
+    }
+
+    // the batch writer of the committer: the renames of the whole batch are made durable
+    // by one fsync per folder and the images by one fsync of the index
+    private void commitImages(List<PendingImage> images, List<CompletableFuture<String>> futures)
+            throws IOException {
+        List<ImageMetadata> added = new ArrayList<>(images.size());
+        List<CompletableFuture<String>> addedFutures = new ArrayList<>(images.size());
+        Set<Path> folders = new HashSet<>();
+        for (int i = 0; i < images.size(); i++) {
+            PendingImage image = images.get(i);
+            try {
+                added.add(addBlob(image, folders));
+                addedFutures.add(futures.get(i));
+            } catch (IOException e) {
+                futures.get(i).completeExceptionally(e);
+                image.discard();
+            }
+        }
+
+        try {
+            for (Path folder : folders) {
+                forceFolder(folder);
+            }
+            index.putAll(added);
+        } catch (IOException e) {
+            for (ImageMetadata metadata : added) {
+                release(metadata.getHash());
+            }
+            throw e;
+        }
+
+        for (int i = 0; i < added.size(); i++) {
+            addedFutures.get(i).complete(added.get(i).getID());
+            variants.submit(added.get(i));
+        }
+    }
+
+    // moves a committed file to the blob of its content, or drops it if that content is already stored.
+    // Adds the folders whose entries changed to folders, they are fsynced once for the whole batch.
+    private ImageMetadata addBlob(PendingImage image, Set<Path> folders) throws IOException {
+        String key = toHex(image.hash);
+        Path path;
+        try {
+            // the data must be on disk before the rename is, the fsync is kept out of the lock
+            boolean forced = false;
+            if (!hasBlob(key)) {
+                image.channel.force(false);
+                forced = true;
+            }
+            synchronized (blobs) {
+                Blob blob = blobs.get(key);
+                if (blob == null) {
+                    if (!forced) {
+                        image.channel.force(false); // the stored copy was deleted meanwhile
+                    }
+                    path = blobPath(key);
+                    createFolders(path.getParent(), folders);
+                    Files.move(image.tempPath, path, StandardCopyOption.ATOMIC_MOVE,
+                            StandardCopyOption.REPLACE_EXISTING);
+                    folders.add(path.getParent());
+                    blob = new Blob(path, image.size);
+                    blobs.put(key, blob);
+                } else {
+                    Files.delete(image.tempPath);
+                    path = blob.path;
+                }
+                blob.references++;
+            }
+        } finally {
+            image.closeQuietly();
+        }
+        return new ImageMetadata(image.imageID, image.laptopID, image.imageType, path.toString(), key, image.size);
+    }
+
+    private boolean hasBlob(String hash) {
+        synchronized (blobs) {
+            return blobs.containsKey(hash);
+        }
+    }
+
+    // creates a folder and the missing ones above it, the entry of a new folder is only durable once
+    // the folder holding it is fsynced
+    private static void createFolders(Path folder, Set<Path> folders) throws IOException {
+        for (Path missing = folder; !Files.isDirectory(missing); missing = missing.getParent()) {
+            folders.add(missing.getParent());
+        }
+        Files.createDirectories(folder);
+    }
+
+    // drops a reference to a blob and deletes the blob once no image uses it
+    private void release(String hash) throws IOException {
+        synchronized (blobs) {
+            Blob blob = blobs.get(hash);
+            if (--blob.references == 0) {
+                blobs.remove(hash);
+                Files.deleteIfExists(blob.path);
+                variants.remove(hash);
+            }
+        }
+    }
+
+    // a rename is only durable once its folder is, a folder is opened for reading to fsync it
+    private static void forceFolder(Path folder) throws IOException {
+        try (FileChannel channel = FileChannel.open(folder, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    private Path blobPath(String hash) {
+        return Paths.get(imageFolder, BLOB_FOLDER, hash.substring(0, 2), hash);
+    }
+
+    // hashes the first length bytes of a file, and adds them to crc unless it is null
+    private MessageDigest hash(FileChannel channel, long length, CRC32C crc) throws IOException {
+        MessageDigest digest = newDigest();
+        ByteBuffer buffer = buffers.acquire();
+        try {
+            long position = 0;
+            while (position < length) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), length - position));
+                int n = channel.read(buffer, position);
+                if (n < 0) {
+                    throw new IOException("file is shorter than " + length + " bytes");
+                }
+                position += n;
+                buffer.flip();
+                if (crc != null) {
+                    crc.update(buffer.duplicate());
+                }
+                digest.update(buffer);
+            }
+        } finally {
+            buffers.release(buffer);
+        }
+        return digest;
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("every JVM has SHA-256", e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    // a committed upload waiting in the committer, its file is written and not fsynced yet
+    public static class PendingImage {
+        private final String imageID;
+        private final String laptopID;
+        private final String imageType;
+        private final Path tempPath;
+        private final FileChannel channel;
+        private final byte[] hash;
+        private final long size;
+
+        PendingImage(String imageID, String laptopID, String imageType, Path tempPath, FileChannel channel,
+                     byte[] hash, long size) {
+            this.imageID = imageID;
+            this.laptopID = laptopID;
+            this.imageType = imageType;
+            this.tempPath = tempPath;
+            this.channel = channel;
+            this.hash = hash;
+            this.size = size;
+        }
+
+        // hands the image to the committer, a closed committer fails it at once and its file is dropped
+        CompletableFuture<String> submit(GroupCommitter<PendingImage, String> committer) {
+            CompletableFuture<String> future = committer.submit(this);
+            if (future.isCompletedExceptionally()) {
+                discard();
+            }
+            return future;
+        }
+
+        void closeQuietly() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // the data was fsynced or the file is dropped
+            }
+        }
+
+        void discard() {
+            closeQuietly();
+            try {
+                Files.deleteIfExists(tempPath);
+            } catch (IOException e) {
+                // the temporary file is only garbage, it is deleted at the next start
+            }
+        }
+    }
+
+    // a stored content and the number of images using it, guarded by blobs
+    private static class Blob {
+        private final Path path;
+        private final long size;
+        private int references;
+
+        Blob(Path path, long size) {
+            this.path = path;
+            this.size = size;
+        }
+    }
+
+    // the temporary file of an image and the writer currently streaming into it, guarded by this
+    private class UploadSession {
+        private final String imageID;
+        private final String laptopID;
+        private final String imageType;
+        private final Path tempPath;
+        private final boolean resumable;
+        private DiskImageWriter writer;
+        private long stored; // bytes written to the temporary file
+        private MessageDigest digest;
+        private CRC32C crc; // of the same bytes as the digest
+        private long digested; // bytes of the file in the digest, behind stored only after a failed write
+        private long lastActive;
+        private boolean done;
+
+        UploadSession(String imageID, String laptopID, String imageType, Path tempPath, boolean resumable) {
+            this.imageID = imageID;
+            this.laptopID = laptopID;
+            this.imageType = imageType;
+            this.tempPath = tempPath;
+            this.resumable = resumable;
+            this.digest = newDigest();
+            this.crc = new CRC32C();
+            this.lastActive = System.nanoTime();
+        }
+
+        synchronized long getStored() {
+            return stored;
+        }
+
+        // a new stream takes over from the previous one, which may not have noticed its failure yet
+        synchronized DiskImageWriter attach(long offset) throws IOException {
+            if (done) {
+                throw new NotFoundException("upload ID doesn't exist");
+            }
+            if (offset < 0 || offset > stored) {
+                throw new IllegalArgumentException("offset " + offset + " is past the " + stored + " bytes stored");
+            }
+            if (writer != null) {
+                writer.detach();
+            }
+
+            FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                // the bytes after the offset are sent again by the new stream
+                channel.truncate(offset);
+                channel.position(offset);
+                // a digest can't go back, the stored bytes are hashed again if the stream resends some
+                if (digested != offset) {
+                    crc = new CRC32C();
+                    digest = hash(channel, offset, crc);
+                    digested = offset;
+                }
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            stored = offset;
+            lastActive = System.nanoTime();
+            writer = new DiskImageWriter(this, channel, offset);
+            return writer;
+        }
+
+        synchronized boolean expire(long deadline) {
+            if (writer != null || lastActive > deadline) {
+                return false;
+            }
+            done = true;
+            delete();
+            return true;
+        }
+
+        // writes the buffer at the end of the temporary file if the writer still owns the session
+        synchronized void flush(DiskImageWriter owner, ByteBuffer buffer) throws IOException {
+            if (writer != owner) {
+                throw new IOException("upload was resumed by another stream");
+            }
+            ByteBuffer written = buffer.duplicate();
+            while (buffer.hasRemaining()) {
+                stored += owner.channel.write(buffer);
+            }
+            // hashes the chunks while they are still in memory, so the upload is only read once
+            written.limit(buffer.position());
+            crc.update(written.duplicate());
+            digest.update(written);
+            digested = stored;
+            lastActive = System.nanoTime();
+        }
+
+        synchronized int crc32c() {
+            return (int) crc.getValue();
+        }
+
+        // the committer fsyncs the data and closes the channel
+        synchronized CompletableFuture<String> commit(DiskImageWriter owner) throws IOException {
+            if (writer != owner) {
+                throw new IOException("upload was resumed by another stream");
+            }
+            writer = null;
+            done = true;
+            sessions.remove(imageID);
+            return new PendingImage(imageID, laptopID, imageType, tempPath, owner.channel, digest.digest(), stored)
+                    .submit(committer);
+        }
+
+        synchronized void release(DiskImageWriter owner, boolean keep) {
+            if (writer != owner) {
+                return;
+            }
+            writer = null;
+            lastActive = System.nanoTime();
+            if (keep && resumable) {
+                return;
+            }
+            done = true;
+            sessions.remove(imageID);
+            delete();
+        }
+
+        private void delete() {
+            try {
+                Files.deleteIfExists(tempPath);
+            } catch (IOException e) {
+                // the temporary file is only garbage, it is never read
+            }
+        }
+    }
+
+    // the parts received and the stream writing each part, guarded by this
+    private class MultipartUpload {
+        private final String imageID;
+        private final String laptopID;
+        private final String imageType;
+        private final Path tempPath;
+        private final FileChannel channel; // positional writes from any number of parts at once
+        private final long size;
+        private final long partSize;
+        private final int partCount;
+        private final DiskPartWriter[] writers;
+        private final BitSet received;
+        private long receivedBytes;
+        private long lastActive;
+        private boolean done;
+
+        MultipartUpload(String imageID, String laptopID, String imageType, Path tempPath, FileChannel channel,
+                        long size, long partSize, int partCount) {
+            this.imageID = imageID;
+            this.laptopID = laptopID;
+            this.imageType = imageType;
+            this.tempPath = tempPath;
+            this.channel = channel;
+            this.size = size;
+            this.partSize = partSize;
+            this.partCount = partCount;
+            this.writers = new DiskPartWriter[partCount];
+            this.received = new BitSet(partCount);
+            this.lastActive = System.nanoTime();
+        }
+
+        synchronized long getReceived() {
+            return receivedBytes;
+        }
+
+        synchronized DiskPartWriter attach(int partNumber) {
+            if (done) {
+                throw new NotFoundException("upload ID doesn't exist");
+            }
+            if (partNumber < 0 || partNumber >= partCount) {
+                throw new IllegalArgumentException("part number " + partNumber + " is not in [0, " + partCount + ")");
+            }
+            if (received.get(partNumber)) {
+                received.clear(partNumber);
+                receivedBytes -= partLength(partNumber);
+            }
+
+            long start = partNumber * partSize;
+            DiskPartWriter writer = new DiskPartWriter(this, partNumber, start, partLength(partNumber));
+            writers[partNumber] = writer;
+            lastActive = System.nanoTime();
+            return writer;
+        }
+
+        synchronized boolean owns(DiskPartWriter writer) {
+            lastActive = System.nanoTime();
+            return !done && writers[writer.partNumber] == writer;
+        }
+
+        synchronized void receive(DiskPartWriter writer) throws IOException {
+            if (!owns(writer)) {
+                throw new IOException("part " + writer.partNumber + " was sent again by another stream");
+            }
+            writers[writer.partNumber] = null;
+            received.set(writer.partNumber);
+            receivedBytes += writer.length;
+        }
+
+        synchronized void release(DiskPartWriter writer) {
+            if (writers[writer.partNumber] == writer) {
+                writers[writer.partNumber] = null;
+            }
+        }
+
+        // the parts are already in place, so assembling the image is only a rename.
+        // They were written out of order, so the content is hashed by reading the file once.
+        synchronized CompletableFuture<String> complete() throws IOException {
+            if (done) {
+                throw new NotFoundException("upload ID doesn't exist");
+            }
+            int missing = received.nextClearBit(0);
+            if (missing < partCount) {
+                throw new IllegalStateException("part " + missing + " wasn't received");
+            }
+
+            byte[] hash = hash(channel, size, null).digest();
+            done = true;
+            multipartUploads.remove(imageID);
+            return new PendingImage(imageID, laptopID, imageType, tempPath, channel, hash, size).submit(committer);
+        }
+
+        synchronized boolean expire(long deadline) {
+            for (DiskPartWriter writer : writers) {
+                if (writer != null) {
+                    return false;
+                }
+            }
+            if (lastActive > deadline) {
+                return false;
+            }
+            done = true;
+            try {
+                channel.close();
+                Files.deleteIfExists(tempPath);
+            } catch (IOException e) {
+                // the temporary file is only garbage, it is never read
+            }
+            return true;
+        }
+
+        private long partLength(int partNumber) {
+            return Math.min(partSize, size - partNumber * partSize);
+        }
+    }
+
+    // copies the chunks into a pooled direct buffer and writes the buffer out whenever it is full
+    private abstract class PooledImageWriter implements ImageWriter {
+        protected ByteBuffer buffer;
+        protected long size;
+        protected boolean done;
+
+        PooledImageWriter(long size) {
+            this.size = size;
+            this.buffer = buffers.acquire();
+        }
+
+        // most bytes the writer accepts in total
+        protected abstract long limit();
+
+        // writes the flipped buffer out, the caller clears it
+        protected abstract void writeBuffer() throws IOException;
+
+        @Override
+        public void write(ByteString chunk) throws IOException {
+            if (done) {
+                throw new IOException("image is already committed or aborted");
+            }
+            if (size + chunk.size() > limit()) {
+                throw new ImageTooLargeException("image is too large: " + (size + chunk.size()));
+            }
+
+            // copies the chunk in buffer-sized pieces, substring doesn't copy
+            int offset = 0;
+            while (offset < chunk.size()) {
+                int n = Math.min(buffer.remaining(), chunk.size() - offset);
+                chunk.substring(offset, offset + n).copyTo(buffer);
+                offset += n;
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+            }
+            size += chunk.size();
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        protected void flush() throws IOException {
+            buffer.flip();
+            try {
+                writeBuffer();
+            } finally {
+                buffer.clear();
+            }
+        }
+
+        protected void finish() {
+            done = true;
+            buffers.release(buffer);
+            buffer = null;
+        }
+    }
+
+    private class DiskImageWriter extends PooledImageWriter {
+        private final UploadSession session;
+        private final FileChannel channel;
+
+        DiskImageWriter(UploadSession session, FileChannel channel, long offset) {
+            super(offset);
+            this.session = session;
+            this.channel = channel;
+        }
+
+        @Override
+        protected long limit() {
+            return maxImageSize;
+        }
+
+        @Override
+        protected void writeBuffer() throws IOException {
+            session.flush(this, buffer);
+        }
+
+        // the session adds every buffer written out, including those of the streams before a resume
+        @Override
+        public int crc32c() throws IOException {
+            if (done) {
+                throw new IOException("image is already committed or aborted");
+            }
+            flush();
+            return session.crc32c();
+        }
+
+        @Override
+        public CompletableFuture<String> commitAsync() throws IOException {
+            if (done) {
+                throw new IOException("image is already committed or aborted");
+            }
+
+            CompletableFuture<String> imageID;
+            try {
+                flush();
+                imageID = session.commit(this);
+            } catch (IOException e) {
+                abort();
+                throw e;
+            }
+            finish();
+            return imageID;
+        }
+
+        @Override
+        public void abort() {
+            end(false);
+        }
+
+        @Override
+        public void suspend() {
+            end(true);
+        }
+
+        // called by the session when another stream resumes the upload
+        void detach() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing is written through the channel anymore
+            }
+        }
+
+        private void end(boolean keep) {
+            if (done) {
+                return;
+            }
+            if (keep) {
+                try {
+                    flush();
+                } catch (IOException e) {
+                    // the upload resumes from the last offset that made it to the file
+                }
+            }
+            finish();
+            detach();
+            session.release(this, keep);
+        }
+    }
+
+    // a part is always sent whole, so a broken part stream leaves nothing to keep
+    private class DiskPartWriter extends PooledImageWriter {
+        private final MultipartUpload upload;
+        private final int partNumber;
+        private final long start;
+        private final long length;
+        private final CRC32C crc;
+        private long written; // bytes of the part in the file
+
+        DiskPartWriter(MultipartUpload upload, int partNumber, long start, long length) {
+            super(0);
+            this.upload = upload;
+            this.partNumber = partNumber;
+            this.start = start;
+            this.length = length;
+            this.crc = new CRC32C();
+        }
+
+        @Override
+        protected long limit() {
+            return length;
+        }
+
+        // positional writes don't lock the upload, so the parts are written in parallel
+        @Override
+        protected void writeBuffer() throws IOException {
+            if (!upload.owns(this)) {
+                throw new IOException("part " + partNumber + " was sent again by another stream");
+            }
+            crc.update(buffer.duplicate());
+            while (buffer.hasRemaining()) {
+                written += upload.channel.write(buffer, start + written);
+            }
+        }
+
+        @Override
+        public int crc32c() throws IOException {
+            if (done) {
+                throw new IOException("part is already committed or aborted");
+            }
+            flush();
+            return (int) crc.getValue();
+        }
+
+        // the part only becomes durable when the upload is completed, which fsyncs the whole file
+        @Override
+        public CompletableFuture<String> commitAsync() throws IOException {
+            if (done) {
+                throw new IOException("part is already committed or aborted");
+            }
+            if (size != length) {
+                throw new IllegalStateException("part " + partNumber + " has " + size + " of its " + length + " bytes");
+            }
+
+            try {
+                flush();
+                upload.receive(this);
+            } finally {
+                abort();
+            }
+            return CompletableFuture.completedFuture(upload.imageID);
+        }
+
+        @Override
+        public void abort() {
+            if (done) {
+                return;
+            }
+            finish();
+            upload.release(this);
+        }
+
+        @Override
+        public void suspend() {
+            abort();
+        }
+    }
 }
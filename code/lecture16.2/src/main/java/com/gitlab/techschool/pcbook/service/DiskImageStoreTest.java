@@ -0,0 +1,426 @@
+package com.gitlab.techschool.pcbook.service;
+
+import com.google.protobuf.ByteString;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class DiskImageStoreTest {
+    private Path folder;
+
+    @Before
+    public void setUp() throws Exception {
+        folder = Files.createTempDirectory("images");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try (Stream<Path> paths = Files.walk(folder)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void writeImageInChunks() throws Exception {
+        DiskImageStore store = new DiskImageStore(folder.toString());
+        byte[] image = new byte[300_000]; // several buffers, not a multiple of the buffer size
+        new Random(7).nextBytes(image);
+
+        ImageWriter writer = store.Create("laptop", ".jpg");
+        for (int offset = 0; offset < image.length; offset += 10_000) {
+            writer.write(ByteString.copyFrom(image, offset, Math.min(10_000, image.length - offset)));
+        }
+        assertEquals(image.length, writer.size());
+        assertEquals(1, countFiles()); // only the temporary file so far
+
+        String imageID = writer.commit();
+        ImageMetadata metadata = store.Find(imageID);
+        assertNotNull(metadata);
+        assertEquals("laptop", metadata.getLaptopID());
+        assertArrayEquals(image, Files.readAllBytes(Paths.get(metadata.getPath())));
+        assertEquals(1, countFiles());
+        assertEquals(1, store.getBuffers().getIdleCount());
+    }
+
+    @Test
+    public void rejectImageOverTheLimit() throws Exception {
+        DiskImageStore store = new DiskImageStore(folder.toString(), 1000);
+
+        ImageWriter writer = store.Create("laptop", ".jpg");
+        writer.write(ByteString.copyFrom(new byte[600]));
+        try {
+            writer.write(ByteString.copyFrom(new byte[600]));
+            fail("image over the limit was accepted");
+        } catch (ImageTooLargeException e) {
+            // expected
+        }
+        assertEquals(600, writer.size());
+
+        writer.abort();
+        assertEquals(0, countFiles());
+        assertEquals(1, store.getBuffers().getIdleCount());
+    }
+
+    @Test
+    public void resumeUploadFromStoredOffset() throws Exception {
+        DiskImageStore store = new DiskImageStore(folder.toString());
+        byte[] image = new byte[200_000];
+        new Random(11).nextBytes(image);
+
+        String uploadID = store.Initiate("laptop", ".jpg");
+        assertEquals(0, store.Query(uploadID));
+
+        ImageWriter writer = store.Resume(uploadID, 0);
+        writer.write(ByteString.copyFrom(image, 0, 120_000));
+        writer.suspend(); // the stream broke
+        assertEquals(120_000, store.Query(uploadID));
+
+        try {
+            store.Resume(uploadID, 120_001);
+            fail("offset past the stored bytes was accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        // the client may resend a little more than needed
+        writer = store.Resume(uploadID, 100_000);
+        assertEquals(100_000, store.Query(uploadID));
+        writer.write(ByteString.copyFrom(image, 100_000, image.length - 100_000));
+        // the bytes kept from the broken stream are counted again
+        assertEquals(Crc32c.of(ByteString.copyFrom(image)), writer.crc32c());
+        String imageID = writer.commit();
+
+        assertEquals(uploadID, imageID);
+        assertArrayEquals(image, Files.readAllBytes(Paths.get(store.Find(imageID).getPath())));
+        assertEquals(sha256(image), store.Find(imageID).getHash());
+        assertEquals(1, countFiles());
+        try {
+            store.Query(uploadID);
+            fail("committed upload can still be queried");
+        } catch (NotFoundException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void resumedUploadTakesOverTheOldStream() throws Exception {
+        DiskImageStore store = new DiskImageStore(folder.toString());
+        String uploadID = store.Initiate("laptop", ".jpg");
+
+        ImageWriter stale = store.Resume(uploadID, 0);
+        stale.write(ByteString.copyFrom(new byte[100_000]));
+
+        ImageWriter writer = store.Resume(uploadID, store.Query(uploadID));
+        try {
+            stale.write(ByteString.copyFrom(new byte[100_000]));
+            fail("stale stream could still write");
+        } catch (IOException e) {
+            // expected
+        }
+        stale.suspend();
+
+        writer.write(ByteString.copyFrom(new byte[1000]));
+        String imageID = writer.commit();
+        assertEquals(64 * 1024 + 1000, Files.size(Paths.get(store.Find(imageID).getPath())));
+    }
+
+    @Test
+    public void expireIdleUploads() throws Exception {
+        DiskImageStore store = new DiskImageStore(folder.toString(), 1000, 0);
+        String uploadID = store.Initiate("laptop", ".jpg");
+        store.Resume(uploadID, 0).write(ByteString.copyFrom(new byte[10]));
+
+        store.expireSessions(System.nanoTime());
+        assertEquals(0, store.Query(uploadID)); // still streaming
+
+        String idle = store.Initiate("laptop", ".jpg"); // expires the other sessions
+        store.Query(uploadID);
+        store.expireSessions(System.nanoTime() + 1);
+        try {
+            store.Query(idle);
+            fail("idle upload didn't expire");
+        } catch (NotFoundException e) {
+            // expected
+        }
+        assertEquals(1, countFiles());
+    }
+
+    @Test
+    public void assembleMultipartUpload() throws Exception {
+        DiskImageStore store = new DiskImageStore(folder.toString());
+        byte[] image = new byte[1_000_000];
+        new Random(5).nextBytes(image);
+        int partSize = 300_000;
+
+        String uploadID = store.InitiateMultipart("laptop", ".mp4", image.length, partSize);
+
+        // parts arrive out of order and on their own threads
+        List<Thread> threads = new ArrayList<>();
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        for (int part = 3; part >= 0; part--) {
+            int partNumber = part;
+            Thread thread = new Thread(() -> {
+                try {
+                    ImageWriter writer = store.WritePart(uploadID, partNumber);
+                    int start = partNumber * partSize;
+                    int end = Math.min(start + partSize, image.length);
+                    for (int offset = start; offset < end; offset += 7_000) {
+                        writer.write(ByteString.copyFrom(image, offset, Math.min(7_000, end - offset)));
+                    }
+                    assertEquals(uploadID, writer.commit());
+                } catch (Throwable t) {
+                    errors.add(t);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(Collections.emptyList(), errors);
+        assertEquals(image.length, store.Query(uploadID));
+
+        String imageID = store.Complete(uploadID).get();
+        assertArrayEquals(image, Files.readAllBytes(Paths.get(store.Find(imageID).getPath())));
+        assertEquals(1, countFiles());
+        assertTrue(store.getBuffers().getIdleCount() >= 1); // the parts gave their buffers back
+    }
+
+    @Test
+    public void rejectIncompleteMultipartUpload() throws Exception {
+        DiskImageStore store = new DiskImageStore(folder.toString());
+        String uploadID = store.InitiateMultipart("laptop", ".mp4", 250, 100);
+
+        ImageWriter writer = store.WritePart(uploadID, 2);
+        writer.write(ByteString.copyFrom(new byte[40]));
+        try {
+            writer.commit();
+            fail("short part was accepted");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        writer = store.WritePart(uploadID, 0);
+        writer.write(ByteString.copyFrom(new byte[100]));
+        writer.commit();
+        writer = store.WritePart(uploadID, 2);
+        writer.write(ByteString.copyFrom(new byte[50]));
+        writer.commit();
+        assertEquals(150, store.Query(uploadID));
+
+        try {
+            store.Complete(uploadID);
+            fail("upload with a missing part was completed");
+        } catch (IllegalStateException e) {
+            assertEquals("part 1 wasn't received", e.getMessage());
+        }
+        try {
+            store.WritePart(uploadID, 3);
+            fail("part past the end was accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void splitIntoHugeParts() throws Exception {
+        DiskImageStore store = new DiskImageStore(folder.toString());
+        try {
+            store.InitiateMultipart("laptop", ".jpg", 100, 0);
+            fail("empty parts were accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(0, countFiles());
+
+        // a part as large as the image can be, the whole image is one part
+        String uploadID = store.InitiateMultipart("laptop", ".jpg", 100, Long.MAX_VALUE);
+        try {
+            store.Complete(uploadID);
+            fail("upload without its part was completed");
+        } catch (IllegalStateException e) {
+            assertEquals("part 0 wasn't received", e.getMessage());
+        }
+
+        byte[] image = new byte[100];
+        new Random(5).nextBytes(image);
+        ImageWriter writer = store.WritePart(uploadID, 0);
+        writer.write(ByteString.copyFrom(image));
+        writer.commit();
+        String imageID = store.Complete(uploadID).get(5, TimeUnit.SECONDS);
+        assertArrayEquals(image, Files.readAllBytes(Paths.get(store.Find(imageID).getPath())));
+    }
+
+    @Test
+    public void storeDuplicateImagesOnce() throws Exception {
+        DiskImageStore store = new DiskImageStore(folder.toString());
+        byte[] image = new byte[150_000];
+        new Random(13).nextBytes(image);
+
+        ImageWriter writer = store.Create("laptop-1", ".jpg");
+        writer.write(ByteString.copyFrom(image));
+        String first = writer.commit();
+
+        // the same image sent as parts by another vendor
+        String uploadID = store.InitiateMultipart("laptop-2", ".jpg", image.length, 100_000);
+        writer = store.WritePart(uploadID, 1);
+        writer.write(ByteString.copyFrom(image, 100_000, 50_000));
+        writer.commit();
+        writer = store.WritePart(uploadID, 0);
+        writer.write(ByteString.copyFrom(image, 0, 100_000));
+        writer.commit();
+        String second = store.Complete(uploadID).get();
+
+        ImageMetadata firstMetadata = store.Find(first);
+        ImageMetadata secondMetadata = store.Find(second);
+        assertNotEquals(first, second);
+        assertEquals("laptop-2", secondMetadata.getLaptopID());
+        assertEquals(sha256(image), firstMetadata.getHash());
+        assertEquals(firstMetadata.getHash(), secondMetadata.getHash());
+        assertEquals(firstMetadata.getPath(), secondMetadata.getPath());
+        assertEquals(1, store.getBlobCount());
+        assertEquals(image.length, store.getBlobBytes());
+        assertEquals(1, countFiles());
+
+        store.Delete(first);
+        assertNull(store.Find(first));
+        assertArrayEquals(image, Files.readAllBytes(Paths.get(secondMetadata.getPath())));
+
+        store.Delete(second);
+        assertEquals(0, store.getBlobCount());
+        assertEquals(0, countFiles());
+    }
+
+    @Test
+    public void readImageRanges() throws Exception {
+        DiskImageStore store = new DiskImageStore(folder.toString());
+        byte[] image = new byte[100_000];
+        new Random(19).nextBytes(image);
+        ImageWriter writer = store.Create("laptop", ".jpg");
+        writer.write(ByteString.copyFrom(image));
+        String imageID = writer.commit();
+
+        try (ImageReader reader = store.Open(imageID)) {
+            assertEquals(image.length, reader.size());
+            assertEquals(ByteString.copyFrom(image, 1000, 5000), reader.read(1000, 5000));
+            assertEquals(ByteString.copyFrom(image, 0, 10), reader.read(0, 10)); // going back remaps
+            assertEquals(ByteString.copyFrom(image, 99_000, 1000), reader.read(99_000, 5000));
+            assertTrue(reader.read(image.length, 10).isEmpty());
+        }
+
+        // a reader keeps working after its image was deleted
+        ImageReader reader = store.Open(imageID);
+        ByteString chunk = reader.read(0, image.length);
+        store.Delete(imageID);
+        reader.close();
+        assertEquals(ByteString.copyFrom(image), chunk);
+    }
+
+    @Test
+    public void reloadImagesAfterRestart() throws Exception {
+        DiskImageStore store = new DiskImageStore(folder.toString());
+        String[] imageIDs = new String[3];
+        for (int i = 0; i < imageIDs.length; i++) {
+            ImageWriter writer = store.Create(i < 2 ? "laptop-1" : "laptop-2", ".jpg");
+            writer.write(ByteString.copyFrom(new byte[]{(byte) (i % 2)}));
+            imageIDs[i] = writer.commit();
+        }
+        store.Delete(imageIDs[1]);
+        // an upload in progress and a record torn by a crash
+        store.Create("laptop-1", ".png").write(ByteString.copyFrom(new byte[10]));
+        store.close();
+        Files.write(folder.resolve("images.idx"), new byte[]{0, 0, 0, 42, 1, 10}, StandardOpenOption.APPEND);
+
+        store = new DiskImageStore(folder.toString());
+        ImageMetadata metadata = store.Find(imageIDs[0]);
+        assertEquals("laptop-1", metadata.getLaptopID());
+        assertEquals(".jpg", metadata.getType());
+        assertEquals(1, metadata.getSize());
+        assertArrayEquals(new byte[]{0}, Files.readAllBytes(Paths.get(metadata.getPath())));
+        assertNull(store.Find(imageIDs[1]));
+
+        assertEquals(1, store.FindByLaptop("laptop-1").size());
+        assertEquals(imageIDs[2], store.FindByLaptop("laptop-2").get(0).getID());
+        assertTrue(store.FindByLaptop("laptop-3").isEmpty());
+
+        // images 0 and 2 share a blob, its references were counted again
+        assertEquals(1, store.getBlobCount());
+        assertEquals(1, countFiles());
+        store.Delete(imageIDs[0]);
+        assertEquals(1, countFiles());
+        store.Delete(imageIDs[2]);
+        assertEquals(0, countFiles());
+
+        ImageWriter writer = store.Create("laptop-3", ".jpg");
+        writer.write(ByteString.copyFrom(new byte[5]));
+        String imageID = writer.commit();
+        store.close();
+        try (DiskImageStore reopened = new DiskImageStore(folder.toString())) {
+            assertEquals(imageID, reopened.FindByLaptop("laptop-3").get(0).getID());
+        }
+    }
+
+    @Test
+    public void commitConcurrentUploadsInBatches() throws Exception {
+        // at most 8 images per index fsync, a batch waits up to a second for more commits
+        DiskImageStore store = new DiskImageStore(folder.toString(), DiskImageStore.DEFAULT_MAX_IMAGE_SIZE,
+                DiskImageStore.DEFAULT_SESSION_TTL, 8, TimeUnit.SECONDS.toNanos(1));
+        List<CompletableFuture<String>> imageIDs = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            ImageWriter writer = store.Create("laptop-" + (i % 4), ".jpg");
+            writer.write(ByteString.copyFrom(new byte[]{(byte) i, 1, 2, 3}));
+            imageIDs.add(writer.commitAsync());
+        }
+
+        for (CompletableFuture<String> imageID : imageIDs) {
+            assertNotNull(store.Find(imageID.get(5, TimeUnit.SECONDS)));
+        }
+        GroupCommitter<DiskImageStore.PendingImage, String> committer = store.getCommitter();
+        assertEquals(20, committer.getCommitCount());
+        assertTrue(committer.getBatchCount() >= 3);
+        assertTrue(committer.getBatchCount() < 20);
+        assertEquals(20, countFiles());
+        store.close();
+
+        try (DiskImageStore reopened = new DiskImageStore(folder.toString())) {
+            for (CompletableFuture<String> imageID : imageIDs) {
+                assertNotNull(reopened.Find(imageID.get()));
+            }
+            assertEquals(5, reopened.FindByLaptop("laptop-0").size());
+        }
+    }
+
+    private long countFiles() throws IOException {
+        try (Stream<Path> files = Files.walk(folder)) {
+            return files.filter(Files::isRegularFile)
+                    .filter(path -> !path.getFileName().toString().equals("images.idx"))
+                    .count();
+        }
+    }
+
+    private static String sha256(byte[] bytes) throws Exception {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-256").digest(bytes)) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
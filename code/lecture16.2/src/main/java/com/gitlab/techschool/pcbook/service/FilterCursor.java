@@ -0,0 +1,106 @@
+package com.gitlab.techschool.pcbook.service;
+
+import com.github.techschool.pcbook.pb.Filter;
+import com.github.techschool.pcbook.pb.Laptop;
+import com.github.techschool.pcbook.pb.SearchPlan;
+import com.google.protobuf.ByteString;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+// Cursor over the candidates of a search that returns those matching the filter.
+// A null candidate is one that was looked at but isn't visible to the search.
+public class FilterCursor implements LaptopCursor {
+    private final Iterator<? extends StoredLaptop> candidates;
+    private final Filter filter;
+    private final SearchPlan plan;
+    private final LaptopProjection projection;
+    private final Runnable onClose;
+
+    private StoredLaptop next;
+    private long scanned;
+    private long returned;
+    private boolean exhausted;
+    private boolean closed;
+
+    public FilterCursor(Iterator<? extends StoredLaptop> candidates, Filter filter, SearchPlan plan, LaptopProjection projection,
+                        Runnable onClose) {
+        this.candidates = candidates;
+        this.filter = filter;
+        this.plan = plan;
+        this.projection = projection;
+        this.onClose = onClose;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return scan(false, 0);
+    }
+
+    @Override
+    public boolean hasNext(long deadline) {
+        return scan(true, deadline);
+    }
+
+    @Override
+    public boolean isExhausted() {
+        return next == null && (exhausted || closed);
+    }
+
+    // the deadline is checked for every candidate, a sparse filter may go through many without a match
+    private boolean scan(boolean bounded, long deadline) {
+        while (next == null && !closed) {
+            if (!candidates.hasNext()) {
+                exhausted = true;
+                break;
+            }
+            if (bounded && System.nanoTime() - deadline >= 0) {
+                break;
+            }
+            StoredLaptop candidate = candidates.next();
+            scanned++;
+            if (candidate != null && candidate.matches(filter)) {
+                next = candidate;
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public Laptop next() {
+        return projection.project(advance().getLaptop());
+    }
+
+    @Override
+    public ByteString nextSerialized() {
+        return projection.project(advance().getBytes());
+    }
+
+    private StoredLaptop advance() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        StoredLaptop laptop = next;
+        next = null;
+        returned++;
+        return laptop;
+    }
+
+    @Override
+    public SearchPlan getPlan() {
+        return plan.toBuilder()
+                .setRowsScanned(scanned)
+                .setRowsReturned(returned)
+                .build();
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        next = null;
+        onClose.run();
+    }
+}
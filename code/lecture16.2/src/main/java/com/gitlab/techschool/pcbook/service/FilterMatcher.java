@@ -0,0 +1,143 @@
+package com.gitlab.techschool.pcbook.service;
+
+import com.github.techschool.pcbook.pb.CPU;
+import com.github.techschool.pcbook.pb.Filter;
+import com.github.techschool.pcbook.pb.Laptop;
+import com.github.techschool.pcbook.pb.Memory;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+public class FilterMatcher {
+    // constant tags of the fields a filter looks at, so that they can be switched on
+    private static final int PRICE_USD_TAG = (Laptop.PRICE_USD_FIELD_NUMBER << 3) | WireFormat.WIRETYPE_FIXED64;
+    private static final int CPU_TAG = (Laptop.CPU_FIELD_NUMBER << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+    private static final int RAM_TAG = (Laptop.RAM_FIELD_NUMBER << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+    private static final int NUMBER_CORES_TAG = (CPU.NUMBER_CORES_FIELD_NUMBER << 3) | WireFormat.WIRETYPE_VARINT;
+    private static final int MIN_GHZ_TAG = (CPU.MIN_GHZ_FIELD_NUMBER << 3) | WireFormat.WIRETYPE_FIXED64;
+    private static final int MEMORY_VALUE_TAG = (Memory.VALUE_FIELD_NUMBER << 3) | WireFormat.WIRETYPE_VARINT;
+    private static final int MEMORY_UNIT_TAG = (Memory.UNIT_FIELD_NUMBER << 3) | WireFormat.WIRETYPE_VARINT;
+
+    private FilterMatcher() {
+    }
+
+    public static boolean isQualified(Filter filter, Laptop laptop) {
+        if (laptop.getPriceUsd() > filter.getMaxPriceUsd()) {
+            return false;
+        }
+
+        if (laptop.getCpu().getNumberCores() < filter.getMinCpuCores()) {
+            return false;
+        }
+
+        if (laptop.getCpu().getMinGhz() < filter.getMinCpuGhz()) {
+            return false;
+        }
+
+        if (toBit(laptop.getRam()) < toBit(filter.getMinRam())) {
+            return false;
+        }
+
+        return true;
+    }
+
+    // same check on a serialized laptop: only the four fields it needs are read, all others are skipped by tag.
+    // Repeated occurrences of a field merge like the parser does, the last value wins.
+    // Bytes that don't parse throw rather than reading as a laptop that doesn't match.
+    public static boolean isQualified(Filter filter, ByteString laptop) {
+        double priceUsd = 0;
+        int numberCores = 0;
+        double minGhz = 0;
+        long ramValue = 0;
+        int ramUnit = 0;
+
+        try {
+            CodedInputStream input = laptop.newCodedInput();
+            for (int tag = input.readTag(); tag != 0; tag = input.readTag()) {
+                switch (tag) {
+                    case PRICE_USD_TAG:
+                        priceUsd = input.readDouble();
+                        break;
+                    case CPU_TAG: {
+                        int limit = input.pushLimit(input.readRawVarint32());
+                        for (int cpuTag = input.readTag(); cpuTag != 0; cpuTag = input.readTag()) {
+                            if (cpuTag == NUMBER_CORES_TAG) {
+                                numberCores = input.readUInt32();
+                            } else if (cpuTag == MIN_GHZ_TAG) {
+                                minGhz = input.readDouble();
+                            } else {
+                                input.skipField(cpuTag);
+                            }
+                        }
+                        input.popLimit(limit);
+                        break;
+                    }
+                    case RAM_TAG: {
+                        int limit = input.pushLimit(input.readRawVarint32());
+                        for (int ramTag = input.readTag(); ramTag != 0; ramTag = input.readTag()) {
+                            if (ramTag == MEMORY_VALUE_TAG) {
+                                ramValue = input.readUInt64();
+                            } else if (ramTag == MEMORY_UNIT_TAG) {
+                                ramUnit = input.readEnum();
+                            } else {
+                                input.skipField(ramTag);
+                            }
+                        }
+                        input.popLimit(limit);
+                        break;
+                    }
+                    default:
+                        input.skipField(tag);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("cannot parse laptop", e);
+        }
+
+        // the same comparisons as on the object, so that a NaN compares the same way
+        if (priceUsd > filter.getMaxPriceUsd()) {
+            return false;
+        }
+
+        if (numberCores < filter.getMinCpuCores()) {
+            return false;
+        }
+
+        if (minGhz < filter.getMinCpuGhz()) {
+            return false;
+        }
+
+        Memory.Unit unit = Memory.Unit.forNumber(ramUnit);
+        if (toBit(ramValue, unit == null ? Memory.Unit.UNKNOWN : unit) < toBit(filter.getMinRam())) {
+            return false;
+        }
+
+        return true;
+    }
+
+    public static long toBit(Memory memory) {
+        return toBit(memory.getValue(), memory.getUnit());
+    }
+
+    private static long toBit(long value, Memory.Unit unit) {
+        switch (unit) {
+            case BIT:
+                return value;
+            case BYTE:
+                return value << 3; // 1 BYTE = 8 BIT = 2^3 BIT
+            case KILOBYTE:
+                return value << 13; // 1 KILOBYTE = 1024 BYTE = 2^10 BYTE = 2^13 BIT
+            case MEGABYTE:
+                return value << 23;
+            case GIGABYTE:
+                return value << 33;
+            case TERABYTE:
+                return value << 43;
+            default:
+                return 0;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.gitlab.techschool.pcbook.service;
+
+import com.github.techschool.pcbook.pb.CPU;
+import com.github.techschool.pcbook.pb.Filter;
+import com.github.techschool.pcbook.pb.Laptop;
+import com.github.techschool.pcbook.pb.Memory;
+import com.gitlab.techschool.pcbook.sample.Generator;
+import com.google.protobuf.ByteString;
+import org.junit.Test;
+
+import java.io.UncheckedIOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FilterMatcherTest {
+
+    @Test
+    public void serializedLaptopMatchesLikeParsedLaptop() {
+        Generator generator = new Generator();
+        Random random = new Random(42);
+
+        int matches = 0;
+        for (int i = 0; i < 2000; i++) {
+            Laptop laptop = generator.NewLaptop();
+            Filter filter = Filter.newBuilder()
+                    .setMaxPriceUsd(1500 + random.nextInt(2000))
+                    .setMinCpuCores(random.nextInt(8))
+                    .setMinCpuGhz(2.0 + random.nextDouble())
+                    .setMinRam(Memory.newBuilder().setValue(random.nextInt(32)).setUnit(Memory.Unit.GIGABYTE))
+                    .build();
+
+            boolean expected = FilterMatcher.isQualified(filter, laptop);
+            assertEquals(expected, FilterMatcher.isQualified(filter, laptop.toByteString()));
+            if (expected) {
+                matches++;
+            }
+        }
+        assertTrue(matches > 0);
+    }
+
+    @Test
+    public void repeatedFieldsMergeLikeTheParser() throws Exception {
+        Laptop first = Laptop.newBuilder()
+                .setPriceUsd(1000)
+                .setCpu(CPU.newBuilder().setNumberCores(2).setMinGhz(3.0))
+                .build();
+        Laptop second = Laptop.newBuilder()
+                .setPriceUsd(2000)
+                .setCpu(CPU.newBuilder().setNumberCores(8))
+                .build();
+        ByteString bytes = first.toByteString().concat(second.toByteString());
+        Laptop merged = Laptop.parseFrom(bytes);
+
+        Filter filter = Filter.newBuilder().setMaxPriceUsd(1500).build();
+        assertFalse(FilterMatcher.isQualified(filter, merged));
+        assertFalse(FilterMatcher.isQualified(filter, bytes));
+
+        filter = Filter.newBuilder().setMaxPriceUsd(2000).setMinCpuCores(8).setMinCpuGhz(3.0).build();
+        assertTrue(FilterMatcher.isQualified(filter, merged));
+        assertTrue(FilterMatcher.isQualified(filter, bytes));
+    }
+
+    @Test
+    public void notANumberComparesLikeOnTheObject() {
+        Laptop laptop = Laptop.newBuilder()
+                .setPriceUsd(Double.NaN)
+                .setCpu(CPU.newBuilder().setNumberCores(4).setMinGhz(Double.NaN))
+                .build();
+        Filter[] filters = {
+                Filter.newBuilder().setMaxPriceUsd(1500).build(),
+                Filter.newBuilder().setMaxPriceUsd(Double.NaN).build(),
+                Filter.newBuilder().setMaxPriceUsd(1500).setMinCpuGhz(2.0).build(),
+        };
+        for (Filter filter : filters) {
+            assertEquals(FilterMatcher.isQualified(filter, laptop),
+                    FilterMatcher.isQualified(filter, laptop.toByteString()));
+        }
+        assertTrue(FilterMatcher.isQualified(filters[0], laptop.toByteString()));
+    }
+
+    @Test(expected = UncheckedIOException.class)
+    public void failOnBytesThatDontParse() {
+        Laptop laptop = Laptop.newBuilder().setPriceUsd(1000).setCpu(CPU.newBuilder().setNumberCores(4)).build();
+        ByteString bytes = laptop.toByteString();
+        // the CPU message is cut short
+        FilterMatcher.isQualified(Filter.getDefaultInstance(), bytes.substring(0, bytes.size() - 1));
+    }
+}
@@ -0,0 +1,40 @@
+package com.gitlab.techschool.pcbook.service;
+
+import java.util.concurrent.ConcurrentSkipListMap;
+
+// Exact value counts for a categorical field with a small domain (number of cores...).
+public class FrequencyTable<K extends Comparable<K>> {
+    private final ConcurrentSkipListMap<K, Long> counts;
+
+    public FrequencyTable() {
+        counts = new ConcurrentSkipListMap<>();
+    }
+
+    public void add(K value) {
+        counts.merge(value, 1L, Long::sum);
+    }
+
+    public void remove(K value) {
+        counts.computeIfPresent(value, (k, count) -> count <= 1 ? null : count - 1);
+    }
+
+    public int distinct() {
+        return counts.size();
+    }
+
+    public long count(K value) {
+        return counts.getOrDefault(value, 0L);
+    }
+
+    public long countAtLeast(K value) {
+        long total = 0;
+        for (long count : counts.tailMap(value, true).values()) {
+            total += count;
+        }
+        return total;
+    }
+
+    public int distinctAtLeast(K value) {
+        return counts.tailMap(value, true).size();
+    }
+}
@@ -0,0 +1,172 @@
+package com.gitlab.techschool.pcbook.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+// Makes the commits of concurrent callers durable in batches: a single thread takes whatever
+// is waiting, up to maxBatchSize, and hands it to the batch writer, which pays one fsync for all of it.
+// The commits arriving during an fsync form the next batch, so batches grow with the load.
+// A linger makes the thread wait for more commits before writing a batch that isn't full,
+// trading the latency of a commit for fewer fsyncs.
+// Closing lets the thread write what was submitted before, a commit submitted after fails.
+public class GroupCommitter<T, R> implements Closeable {
+    private static final Logger logger = Logger.getLogger(GroupCommitter.class.getName());
+
+    private final int maxBatchSize;
+    private final long lingerNanos;
+    private final BatchWriter<T, R> writer;
+    private final BlockingQueue<Pending<T, R>> queue;
+    private final Pending<T, R> stop; // queued last by close, the thread exits once it takes it
+    private final Thread thread;
+    private final AtomicLong batches;
+    private final AtomicLong commits;
+    private boolean closed; // guarded by this
+
+    public GroupCommitter(String name, int maxBatchSize, long lingerNanos, BatchWriter<T, R> writer) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("batch size must be positive: " + maxBatchSize);
+        }
+        this.maxBatchSize = maxBatchSize;
+        this.lingerNanos = lingerNanos;
+        this.writer = writer;
+        this.queue = new LinkedBlockingQueue<>();
+        this.stop = new Pending<>(null, null);
+        this.batches = new AtomicLong();
+        this.commits = new AtomicLong();
+        this.thread = new Thread(this::run, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    // completes once the batch holding the item is durable
+    public CompletableFuture<R> submit(T item) {
+        CompletableFuture<R> future = new CompletableFuture<>();
+        // checked and queued at once, an item can't land behind the stop
+        synchronized (this) {
+            if (!closed) {
+                queue.add(new Pending<>(item, future));
+                return future;
+            }
+        }
+        future.completeExceptionally(new IOException("committer is closed"));
+        return future;
+    }
+
+    public long getBatchCount() {
+        return batches.get();
+    }
+
+    public long getCommitCount() {
+        return commits.get();
+    }
+
+    // an interrupt could close the file channels of the writer in the middle of a batch,
+    // so the thread is stopped by a queued item once it has written everything before it
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (!closed) {
+                closed = true;
+                queue.add(stop);
+            }
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        // only left if the thread was interrupted by someone else
+        List<Pending<T, R>> left = drain();
+        left.remove(stop);
+        fail(left, new IOException("committer is closed"));
+    }
+
+    private void run() {
+        List<Pending<T, R>> batch = new ArrayList<>(maxBatchSize);
+        boolean stopping = false;
+        while (!stopping) {
+            try {
+                Pending<T, R> first = queue.take();
+                if (first == stop) {
+                    return;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + lingerNanos;
+                while (batch.size() < maxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    Pending<T, R> next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    if (next == stop) {
+                        stopping = true;
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                fail(batch, new IOException("committer thread was interrupted"));
+                return;
+            }
+
+            write(batch);
+            batch.clear();
+        }
+    }
+
+    private void write(List<Pending<T, R>> batch) {
+        List<T> items = new ArrayList<>(batch.size());
+        List<CompletableFuture<R>> futures = new ArrayList<>(batch.size());
+        for (Pending<T, R> pending : batch) {
+            items.add(pending.item);
+            futures.add(pending.future);
+        }
+
+        // counted first, so the callers see the batch once their futures complete
+        batches.incrementAndGet();
+        commits.addAndGet(batch.size());
+        try {
+            writer.write(items, futures);
+        } catch (Exception e) {
+            logger.warning("cannot commit a batch of " + batch.size() + ": " + e.getMessage());
+            fail(batch, e);
+        }
+    }
+
+    private List<Pending<T, R>> drain() {
+        List<Pending<T, R>> pending = new ArrayList<>();
+        queue.drainTo(pending);
+        return pending;
+    }
+
+    private static <T, R> void fail(List<Pending<T, R>> batch, Throwable cause) {
+        for (Pending<T, R> pending : batch) {
+            pending.future.completeExceptionally(cause);
+        }
+    }
+
+    public interface BatchWriter<T, R> {
+        // makes the items durable and completes their futures, in the same order.
+        // A future can be failed on its own, the ones left when an exception is thrown fail with it.
+        void write(List<T> items, List<CompletableFuture<R>> futures) throws Exception;
+    }
+
+    private static class Pending<T, R> {
+        private final T item;
+        private final CompletableFuture<R> future;
+
+        Pending(T item, CompletableFuture<R> future) {
+            this.item = item;
+            this.future = future;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.gitlab.techschool.pcbook.service;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class GroupCommitterTest {
+
+    @Test
+    public void closeLetsTheRunningBatchFinish() throws Exception {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch resume = new CountDownLatch(1);
+        AtomicBoolean interrupted = new AtomicBoolean();
+        GroupCommitter<String, String> committer = new GroupCommitter<>("test-commit", 10, 0, (items, futures) -> {
+            writing.countDown();
+            resume.await();
+            interrupted.set(Thread.currentThread().isInterrupted());
+            for (int i = 0; i < items.size(); i++) {
+                futures.get(i).complete(items.get(i));
+            }
+        });
+
+        CompletableFuture<String> first = committer.submit("first");
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+        CompletableFuture<String> second = committer.submit("second");
+        Thread closer = new Thread(committer::close);
+        closer.start();
+        // close waits for the batch instead of interrupting it
+        closer.join(100);
+        assertTrue(closer.isAlive());
+        resume.countDown();
+        closer.join(5000);
+        assertFalse(closer.isAlive());
+
+        assertEquals("first", first.get(5, TimeUnit.SECONDS));
+        assertEquals("second", second.get(5, TimeUnit.SECONDS));
+        assertFalse(interrupted.get());
+        try {
+            committer.submit("third").get(5, TimeUnit.SECONDS);
+            fail("commit after close was accepted");
+        } catch (ExecutionException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void completeEveryCommitRacingClose() throws Exception {
+        GroupCommitter<Integer, Integer> committer = new GroupCommitter<>("test-commit", 8, 0, (items, futures) -> {
+            for (int i = 0; i < items.size(); i++) {
+                futures.get(i).complete(items.get(i));
+            }
+        });
+
+        List<List<CompletableFuture<Integer>>> submitted = new ArrayList<>();
+        List<Thread> submitters = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            List<CompletableFuture<Integer>> futures = new ArrayList<>();
+            submitted.add(futures);
+            Thread submitter = new Thread(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    futures.add(committer.submit(i));
+                }
+            });
+            submitter.start();
+            submitters.add(submitter);
+        }
+        Thread.sleep(5);
+        committer.close();
+        for (Thread submitter : submitters) {
+            submitter.join();
+        }
+
+        // each commit is either written or failed, none is left waiting
+        for (List<CompletableFuture<Integer>> futures : submitted) {
+            for (CompletableFuture<Integer> future : futures) {
+                try {
+                    future.get(5, TimeUnit.SECONDS);
+                } catch (ExecutionException e) {
+                    // submitted after close
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.gitlab.techschool.pcbook.service;
+
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Equi-width histogram that can be maintained incrementally as values are added and removed.
+// Values are assumed to be spread uniformly inside a bucket when estimating partial buckets.
+public class Histogram {
+    private final double bucketWidth;
+    private final ConcurrentSkipListMap<Long, LongAdder> buckets;
+
+    public Histogram(double bucketWidth) {
+        this.bucketWidth = bucketWidth;
+        this.buckets = new ConcurrentSkipListMap<>();
+    }
+
+    public void add(double value) {
+        buckets.computeIfAbsent(bucketOf(value), k -> new LongAdder()).increment();
+    }
+
+    public void remove(double value) {
+        LongAdder counter = buckets.get(bucketOf(value));
+        if (counter != null) {
+            counter.decrement();
+        }
+    }
+
+    // estimated number of values <= x
+    public double estimateAtMost(double x) {
+        long bucket = bucketOf(x);
+        double total = sum(buckets.headMap(bucket, false));
+
+        LongAdder partial = buckets.get(bucket);
+        if (partial != null) {
+            total += partial.sum() * fractionBelow(x, bucket);
+        }
+        return total;
+    }
+
+    // estimated number of values >= x
+    public double estimateAtLeast(double x) {
+        long bucket = bucketOf(x);
+        double total = sum(buckets.tailMap(bucket, false));
+
+        LongAdder partial = buckets.get(bucket);
+        if (partial != null) {
+            total += partial.sum() * (1 - fractionBelow(x, bucket));
+        }
+        return total;
+    }
+
+    private long bucketOf(double value) {
+        return (long) Math.floor(value / bucketWidth);
+    }
+
+    private double fractionBelow(double x, long bucket) {
+        return (x - bucket * bucketWidth) / bucketWidth;
+    }
+
+    private static double sum(ConcurrentNavigableMap<Long, LongAdder> range) {
+        long total = 0;
+        for (LongAdder counter : range.values()) {
+            total += counter.sum();
+        }
+        return Math.max(total, 0);
+    }
+}
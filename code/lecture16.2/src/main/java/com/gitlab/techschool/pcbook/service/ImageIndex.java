@@ -0,0 +1,223 @@
+package com.gitlab.techschool.pcbook.service;
+
+import com.github.techschool.pcbook.pb.ImageDetails;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+// Append-only log of the image metadata, replayed with a memory-mapped scan when it is opened.
+// Record layout: int length | byte kind | ImageDetails bytes, a delete only carries the image ID.
+// A record torn by a crash in the middle of an append is cut off when the index is opened.
+public class ImageIndex implements Closeable {
+    private static final Logger logger = Logger.getLogger(ImageIndex.class.getName());
+    private static final int HEADER_SIZE = Integer.BYTES + 1;
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+
+    private final FileChannel channel;
+    private final Function<String, Path> blobPath; // content hash -> file
+    private final ConcurrentMap<String, ImageMetadata> byImage;
+    private final ConcurrentMap<String, Set<String>> byLaptop; // laptop ID -> image IDs
+    private long end;
+    private boolean torn; // bytes of a failed append may be left past the end
+    private long deadRecords;
+
+    public ImageIndex(Path path, Function<String, Path> blobPath) throws IOException {
+        this(FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE),
+                blobPath);
+    }
+
+    ImageIndex(FileChannel channel, Function<String, Path> blobPath) throws IOException {
+        this.channel = channel;
+        this.blobPath = blobPath;
+        this.byImage = new ConcurrentHashMap<>();
+        this.byLaptop = new ConcurrentHashMap<>();
+        load();
+    }
+
+    public ImageMetadata get(String imageID) {
+        return byImage.get(imageID);
+    }
+
+    public List<ImageMetadata> findByLaptop(String laptopID) {
+        Set<String> imageIDs = byLaptop.get(laptopID);
+        if (imageIDs == null) {
+            return Collections.emptyList();
+        }
+        List<ImageMetadata> images = new ArrayList<>(imageIDs.size());
+        for (String imageID : imageIDs) {
+            ImageMetadata metadata = byImage.get(imageID);
+            if (metadata != null) {
+                images.add(metadata);
+            }
+        }
+        return images;
+    }
+
+    public Collection<ImageMetadata> values() {
+        return Collections.unmodifiableCollection(byImage.values());
+    }
+
+    public int count() {
+        return byImage.size();
+    }
+
+    public synchronized long getDeadRecords() {
+        return deadRecords;
+    }
+
+    // the image is only visible once its record is on disk
+    public void put(ImageMetadata metadata) throws IOException {
+        putAll(Collections.singletonList(metadata));
+    }
+
+    // appends all the records with one write and one fsync, the images become visible together
+    public synchronized void putAll(List<ImageMetadata> images) throws IOException {
+        if (images.isEmpty()) {
+            return;
+        }
+        List<byte[]> records = new ArrayList<>(images.size());
+        int length = 0;
+        for (ImageMetadata metadata : images) {
+            byte[] bytes = metadata.toDetails().toByteArray();
+            records.add(bytes);
+            length += HEADER_SIZE + bytes.length;
+        }
+        ByteBuffer batch = ByteBuffer.allocate(length);
+        for (byte[] bytes : records) {
+            batch.putInt(1 + bytes.length).put(PUT).put(bytes);
+        }
+        batch.flip();
+        append(batch);
+
+        for (ImageMetadata metadata : images) {
+            if (byImage.put(metadata.getID(), metadata) != null) {
+                deadRecords++;
+            }
+            byLaptop.computeIfAbsent(metadata.getLaptopID(), k -> ConcurrentHashMap.newKeySet())
+                    .add(metadata.getID());
+        }
+    }
+
+    // returns the removed image, or null if there was none
+    public synchronized ImageMetadata remove(String imageID) throws IOException {
+        ImageMetadata metadata = byImage.get(imageID);
+        if (metadata == null) {
+            return null;
+        }
+        byte[] bytes = ImageDetails.newBuilder().setId(imageID).build().toByteArray();
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + bytes.length);
+        record.putInt(1 + bytes.length).put(DELETE).put(bytes).flip();
+        append(record);
+        forget(metadata);
+        deadRecords += 2;
+        return metadata;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // a failed append is cut off, otherwise its records would come back when the index is opened again
+    private void append(ByteBuffer records) throws IOException {
+        if (torn) {
+            channel.truncate(end);
+            torn = false;
+        }
+        long position = end;
+        try {
+            while (records.hasRemaining()) {
+                position += channel.write(records, position);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            try {
+                channel.truncate(end);
+            } catch (IOException truncateError) {
+                torn = true;
+                e.addSuppressed(truncateError);
+            }
+            throw e;
+        }
+        end = position;
+    }
+
+    private void forget(ImageMetadata metadata) {
+        byImage.remove(metadata.getID());
+        Set<String> imageIDs = byLaptop.get(metadata.getLaptopID());
+        if (imageIDs != null) {
+            imageIDs.remove(metadata.getID());
+            if (imageIDs.isEmpty()) {
+                byLaptop.remove(metadata.getLaptopID(), imageIDs);
+            }
+        }
+    }
+
+    private void load() throws IOException {
+        long size = channel.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("image index is larger than 2 GB: " + size);
+        }
+
+        MappedByteBuffer file = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        int position = 0;
+        int records = 0;
+        while (position + HEADER_SIZE <= size) {
+            int length = file.getInt(position);
+            if (length < 1 || position + Integer.BYTES + length > size) {
+                break;
+            }
+
+            ByteBuffer record = file.duplicate();
+            record.position(position + HEADER_SIZE);
+            record.limit(position + Integer.BYTES + length);
+            ImageDetails details;
+            try {
+                details = ImageDetails.parseFrom(record.slice());
+            } catch (InvalidProtocolBufferException e) {
+                break;
+            }
+
+            ImageMetadata previous = byImage.get(details.getId());
+            if (previous != null) {
+                forget(previous);
+                deadRecords++;
+            }
+            if (file.get(position + Integer.BYTES) == PUT) {
+                ImageMetadata metadata = new ImageMetadata(details.getId(), details.getLaptopId(),
+                        details.getImageType(), blobPath.apply(details.getSha256()).toString(),
+                        details.getSha256(), details.getSize());
+                byImage.put(metadata.getID(), metadata);
+                byLaptop.computeIfAbsent(metadata.getLaptopID(), k -> ConcurrentHashMap.newKeySet())
+                        .add(metadata.getID());
+            } else {
+                deadRecords++;
+            }
+            position += Integer.BYTES + length;
+            records++;
+        }
+
+        end = position;
+        if (end < size) {
+            logger.warning("cut the torn end of the image index at " + end + " of " + size + " bytes");
+            channel.truncate(end);
+        }
+        logger.info("loaded " + byImage.size() + " images from " + records + " index records");
+    }
+}
@@ -0,0 +1,206 @@
+package com.gitlab.techschool.pcbook.service;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.Function;
+
+import static org.junit.Assert.*;
+
+public class ImageIndexTest {
+    private static final Function<String, Path> BLOB_PATH = hash -> Paths.get("/images", hash);
+
+    private Path path;
+
+    @Before
+    public void setUp() throws Exception {
+        path = Files.createTempFile("images", ".idx");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(path);
+    }
+
+    @Test
+    public void cutOffAFailedAppend() throws Exception {
+        FailingChannel channel = new FailingChannel(
+                FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE));
+        try (ImageIndex index = new ImageIndex(channel, BLOB_PATH)) {
+            index.put(image("image-1", "laptop-with-a-long-id"));
+            long size = Files.size(path);
+
+            // the records are written but never reach the disk
+            channel.failForce = true;
+            try {
+                index.putAll(Arrays.asList(image("image-2", "laptop-with-a-long-id"),
+                        image("image-3", "laptop-with-a-long-id")));
+                fail("failed append was accepted");
+            } catch (IOException e) {
+                // expected
+            }
+            assertEquals(size, Files.size(path));
+            assertNull(index.get("image-2"));
+
+            // a shorter record leaves nothing of the failed ones behind it
+            channel.failForce = false;
+            index.put(image("image-4", "l"));
+        }
+
+        try (ImageIndex reopened = new ImageIndex(path, BLOB_PATH)) {
+            assertEquals(2, reopened.count());
+            assertNotNull(reopened.get("image-1"));
+            assertNotNull(reopened.get("image-4"));
+            assertNull(reopened.get("image-2"));
+            assertNull(reopened.get("image-3"));
+        }
+    }
+
+    @Test
+    public void cutOffAFailedAppendBeforeTheNextOne() throws Exception {
+        FailingChannel channel = new FailingChannel(
+                FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE));
+        try (ImageIndex index = new ImageIndex(channel, BLOB_PATH)) {
+            index.put(image("image-1", "laptop"));
+
+            channel.failForce = true;
+            channel.failTruncate = true;
+            try {
+                index.put(image("image-2", "laptop-with-a-long-id"));
+                fail("failed append was accepted");
+            } catch (IOException e) {
+                assertEquals(1, e.getSuppressed().length);
+            }
+
+            channel.failForce = false;
+            channel.failTruncate = false;
+            index.put(image("image-3", "l"));
+        }
+
+        try (ImageIndex reopened = new ImageIndex(path, BLOB_PATH)) {
+            assertEquals(2, reopened.count());
+            assertNull(reopened.get("image-2"));
+        }
+    }
+
+    private static ImageMetadata image(String imageID, String laptopID) {
+        return new ImageMetadata(imageID, laptopID, ".jpg", BLOB_PATH.apply("hash").toString(), "hash", 100);
+    }
+
+    // a file channel whose force and truncate fail on demand, like a full or broken disk
+    private static class FailingChannel extends FileChannel {
+        private final FileChannel channel;
+        private volatile boolean failForce;
+        private volatile boolean failTruncate;
+
+        FailingChannel(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            if (failForce) {
+                throw new IOException("no space left on device");
+            }
+            channel.force(metaData);
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            if (failTruncate) {
+                throw new IOException("input/output error");
+            }
+            channel.truncate(size);
+            return this;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return channel.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return channel.read(dsts, offset, length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return channel.write(src);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            return channel.write(srcs, offset, length);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return channel.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            channel.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return channel.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            return channel.transferFrom(src, position, count);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return channel.read(dst, position);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            return channel.write(src, position);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return channel.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return channel.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return channel.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            channel.close();
+        }
+    }
+}
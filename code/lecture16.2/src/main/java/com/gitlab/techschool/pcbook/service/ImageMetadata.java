@@ -1,14 +1,26 @@
 package com.gitlab.techschool.pcbook.service;
 
+import com.github.techschool.pcbook.pb.ImageDetails;
+
 public class ImageMetadata {
+    private String id;
     private String laptopID;
     private String type;
     private String path;
+    private String hash; // SHA-256 of the content, in hex
+    private long size;
 
-    public ImageMetadata(String laptopID, String type, String path) {
+    public ImageMetadata(String id, String laptopID, String type, String path, String hash, long size) {
+        this.id = id;
         this.laptopID = laptopID;
         this.type = type;
         this.path = path;
+        this.hash = hash;
+        this.size = size;
+    }
+
+    public String getID() {
+        return id;
     }
 
     public String getLaptopID() {
@@ -22,4 +34,22 @@ public class ImageMetadata {
     public String getPath() {
         return path;
     }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public ImageDetails toDetails() {
+        return ImageDetails.newBuilder()
+                .setId(id)
+                .setLaptopId(laptopID)
+                .setImageType(type)
+                .setSize(size)
+                .setSha256(hash)
+                .build();
+    }
 }
@@ -0,0 +1,13 @@
+package com.gitlab.techschool.pcbook.service;
+
+import com.google.protobuf.ByteString;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+public interface ImageReader extends Closeable {
+    long size();
+
+    // returns up to length bytes from offset, the bytes may be a view of the stored image
+    ByteString read(long offset, int length) throws IOException;
+}
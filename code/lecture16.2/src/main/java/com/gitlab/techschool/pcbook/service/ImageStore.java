@@ -1,8 +1,46 @@
 package com.gitlab.techschool.pcbook.service;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public interface ImageStore {
-    String Save(String laptopID, String imageType, ByteArrayOutputStream imageData) throws IOException;
+    // starts a new image, its data is written chunk by chunk and only becomes visible on commit
+    ImageWriter Create(String laptopID, String imageType) throws IOException;
+
+    // starts an upload that outlives the stream writing it and returns its ID
+    String Initiate(String laptopID, String imageType) throws IOException;
+
+    // continues an upload from offset, which can't be past the bytes already stored.
+    // Throws NotFoundException for an unknown upload and IllegalArgumentException for a bad offset.
+    ImageWriter Resume(String uploadID, long offset) throws IOException;
+
+    // returns the bytes stored for an upload, throws NotFoundException for an unknown upload
+    long Query(String uploadID);
+
+    // starts an upload of size bytes sent as parts of partSize bytes, in any order and in parallel
+    String InitiateMultipart(String laptopID, String imageType, long size, long partSize) throws IOException;
+
+    // starts writing a part of a multipart upload, sending a part again replaces it.
+    // The commit of the writer returns the upload ID and throws IllegalStateException if the part is short.
+    ImageWriter WritePart(String uploadID, int partNumber) throws IOException;
+
+    // turns the parts into the image, the future completes with its ID once it is on disk.
+    // Throws IllegalStateException if a part is missing.
+    CompletableFuture<String> Complete(String uploadID) throws IOException;
+
+    // returns null for an unknown image
+    ImageMetadata Find(String imageID);
+
+    List<ImageMetadata> FindByLaptop(String laptopID);
+
+    // opens an image for reading, throws NotFoundException for an unknown image
+    ImageReader Open(String imageID) throws IOException;
+
+    // completes once the variant is generated in the background, or exceptionally if the image can't be resized.
+    // Throws NotFoundException for an unknown image and IllegalArgumentException for an unknown variant.
+    CompletableFuture<ImageVariant> GetVariant(String imageID, String variant);
+
+    // removes an image, throws NotFoundException for an unknown image
+    void Delete(String imageID) throws IOException;
 }
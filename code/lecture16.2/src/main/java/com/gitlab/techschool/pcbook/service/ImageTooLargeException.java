@@ -0,0 +1,7 @@
+package com.gitlab.techschool.pcbook.service;
+
+public class ImageTooLargeException extends RuntimeException {
+    public ImageTooLargeException(String message) {
+        super(message);
+    }
+}
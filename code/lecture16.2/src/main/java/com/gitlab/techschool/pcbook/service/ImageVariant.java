@@ -0,0 +1,37 @@
+package com.gitlab.techschool.pcbook.service;
+
+public class ImageVariant {
+    private String name;
+    private String type;
+    private String path;
+    private int width;
+    private int height;
+
+    public ImageVariant(String name, String type, String path, int width, int height) {
+        this.name = name;
+        this.type = type;
+        this.path = path;
+        this.width = width;
+        this.height = height;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+}
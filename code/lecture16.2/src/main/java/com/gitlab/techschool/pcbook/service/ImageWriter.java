@@ -0,0 +1,46 @@
+package com.gitlab.techschool.pcbook.service;
+
+import com.google.protobuf.ByteString;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+public interface ImageWriter {
+    // appends a chunk, throws ImageTooLargeException if the image would exceed the store limit
+    void write(ByteString chunk) throws IOException;
+
+    // bytes written so far
+    long size();
+
+    // CRC32C of the bytes written so far, counted from the start of the image or of the part
+    int crc32c() throws IOException;
+
+    // hands the image over to be made durable, the future completes with its ID once it is on disk and visible
+    CompletableFuture<String> commitAsync() throws IOException;
+
+    // makes the image visible and returns its ID, waits until it is on disk
+    default String commit() throws IOException {
+        try {
+            return commitAsync().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for the commit");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    // drops everything written so far, does nothing after commit
+    void abort();
+
+    // stores what was written so far so that the upload can be resumed, does nothing after commit
+    void suspend();
+}
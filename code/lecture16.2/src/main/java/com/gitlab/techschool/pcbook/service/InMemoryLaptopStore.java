@@ -2,102 +2,376 @@ package com.gitlab.techschool.pcbook.service;
 
 import com.github.techschool.pcbook.pb.Filter;
 import com.github.techschool.pcbook.pb.Laptop;
-import com.github.techschool.pcbook.pb.Memory;
-import io.grpc.Context;
+import com.github.techschool.pcbook.pb.SearchPlan;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.FieldMask;
 
-import java.util.Map;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToDoubleFunction;
 import java.util.logging.Logger;
 
+// Multi-version store: every write adds a version to the chain of its laptop and each search reads
+// from a pinned snapshot, so a long search sees the catalog exactly as it was when it started.
+// Writers never wait for readers and readers never wait for writers.
 public class InMemoryLaptopStore implements LaptopStore {
-    private static final Logger logger = Logger.getLogger(LaptopClient.class.getName());
-    private ConcurrentMap<String, Laptop> data;
+    private static final Logger logger = Logger.getLogger(InMemoryLaptopStore.class.getName());
+    private static final int RECLAIM_BATCH = 8; // chains cleaned up by each write
+
+    private ConcurrentMap<String, LaptopVersion> data;
+    private VersionClock clock;
+    private Queue<String> garbage; // IDs whose chain still holds old versions or a deletion
+
+    // secondary access paths, maintained while the key is locked by the write.
+    // An entry is added as soon as a version uses its value and removed once no kept version does.
+    private SortedIndex priceIndex;
+    private SortedIndex ramIndex;
+    private BitmapIndex coresBitmap;
+    private ConcurrentMap<Integer, String> ordinals;
+    private ConcurrentMap<String, Integer> ordinalOf;
+    private AtomicInteger nextOrdinal;
+
+    private CatalogStatistics stats;
+    private QueryPlanner planner;
 
     public InMemoryLaptopStore() {
         data = new ConcurrentHashMap<>(0);
+        clock = new VersionClock();
+        garbage = new ConcurrentLinkedQueue<>();
+        priceIndex = new SortedIndex();
+        ramIndex = new SortedIndex();
+        coresBitmap = new BitmapIndex();
+        ordinals = new ConcurrentHashMap<>(0);
+        ordinalOf = new ConcurrentHashMap<>(0);
+        nextOrdinal = new AtomicInteger();
+        stats = new CatalogStatistics();
+        planner = new QueryPlanner(stats);
     }
 
     @Override
     public void Save(Laptop laptop) throws Exception {
-        if (data.containsKey(laptop.getId())) {
+        // deep copy
+        Laptop other = laptop.toBuilder().build();
+        LaptopVersion[] created = new LaptopVersion[1];
+        data.compute(other.getId(), (id, head) -> {
+            if (head != null && !head.isDeleted()) {
+                return head;
+            }
+            created[0] = install(id, head, other);
+            return created[0];
+        });
+
+        if (created[0] == null) {
             throw new AlreadyExistsException("laptop ID already exists");
         }
 
+        stats.record(other);
+        finish(created[0]);
+    }
+
+    @Override
+    public Laptop Update(Laptop laptop, FieldMask mask) throws Exception {
+        Laptop[] previous = new Laptop[1];
+        LaptopVersion[] created = new LaptopVersion[1];
+        data.compute(laptop.getId(), (id, head) -> {
+            if (head == null || head.isDeleted()) {
+                return head;
+            }
+            previous[0] = head.getLaptop();
+            created[0] = install(id, head, LaptopPatch.apply(previous[0], laptop, mask));
+            return created[0];
+        });
+
+        if (created[0] == null) {
+            throw new NotFoundException("laptop ID doesn't exist");
+        }
+
+        stats.forget(previous[0]);
+        stats.record(created[0].getLaptop());
+        finish(created[0]);
+
         // deep copy
-        Laptop other = laptop.toBuilder().build();
-        data.put(other.getId(), other);
+        return created[0].getLaptop().toBuilder().build();
+    }
+
+    @Override
+    public void Delete(String id) throws Exception {
+        Laptop[] previous = new Laptop[1];
+        LaptopVersion[] created = new LaptopVersion[1];
+        data.compute(id, (k, head) -> {
+            if (head == null || head.isDeleted()) {
+                return head;
+            }
+            previous[0] = head.getLaptop();
+            created[0] = install(k, head, null);
+            return created[0];
+        });
+
+        if (created[0] == null) {
+            throw new NotFoundException("laptop ID doesn't exist");
+        }
+
+        stats.forget(previous[0]);
+        finish(created[0]);
     }
 
     @Override
     public Laptop Find(String id) {
-        if (!data.containsKey(id)) {
+        LaptopVersion head = data.get(id);
+        if (head == null || head.isDeleted()) {
             return null;
         }
 
         // deep copy
-        Laptop other = data.get(id).toBuilder().build();
+        Laptop other = head.getLaptop().toBuilder().build();
         return other;
     }
 
     @Override
-    public void Search(Context ctx, Filter filter, LaptopStream stream) {
-        for (Map.Entry<String, Laptop> entry: data.entrySet()) {
-            if (ctx.isCancelled()) {
-                logger.info("context is cancelled");
-                return;
+    public ByteString FindSerialized(String id) {
+        LaptopVersion head = data.get(id);
+        if (head == null || head.isDeleted()) {
+            return null;
+        }
+        return head.getBytes();
+    }
+
+    @Override
+    public boolean Exists(String id) {
+        LaptopVersion head = data.get(id);
+        return head != null && !head.isDeleted();
+    }
+
+    @Override
+    public LaptopCursor Cursor(Filter filter, LaptopProjection projection) {
+        SearchPlan plan = planner.plan(filter);
+        long snapshot = clock.pin();
+        Iterator<StoredLaptop> candidates;
+        try {
+            candidates = candidates(plan.getAccessPath(), filter, snapshot);
+        } catch (RuntimeException e) {
+            release(snapshot);
+            throw e;
+        }
+        return new FilterCursor(candidates, filter, plan, projection, () -> release(snapshot));
+    }
+
+    public CatalogStatistics getStats() {
+        return stats;
+    }
+
+    public VersionClock getClock() {
+        return clock;
+    }
+
+    public SortedIndex getPriceIndex() {
+        return priceIndex;
+    }
+
+    // adds a new version on top of head, a null laptop marks the deletion.
+    // Must be called while the key is locked.
+    private LaptopVersion install(String id, LaptopVersion head, Laptop laptop) {
+        if (laptop != null) {
+            index(id, head == null ? null : head.getLaptop(), laptop);
+        }
+
+        LaptopVersion created = new LaptopVersion(laptop, clock.begin(), head);
+        if (cleanup(id, created) != null && needsReclaim(created)) {
+            garbage.add(id);
+        }
+        return created;
+    }
+
+    private void release(long snapshot) {
+        if (clock.unpin(snapshot)) {
+            reclaim(Integer.MAX_VALUE);
+        }
+    }
+
+    private void finish(LaptopVersion created) {
+        clock.commit(created.getVersion());
+        reclaim(RECLAIM_BATCH);
+    }
+
+    // only touches the entries whose value differs from the current version
+    private void index(String id, Laptop current, Laptop laptop) {
+        if (current == null || current.getPriceUsd() != laptop.getPriceUsd()) {
+            priceIndex.add(laptop.getPriceUsd(), id);
+        }
+        if (current == null || ramOf(current) != ramOf(laptop)) {
+            ramIndex.add(ramOf(laptop), id);
+        }
+        if (current == null || coresOf(current) != coresOf(laptop)) {
+            coresBitmap.add(laptop.getCpu().getNumberCores(), ordinal(id));
+        }
+    }
+
+    // prunes the chain and removes the index entries only used by the dropped versions.
+    // Returns the head to keep in the map, or null if the laptop is gone for every snapshot.
+    private LaptopVersion cleanup(String id, LaptopVersion head) {
+        long horizon = clock.horizon();
+        LaptopVersion dropped = head.prune(horizon);
+        LaptopVersion kept = head.isDeleted() && head.getVersion() <= horizon ? null : head;
+
+        for (LaptopVersion version = dropped; version != null; version = version.getPrevious()) {
+            Laptop old = version.getLaptop();
+            if (old == null) {
+                continue;
             }
-            try {
-                TimeUnit.SECONDS.sleep(1);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+            if (!keeps(kept, old, Laptop::getPriceUsd)) {
+                priceIndex.remove(old.getPriceUsd(), id);
             }
-            Laptop laptop = entry.getValue();
-            if (isQualified(filter, laptop)) {
-                stream.Send(laptop.toBuilder().build());
+            if (!keeps(kept, old, InMemoryLaptopStore::ramOf)) {
+                ramIndex.remove(ramOf(old), id);
+            }
+            if (!keeps(kept, old, InMemoryLaptopStore::coresOf)) {
+                coresBitmap.remove(old.getCpu().getNumberCores(), ordinal(id));
             }
         }
-    }
 
-    private boolean isQualified(Filter filter, Laptop laptop) {
-        if (laptop.getPriceUsd() > filter.getMaxPriceUsd()) {
-            return false;
+        if (kept == null) {
+            Integer ordinal = ordinalOf.remove(id);
+            if (ordinal != null) {
+                ordinals.remove(ordinal);
+            }
         }
+        return kept;
+    }
 
-        if (laptop.getCpu().getNumberCores() < filter.getMinCpuCores()) {
-            return false;
-        }
+    private static boolean needsReclaim(LaptopVersion head) {
+        return head.getPrevious() != null || head.isDeleted();
+    }
 
-        if (laptop.getCpu().getMinGhz() < filter.getMinCpuGhz()) {
-            return false;
+    private static boolean keeps(LaptopVersion kept, Laptop old, ToDoubleFunction<Laptop> key) {
+        for (LaptopVersion version = kept; version != null; version = version.getPrevious()) {
+            Laptop laptop = version.getLaptop();
+            if (laptop != null && key.applyAsDouble(laptop) == key.applyAsDouble(old)) {
+                return true;
+            }
         }
+        return false;
+    }
 
-        if (toBit(laptop.getRam()) < toBit(filter.getMinRam())) {
-            return false;
+    // drops the versions that no pinned snapshot can see anymore
+    private void reclaim(int limit) {
+        List<String> pending = new LinkedList<>();
+        String id;
+        while (limit-- > 0 && (id = garbage.poll()) != null) {
+            data.computeIfPresent(id, (k, head) -> {
+                LaptopVersion kept = cleanup(k, head);
+                if (kept != null && needsReclaim(kept)) {
+                    pending.add(k);
+                }
+                return kept;
+            });
         }
+        garbage.addAll(pending);
+    }
+
+    private int ordinal(String id) {
+        return ordinalOf.computeIfAbsent(id, k -> {
+            int next = nextOrdinal.getAndIncrement();
+            ordinals.put(next, k);
+            return next;
+        });
+    }
 
-        return true;
+    private static double ramOf(Laptop laptop) {
+        return FilterMatcher.toBit(laptop.getRam());
     }
 
-    private long toBit(Memory memory) {
-        long value = memory.getValue();
+    private static double coresOf(Laptop laptop) {
+        return laptop.getCpu().getNumberCores();
+    }
 
-        switch (memory.getUnit()) {
-            case BIT:
-                return value;
-            case BYTE:
-                return value << 3; // 1 BYTE = 8 BIT = 2^3 BIT
-            case KILOBYTE:
-                return value << 13; // 1 KILOBYTE = 1024 BYTE = 2^10 BYTE = 2^13 BIT
-            case MEGABYTE:
-                return value << 23;
-            case GIGABYTE:
-                return value << 33;
-            case TERABYTE:
-                return value << 43;
+    // returns the version of each candidate seen by the snapshot, null if it isn't visible
+    private Iterator<StoredLaptop> candidates(SearchPlan.AccessPath path, Filter filter, long snapshot) {
+        switch (path) {
+            case PRICE_INDEX:
+                return lookup(priceIndex.atMost(filter.getMaxPriceUsd()), Laptop::getPriceUsd, snapshot);
+            case RAM_INDEX:
+                return lookup(ramIndex.atLeast(FilterMatcher.toBit(filter.getMinRam())),
+                        InMemoryLaptopStore::ramOf, snapshot);
+            case CORES_BITMAP:
+                long[] words = coresBitmap.atLeast(filter.getMinCpuCores(), nextOrdinal.get());
+                return lookup(new OrdinalIterator(words), null, snapshot);
             default:
-                return 0;
+                Iterator<LaptopVersion> heads = data.values().iterator();
+                return new Iterator<StoredLaptop>() {
+                    @Override
+                    public boolean hasNext() {
+                        return heads.hasNext();
+                    }
+
+                    @Override
+                    public StoredLaptop next() {
+                        return heads.next().versionAt(snapshot);
+                    }
+                };
+        }
+    }
+
+    // a laptop has one entry per distinct value among its kept versions,
+    // only the entry matching the visible version counts so that it is returned once
+    private Iterator<StoredLaptop> lookup(Iterator<SortedIndex.Entry> entries, ToDoubleFunction<Laptop> key,
+                                          long snapshot) {
+        return new Iterator<StoredLaptop>() {
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            @Override
+            public StoredLaptop next() {
+                SortedIndex.Entry entry = entries.next();
+                LaptopVersion head = entry.getId() == null ? null : data.get(entry.getId());
+                if (head == null) {
+                    return null;
+                }
+                LaptopVersion version = head.versionAt(snapshot);
+                if (version == null || version.isDeleted()
+                        || (key != null && key.applyAsDouble(version.getLaptop()) != entry.getKey())) {
+                    return null;
+                }
+                return version;
+            }
+        };
+    }
+
+    // walks the set bits of a bitmap and maps each ordinal back to its laptop ID
+    private class OrdinalIterator implements Iterator<SortedIndex.Entry> {
+        private final long[] words;
+        private int word;
+        private long bits;
+
+        OrdinalIterator(long[] words) {
+            this.words = words;
+            this.bits = words.length > 0 ? words[0] : 0;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (bits == 0 && word + 1 < words.length) {
+                bits = words[++word];
+            }
+            return bits != 0;
+        }
+
+        @Override
+        public SortedIndex.Entry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            int ordinal = (word << 6) + Long.numberOfTrailingZeros(bits);
+            bits &= bits - 1;
+            return new SortedIndex.Entry(ordinal, ordinals.get(ordinal));
         }
     }
 }
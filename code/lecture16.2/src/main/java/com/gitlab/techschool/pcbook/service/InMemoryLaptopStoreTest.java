@@ -0,0 +1,225 @@
+package com.gitlab.techschool.pcbook.service;
+
+import com.github.techschool.pcbook.pb.Filter;
+import com.github.techschool.pcbook.pb.Laptop;
+import com.github.techschool.pcbook.pb.Memory;
+import com.github.techschool.pcbook.pb.SearchPlan;
+import com.gitlab.techschool.pcbook.sample.Generator;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.FieldMask;
+import io.grpc.Context;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class InMemoryLaptopStoreTest {
+
+    @Test
+    public void searchUsesCheapestAccessPath() throws Exception {
+        InMemoryLaptopStore laptopStore = new InMemoryLaptopStore();
+        Generator generator = new Generator();
+
+        List<Laptop> laptops = new LinkedList<>();
+        for (int i = 0; i < 1000; i++) {
+            Laptop laptop = generator.NewLaptop();
+            laptopStore.Save(laptop);
+            laptops.add(laptop);
+        }
+
+        // only the cheapest laptops qualify, so the price index should win
+        Filter cheap = Filter.newBuilder()
+                .setMaxPriceUsd(1600)
+                .setMinRam(Memory.newBuilder().setValue(4).setUnit(Memory.Unit.GIGABYTE))
+                .build();
+        SearchPlan plan = assertSameResults(laptopStore, laptops, cheap);
+        assertEquals(SearchPlan.AccessPath.PRICE_INDEX, plan.getAccessPath());
+        assertTrue(plan.getRowsScanned() < laptops.size());
+
+        // every laptop passes the price predicate, only a few have a lot of RAM
+        Filter bigRam = Filter.newBuilder()
+                .setMaxPriceUsd(10000)
+                .setMinRam(Memory.newBuilder().setValue(60).setUnit(Memory.Unit.GIGABYTE))
+                .build();
+        plan = assertSameResults(laptopStore, laptops, bigRam);
+        assertEquals(SearchPlan.AccessPath.RAM_INDEX, plan.getAccessPath());
+
+        // nothing is selective, a full scan is the cheapest
+        Filter everything = Filter.newBuilder().setMaxPriceUsd(10000).build();
+        plan = assertSameResults(laptopStore, laptops, everything);
+        assertEquals(SearchPlan.AccessPath.FULL_SCAN, plan.getAccessPath());
+        assertEquals(laptops.size(), plan.getRowsScanned());
+        assertEquals(4, plan.getCandidatesCount());
+    }
+
+    @Test
+    public void searchReadsFromASnapshot() throws Exception {
+        InMemoryLaptopStore laptopStore = new InMemoryLaptopStore();
+        Generator generator = new Generator();
+
+        int n = 100;
+        for (int i = 0; i < n; i++) {
+            laptopStore.Save(generator.NewLaptop());
+        }
+
+        // keep inserting while the search is running
+        Filter everything = Filter.newBuilder().setMaxPriceUsd(10000).build();
+        List<Laptop> found = new LinkedList<>();
+        laptopStore.Search(Context.ROOT, everything, laptop -> {
+            found.add(laptop);
+            try {
+                laptopStore.Save(generator.NewLaptop());
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+
+        assertEquals(n, found.size());
+        assertEquals(0, laptopStore.getClock().pinnedCount());
+
+        SearchPlan plan = laptopStore.Search(Context.ROOT, everything, laptop -> {
+        });
+        assertEquals(2 * n, plan.getRowsReturned());
+    }
+
+    @Test
+    public void updateAndDelete() throws Exception {
+        InMemoryLaptopStore laptopStore = new InMemoryLaptopStore();
+        Generator generator = new Generator();
+
+        int n = 100;
+        List<Laptop> laptops = new LinkedList<>();
+        for (int i = 0; i < n; i++) {
+            Laptop laptop = generator.NewLaptop();
+            laptopStore.Save(laptop);
+            laptops.add(laptop);
+        }
+
+        Laptop laptop = laptops.get(0);
+        Laptop patch = Laptop.newBuilder().setId(laptop.getId()).setPriceUsd(1000).build();
+        FieldMask mask = FieldMask.newBuilder().addPaths("price_usd").build();
+
+        Laptop updated = laptopStore.Update(patch, mask);
+        assertEquals(1000, updated.getPriceUsd(), 1e-9);
+        assertEquals(laptop.getName(), updated.getName());
+        assertEquals(updated, laptopStore.Find(laptop.getId()));
+
+        // the old price entry is gone once no snapshot can see it
+        assertEquals(n, laptopStore.getPriceIndex().size());
+
+        Filter cheap = Filter.newBuilder().setMaxPriceUsd(1200).build();
+        List<Laptop> found = new LinkedList<>();
+        SearchPlan plan = laptopStore.Search(Context.ROOT, cheap, found::add);
+        assertEquals(SearchPlan.AccessPath.PRICE_INDEX, plan.getAccessPath());
+        assertEquals(1, found.size());
+        assertEquals(laptop.getId(), found.get(0).getId());
+
+        laptopStore.Delete(laptop.getId());
+        assertNull(laptopStore.Find(laptop.getId()));
+        assertEquals(n - 1, laptopStore.getPriceIndex().size());
+        plan = laptopStore.Search(Context.ROOT, cheap, l -> fail());
+        assertEquals(0, plan.getRowsReturned());
+
+        try {
+            laptopStore.Update(patch, mask);
+            fail();
+        } catch (NotFoundException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void searchSeesOldVersionWhileUpdating() throws Exception {
+        InMemoryLaptopStore laptopStore = new InMemoryLaptopStore();
+        Generator generator = new Generator();
+
+        int n = 50;
+        for (int i = 0; i < n; i++) {
+            laptopStore.Save(generator.NewLaptop());
+        }
+
+        // every laptop gets more expensive than the filter allows while the search is running
+        Filter filter = Filter.newBuilder().setMaxPriceUsd(5000).build();
+        FieldMask mask = FieldMask.newBuilder().addPaths("price_usd").build();
+        List<Laptop> found = new LinkedList<>();
+        laptopStore.Search(Context.ROOT, filter, laptop -> {
+            found.add(laptop);
+            try {
+                laptopStore.Update(Laptop.newBuilder().setId(laptop.getId()).setPriceUsd(9000).build(), mask);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        assertEquals(n, found.size());
+
+        SearchPlan plan = laptopStore.Search(Context.ROOT, filter, laptop -> fail());
+        assertEquals(0, plan.getRowsReturned());
+        assertEquals(n, laptopStore.getPriceIndex().size());
+    }
+
+    @Test
+    public void serializedLaptopsAreCached() throws Exception {
+        InMemoryLaptopStore laptopStore = new InMemoryLaptopStore();
+        Laptop laptop = new Generator().NewLaptop();
+        laptopStore.Save(laptop);
+
+        ByteString bytes = laptopStore.FindSerialized(laptop.getId());
+        assertEquals(laptop, Laptop.parseFrom(bytes));
+        assertSame(bytes, laptopStore.FindSerialized(laptop.getId()));
+
+        FieldMask mask = FieldMask.newBuilder().addPaths("price_usd").build();
+        laptopStore.Update(Laptop.newBuilder().setId(laptop.getId()).setPriceUsd(1).build(), mask);
+        ByteString updated = laptopStore.FindSerialized(laptop.getId());
+        assertNotSame(bytes, updated);
+        assertEquals(1, Laptop.parseFrom(updated).getPriceUsd(), 0);
+
+        // projecting the bytes gives the same laptop as projecting the object
+        LaptopProjection projection = LaptopProjection.compile(FieldMask.newBuilder()
+                .addPaths("id")
+                .addPaths("cpu.number_cores")
+                .addPaths("storages")
+                .addPaths("screen.resolution.width")
+                .build());
+        Laptop current = laptopStore.Find(laptop.getId());
+        assertEquals(projection.project(current), Laptop.parseFrom(projection.project(updated)));
+
+        Filter everything = Filter.newBuilder().setMaxPriceUsd(Double.MAX_VALUE).build();
+        try (LaptopCursor cursor = laptopStore.Cursor(everything, projection)) {
+            assertEquals(projection.project(current), Laptop.parseFrom(cursor.nextSerialized()));
+            assertFalse(cursor.hasNext());
+        }
+    }
+
+    @Test
+    public void projectUnsetOneofMember() throws Exception {
+        Laptop laptop = new Generator().NewLaptop().toBuilder().setWeightLb(3.5).build();
+        LaptopProjection projection = LaptopProjection.compile(FieldMask.newBuilder()
+                .addPaths("id")
+                .addPaths("weight_kg")
+                .build());
+
+        Laptop projected = projection.project(laptop);
+        assertEquals(Laptop.WeightCase.WEIGHT_NOT_SET, projected.getWeightCase());
+        assertEquals(projected, Laptop.parseFrom(projection.project(laptop.toByteString())));
+    }
+
+    private SearchPlan assertSameResults(LaptopStore laptopStore, List<Laptop> laptops, Filter filter) {
+        Set<String> expected = new HashSet<>();
+        for (Laptop laptop : laptops) {
+            if (FilterMatcher.isQualified(filter, laptop)) {
+                expected.add(laptop.getId());
+            }
+        }
+
+        Set<String> found = new HashSet<>();
+        SearchPlan plan = laptopStore.Search(Context.ROOT, filter, laptop -> found.add(laptop.getId()));
+
+        assertEquals(expected, found);
+        assertEquals(expected.size(), plan.getRowsReturned());
+        return plan;
+    }
+}
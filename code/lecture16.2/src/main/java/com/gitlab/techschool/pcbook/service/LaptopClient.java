@@ -3,37 +3,64 @@ package com.gitlab.techschool.pcbook.service;
 import com.github.techschool.pcbook.pb.*;
 import com.gitlab.techschool.pcbook.sample.Generator;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.FieldMask;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
 import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 import io.grpc.netty.GrpcSslContexts;
 import io.grpc.netty.NettyChannelBuilder;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
 import io.grpc.stub.StreamObserver;
 import io.netty.handler.ssl.SslContext;
 
 import javax.net.ssl.SSLException;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
 import java.util.Scanner;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.CRC32C;
 
 public class LaptopClient {
     private static final Logger logger = Logger.getLogger(LaptopClient.class.getName());
+    private static final int MAX_UPLOAD_ATTEMPTS = 5;
 
     private final ManagedChannel channel;
     private final LaptopServiceGrpc.LaptopServiceBlockingStub blockingStub;
     private final LaptopServiceGrpc.LaptopServiceStub asyncStub;
+    private int minChunkSize = ChunkSizer.MIN_CHUNK_SIZE;
+    private int maxChunkSize = ChunkSizer.MAX_CHUNK_SIZE;
+    private boolean checksums = true;
+    private boolean resumableUploads;
+    private long uploadDeadlineMillis = TimeUnit.SECONDS.toMillis(5);
 
     public LaptopClient(String host, int port) {
         channel = ManagedChannelBuilder.forAddress(host, port)
                 .usePlaintext()
+                .compressorRegistry(MessageCompression.compressorRegistry())
+                .decompressorRegistry(MessageCompression.decompressorRegistry())
+                .intercept(new ClientCompressionInterceptor(MessageCompression.defaults()))
                 .build();
 
         blockingStub = LaptopServiceGrpc.newBlockingStub(channel);
@@ -43,6 +70,9 @@ public class LaptopClient {
     public LaptopClient(String host, int port, SslContext sslContext) {
         channel = NettyChannelBuilder.forAddress(host, port)
                 .sslContext(sslContext)
+                .compressorRegistry(MessageCompression.compressorRegistry())
+                .decompressorRegistry(MessageCompression.decompressorRegistry())
+                .intercept(new ClientCompressionInterceptor(MessageCompression.defaults()))
                 .build();
 
         blockingStub = LaptopServiceGrpc.newBlockingStub(channel);
@@ -53,6 +83,28 @@ public class LaptopClient {
         channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
     }
 
+    // range of the upload chunk sizes, equal bounds fix the size
+    public void setChunkSizes(int minChunkSize, int maxChunkSize) {
+        this.minChunkSize = minChunkSize;
+        this.maxChunkSize = maxChunkSize;
+    }
+
+    // sends a CRC32C with every chunk and for the whole image, on by default
+    public void setChecksums(boolean checksums) {
+        this.checksums = checksums;
+    }
+
+    // opens an upload session before sending an image, so a broken stream resends only what the server
+    // didn't store, at the cost of an InitiateUpload call per image, off by default
+    public void setResumableUploads(boolean resumableUploads) {
+        this.resumableUploads = resumableUploads;
+    }
+
+    // deadline of each image or part stream, 5 seconds by default, large images on slow links need more
+    public void setUploadDeadline(long timeout, TimeUnit unit) {
+        this.uploadDeadlineMillis = unit.toMillis(timeout);
+    }
+
     public void createLaptop(Laptop laptop) {
         CreateLaptopRequest request = CreateLaptopRequest.newBuilder().setLaptop(laptop).build();
         CreateLaptopResponse response = CreateLaptopResponse.getDefaultInstance();
@@ -75,6 +127,53 @@ public class LaptopClient {
         logger.info("laptop created with ID: " + response.getId());
     }
 
+    public void updateLaptop(Laptop laptop, FieldMask mask) {
+        UpdateLaptopRequest request = UpdateLaptopRequest.newBuilder()
+                .setLaptop(laptop)
+                .setUpdateMask(mask)
+                .build();
+
+        UpdateLaptopResponse response;
+        try {
+            response = blockingStub.withDeadlineAfter(5, TimeUnit.SECONDS).updateLaptop(request);
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "request failed: " + e.getMessage());
+            return;
+        }
+
+        logger.info("laptop updated: " + response.getLaptop().getId());
+    }
+
+    public void getLaptop(String id, FieldMask mask) {
+        GetLaptopRequest request = GetLaptopRequest.newBuilder()
+                .setId(id)
+                .setReadMask(mask)
+                .build();
+
+        GetLaptopResponse response;
+        try {
+            response = blockingStub.withDeadlineAfter(5, TimeUnit.SECONDS).getLaptop(request);
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "request failed: " + e.getMessage());
+            return;
+        }
+
+        logger.info("laptop found:\n" + response.getLaptop());
+    }
+
+    public void deleteLaptop(String id) {
+        DeleteLaptopRequest request = DeleteLaptopRequest.newBuilder().setId(id).build();
+
+        try {
+            blockingStub.withDeadlineAfter(5, TimeUnit.SECONDS).deleteLaptop(request);
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "request failed: " + e.getMessage());
+            return;
+        }
+
+        logger.info("laptop deleted: " + id);
+    }
+
     public static SslContext loadTLSCredentials() throws SSLException {
         File serverCACertFile = new File("cert/ca-cert.pem");
         File clientCertFile = new File("cert/client-cert.pem");
@@ -170,8 +269,16 @@ public class LaptopClient {
 
             while (responseIterator.hasNext()) {
                 SearchLaptopResponse response = responseIterator.next();
-                Laptop laptop = response.getLaptop();
-                logger.info("- found: " + laptop.getId());
+                if (response.hasPlan()) {
+                    logger.info("search plan:\n" + response.getPlan());
+                    continue;
+                }
+                for (Laptop laptop : response.getLaptopsList()) {
+                    logger.info("- found: " + laptop.getId());
+                }
+                if (response.hasLaptop()) {
+                    logger.info("- found: " + response.getLaptop().getId());
+                }
             }
         } catch (Exception e) {
             logger.log(Level.SEVERE, "request failed: " + e.getMessage());
@@ -182,72 +289,201 @@ public class LaptopClient {
     }
 
     public void uploadImage(String laptopID, String imagePath) throws InterruptedException {
-        final CountDownLatch finishLatch = new CountDownLatch(1);
-
-        StreamObserver<UploadImageRequest> requestObserver = asyncStub.withDeadlineAfter(5, TimeUnit.SECONDS)
-                .uploadImage(new StreamObserver<UploadImageResponse>() {
-                    @Override
-                    public void onNext(UploadImageResponse response) {
-                        logger.info("receive response:\n" + response);
-                    }
+        String imageType = imagePath.substring(imagePath.lastIndexOf("."));
+        ImageInfo info = ImageInfo.newBuilder().setLaptopId(laptopID).setImageType(imageType).build();
+        if (!resumableUploads) {
+            uploadImage(info, imagePath, 0);
+            return;
+        }
 
-                    @Override
-                    public void onError(Throwable t) {
-                        logger.log(Level.SEVERE, "upload failed: " + t);
-                        finishLatch.countDown();
-                    }
+        String uploadID;
+        try {
+            InitiateUploadRequest request = InitiateUploadRequest.newBuilder().setInfo(info).build();
+            uploadID = blockingStub.withDeadlineAfter(5, TimeUnit.SECONDS).initiateUpload(request).getUploadId();
+        } catch (StatusRuntimeException e) {
+            if (e.getStatus().getCode() == Status.Code.UNIMPLEMENTED) {
+                // the server only takes images sent in a single stream, a broken stream sends it all again
+                logger.info("server can't resume uploads: " + e.getStatus().getDescription());
+                uploadImage(info, imagePath, 0);
+                return;
+            }
+            logger.log(Level.SEVERE, "request failed: " + e.getMessage());
+            return;
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "request failed: " + e.getMessage());
+            return;
+        }
+        logger.info("upload initiated with ID: " + uploadID);
+
+        // a broken stream only costs the bytes the server didn't store
+        long offset = 0;
+        for (int attempt = 1; attempt <= MAX_UPLOAD_ATTEMPTS; attempt++) {
+            if (attempt > 1) {
+                // a new session has stored nothing, only a retry asks where to resume
+                try {
+                    QueryUploadRequest request = QueryUploadRequest.newBuilder().setUploadId(uploadID).build();
+                    offset = blockingStub.withDeadlineAfter(5, TimeUnit.SECONDS).queryUpload(request).getOffset();
+                } catch (Exception e) {
+                    logger.log(Level.SEVERE, "request failed: " + e.getMessage());
+                    return;
+                }
+            }
 
-                    @Override
-                    public void onCompleted() {
-                        logger.info("image uploaded");
-                        finishLatch.countDown();
-                    }
-                });
+            ImageInfo resume = ImageInfo.newBuilder().setUploadId(uploadID).setOffset(offset).build();
+            if (uploadImage(resume, imagePath, offset)) {
+                return;
+            }
+            logger.info("upload attempt " + attempt + " failed at offset " + offset);
+        }
+        logger.warning("cannot upload image after " + MAX_UPLOAD_ATTEMPTS + " attempts");
+    }
 
-        FileInputStream fileInputStream;
-        try {
-            fileInputStream = new FileInputStream(imagePath);
-        } catch (FileNotFoundException e) {
+    // sends the image from offset in one stream, returns true if the server committed it
+    private boolean uploadImage(ImageInfo info, String imagePath, long offset) throws InterruptedException {
+        try (ImageReader reader = new MappedImageReader(FileChannel.open(Paths.get(imagePath),
+                StandardOpenOption.READ))) {
+            ChunkedUpload<UploadImageRequest, UploadImageResponse> upload;
+            if (checksums) {
+                // the image CRC32C covers the bytes the server already stored too
+                // and each chunk is read once, its CRC32C is combined into the image one
+                AtomicInteger crc = new AtomicInteger(crc32c(reader, offset));
+                upload = new ChunkedUpload<>(
+                        "upload image",
+                        UploadImageRequest.newBuilder().setInfo(info).build(),
+                        chunk -> {
+                            int chunkCrc = Crc32c.of(chunk);
+                            crc.set(Crc32c.combine(crc.get(), chunkCrc, chunk.size()));
+                            return UploadImageRequest.newBuilder()
+                                    .setChunkData(chunk)
+                                    .setChunkCrc32C(chunkCrc)
+                                    .build();
+                        },
+                        () -> UploadImageRequest.newBuilder().setImageCrc32C(crc.get()).build(),
+                        reader, offset, reader.size(), new ChunkSizer(minChunkSize, maxChunkSize));
+            } else {
+                upload = new ChunkedUpload<>(
+                        "upload image",
+                        UploadImageRequest.newBuilder().setInfo(info).build(),
+                        chunk -> UploadImageRequest.newBuilder().setChunkData(chunk).build(),
+                        null, reader, offset, reader.size(), new ChunkSizer(minChunkSize, maxChunkSize));
+            }
+            asyncStub.withDeadlineAfter(uploadDeadlineMillis, TimeUnit.MILLISECONDS).uploadImage(upload);
+            return upload.await();
+        } catch (IOException e) {
             logger.log(Level.SEVERE, "cannot read image file: " + e.getMessage());
-            return;
+            return false;
+        }
+    }
+
+    // CRC32C of the first length bytes of the image
+    private static int crc32c(ImageReader reader, long length) throws IOException {
+        CRC32C crc = new CRC32C();
+        for (long position = 0; position < length; ) {
+            ByteString bytes = reader.read(position, (int) Math.min(ChunkSizer.MAX_CHUNK_SIZE, length - position));
+            Crc32c.update(crc, bytes);
+            position += bytes.size();
         }
+        return (int) crc.getValue();
+    }
 
+    // uploads the parts of the image on several streams at once, each with its own flow-control window
+    public void uploadImageInParts(String laptopID, String imagePath, long partSize, int parallelism)
+            throws InterruptedException {
         String imageType = imagePath.substring(imagePath.lastIndexOf("."));
         ImageInfo info = ImageInfo.newBuilder().setLaptopId(laptopID).setImageType(imageType).build();
-        UploadImageRequest request = UploadImageRequest.newBuilder().setInfo(info).build();
 
         try {
-            requestObserver.onNext(request);
-            logger.info("sent image info:\n" + info);
-
-            byte[] buffer = new byte[1024];
-            while (true) {
-                int n = fileInputStream.read(buffer);
-                if (n <= 0) {
-                    break;
-                }
+            long size = Files.size(Paths.get(imagePath));
+            if (size == 0) {
+                // a multipart upload has at least one part, the server rejects an empty one
+                logger.log(Level.SEVERE, "multipart upload failed: image is empty");
+                return;
+            }
+            InitiateUploadRequest request = InitiateUploadRequest.newBuilder()
+                    .setInfo(info)
+                    .setSize(size)
+                    .setPartSize(partSize)
+                    .build();
+            String uploadID = blockingStub.withDeadlineAfter(5, TimeUnit.SECONDS).initiateUpload(request).getUploadId();
+            logger.info("multipart upload initiated with ID: " + uploadID);
+
+            int partCount = (int) ((size - 1) / partSize + 1);
+            ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+            List<Future<Boolean>> parts = new ArrayList<>(partCount);
+            for (int i = 0; i < partCount; i++) {
+                int partNumber = i;
+                parts.add(executor.submit(() -> uploadPart(imagePath, uploadID, partNumber, partSize)));
+            }
+            executor.shutdown();
 
-                if (finishLatch.getCount() == 0) {
+            for (int i = 0; i < partCount; i++) {
+                // a part is sent whole again if its stream broke
+                if (!parts.get(i).get() && !uploadPart(imagePath, uploadID, i, partSize)) {
+                    logger.warning("cannot upload part " + i);
                     return;
                 }
-
-                request = UploadImageRequest.newBuilder()
-                        .setChunkData(ByteString.copyFrom(buffer, 0, n))
-                        .build();
-                requestObserver.onNext(request);
-                logger.info("sent image chunk with size: " + n);
             }
 
-        } catch (Exception e) {
-            logger.log(Level.SEVERE, "unexpected error: " + e.getMessage());
-            requestObserver.onError(e);
-            return;
+            CompleteUploadRequest complete = CompleteUploadRequest.newBuilder().setUploadId(uploadID).build();
+            UploadImageResponse response = blockingStub.withDeadlineAfter(5, TimeUnit.SECONDS).completeUpload(complete);
+            logger.info("image uploaded:\n" + response);
+        } catch (IOException | ExecutionException | StatusRuntimeException e) {
+            logger.log(Level.SEVERE, "multipart upload failed: " + e.getMessage());
         }
+    }
 
-        requestObserver.onCompleted();
+    // sends one part on its own stream, returns true if the server received it whole
+    private boolean uploadPart(String imagePath, String uploadID, int partNumber, long partSize)
+            throws InterruptedException {
+        // each part maps its own windows of the file
+        try (ImageReader reader = new MappedImageReader(FileChannel.open(Paths.get(imagePath),
+                StandardOpenOption.READ))) {
+            PartInfo info = PartInfo.newBuilder().setUploadId(uploadID).setPartNumber(partNumber).build();
+            long position = partNumber * partSize;
+            ChunkedUpload<UploadPartRequest, UploadPartResponse> upload = new ChunkedUpload<>(
+                    "upload part " + partNumber,
+                    UploadPartRequest.newBuilder().setInfo(info).build(),
+                    chunk -> UploadPartRequest.newBuilder().setChunkData(chunk).build(),
+                    null, reader, position, Math.min(position + partSize, reader.size()),
+                    new ChunkSizer(minChunkSize, maxChunkSize));
+            asyncStub.withDeadlineAfter(uploadDeadlineMillis, TimeUnit.MILLISECONDS).uploadPart(upload);
+            return upload.await();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "cannot read image file: " + e.getMessage());
+            return false;
+        }
+    }
 
-        if (!finishLatch.await(1, TimeUnit.MINUTES)) {
-            logger.warning("request cannot finish within 1 minute");
+    // writes length bytes of the image from offset into outputPath, a length of 0 reads up to the end
+    public void downloadImage(String imageID, long offset, long length, String outputPath) {
+        DownloadImageRequest request = DownloadImageRequest.newBuilder()
+                .setImageId(imageID)
+                .setOffset(offset)
+                .setLength(length)
+                .build();
+
+        try (FileChannel file = FileChannel.open(Paths.get(outputPath),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            Iterator<DownloadImageResponse> responseIterator = blockingStub
+                    .withDeadlineAfter(1, TimeUnit.MINUTES)
+                    .downloadImage(request);
+
+            long received = 0;
+            while (responseIterator.hasNext()) {
+                DownloadImageResponse response = responseIterator.next();
+                if (response.hasDetails()) {
+                    logger.info("downloading image:\n" + response.getDetails());
+                    continue;
+                }
+                for (ByteBuffer buffer : response.getChunkData().asReadOnlyByteBufferList()) {
+                    while (buffer.hasRemaining()) {
+                        received += file.write(buffer);
+                    }
+                }
+            }
+            logger.info("image downloaded with size: " + received);
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "request failed: " + e.getMessage());
         }
     }
 
@@ -296,4 +532,101 @@ public class LaptopClient {
             logger.warning("request cannot finish within 1 minute");
         }
     }
+
+    // sends a first message, then the bytes [position, end) of the image as chunks and then the last
+    // message if there is one, only while the transport can take more: the chunks are views of the
+    // mapped file, so an upload holds about one chunk in memory whatever the image size
+    private static class ChunkedUpload<ReqT, RespT> implements ClientResponseObserver<ReqT, RespT> {
+        private final String name;
+        private final ReqT first;
+        private final Function<ByteString, ReqT> toChunk;
+        private final Supplier<ReqT> last;
+        private final ImageReader reader;
+        private final long end;
+        private final ChunkSizer sizer;
+        private final CountDownLatch finishLatch;
+        private final AtomicBoolean uploaded;
+        private ClientCallStreamObserver<ReqT> requestStream;
+        private long position;
+        private boolean sentFirst;
+        private volatile boolean done;
+
+        ChunkedUpload(String name, ReqT first, Function<ByteString, ReqT> toChunk, Supplier<ReqT> last,
+                      ImageReader reader, long position, long end, ChunkSizer sizer) {
+            this.name = name;
+            this.first = first;
+            this.toChunk = toChunk;
+            this.last = last;
+            this.reader = reader;
+            this.position = position;
+            this.end = end;
+            this.sizer = sizer;
+            this.finishLatch = new CountDownLatch(1);
+            this.uploaded = new AtomicBoolean();
+        }
+
+        @Override
+        public void beforeStart(ClientCallStreamObserver<ReqT> requestStream) {
+            this.requestStream = requestStream;
+            requestStream.setOnReadyHandler(this::send);
+        }
+
+        // called by the transport whenever it can take more, never concurrently
+        private void send() {
+            try {
+                while (!done && requestStream.isReady()) {
+                    if (!sentFirst) {
+                        sentFirst = true;
+                        requestStream.onNext(first);
+                        sizer.start(System.nanoTime());
+                        continue;
+                    }
+                    if (position >= end) {
+                        done = true;
+                        if (last != null) {
+                            requestStream.onNext(last.get());
+                        }
+                        requestStream.onCompleted();
+                        logger.info(name + " sent, last chunk size: " + sizer.size());
+                        return;
+                    }
+
+                    ByteString chunk = reader.read(position, (int) Math.min(sizer.size(), end - position));
+                    position += chunk.size();
+                    requestStream.onNext(toChunk.apply(chunk));
+                    sizer.sent(chunk.size(), System.nanoTime());
+                }
+            } catch (IOException | RuntimeException e) {
+                done = true;
+                logger.log(Level.SEVERE, "cannot read image file: " + e.getMessage());
+                requestStream.onError(e);
+            }
+        }
+
+        @Override
+        public void onNext(RespT response) {
+            logger.info("receive response:\n" + response);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            done = true;
+            logger.log(Level.SEVERE, name + " failed: " + t);
+            finishLatch.countDown();
+        }
+
+        @Override
+        public void onCompleted() {
+            uploaded.set(true);
+            finishLatch.countDown();
+        }
+
+        // returns true if the server accepted the upload
+        boolean await() throws InterruptedException {
+            if (!finishLatch.await(1, TimeUnit.MINUTES)) {
+                logger.warning("request cannot finish within 1 minute");
+            }
+            return uploaded.get();
+        }
+    }
 }
@@ -0,0 +1,25 @@
+package com.gitlab.techschool.pcbook.service;
+
+import com.github.techschool.pcbook.pb.Laptop;
+import com.github.techschool.pcbook.pb.SearchPlan;
+import com.google.protobuf.ByteString;
+
+import java.util.Iterator;
+
+// Pull-based search: the next laptop is only looked up when the caller asks for it.
+// Whatever the search reads from (a snapshot, a file scan) is held until the cursor is closed.
+public interface LaptopCursor extends Iterator<Laptop>, AutoCloseable {
+    // the next laptop in wire format, taken from the bytes the store keeps rather than encoded again
+    ByteString nextSerialized();
+
+    // hasNext that stops looking once System.nanoTime() reaches the deadline, so the caller can act on time
+    // in the middle of a long scan. It also returns false at the deadline, isExhausted tells the end apart.
+    boolean hasNext(long deadline);
+
+    boolean isExhausted(); // no laptop left
+
+    SearchPlan getPlan(); // rows counted so far, final once the cursor is exhausted
+
+    @Override
+    void close();
+}
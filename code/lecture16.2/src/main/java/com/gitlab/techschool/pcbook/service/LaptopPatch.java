@@ -0,0 +1,33 @@
+package com.gitlab.techschool.pcbook.service;
+
+import com.github.techschool.pcbook.pb.Laptop;
+import com.google.protobuf.FieldMask;
+import com.google.protobuf.util.FieldMaskUtil;
+
+public class LaptopPatch {
+    private static final FieldMaskUtil.MergeOptions REPLACE = new FieldMaskUtil.MergeOptions()
+            .setReplaceMessageFields(true)
+            .setReplaceRepeatedFields(true)
+            .setReplacePrimitiveFields(true);
+
+    private LaptopPatch() {
+    }
+
+    // returns current with the masked fields overwritten by patch, an empty mask replaces everything but the ID
+    public static Laptop apply(Laptop current, Laptop patch, FieldMask mask) {
+        if (mask.getPathsCount() == 0) {
+            return patch.toBuilder().setId(current.getId()).build();
+        }
+
+        if (!FieldMaskUtil.isValid(Laptop.class, mask)) {
+            throw new IllegalArgumentException("invalid update mask: " + FieldMaskUtil.toString(mask));
+        }
+        if (mask.getPathsList().contains("id")) {
+            throw new IllegalArgumentException("laptop ID cannot be updated");
+        }
+
+        Laptop.Builder builder = current.toBuilder();
+        FieldMaskUtil.merge(mask, patch, builder, REPLACE);
+        return builder.build();
+    }
+}
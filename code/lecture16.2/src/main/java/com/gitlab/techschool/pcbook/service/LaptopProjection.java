@@ -0,0 +1,135 @@
+package com.gitlab.techschool.pcbook.service;
+
+import com.github.techschool.pcbook.pb.Laptop;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.FieldMask;
+import com.google.protobuf.Message;
+import com.google.protobuf.WireFormat;
+import com.google.protobuf.util.FieldMaskUtil;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Field mask compiled once per request into a tree of field descriptors,
+// so that each laptop is projected by copying only the selected fields.
+public class LaptopProjection {
+    public static final LaptopProjection ALL = new LaptopProjection(null);
+
+    private final Node root; // null keeps whole laptops
+
+    private LaptopProjection(Node root) {
+        this.root = root;
+    }
+
+    // an empty mask selects the whole laptop
+    public static LaptopProjection compile(FieldMask mask) {
+        if (mask.getPathsCount() == 0) {
+            return ALL;
+        }
+        if (!FieldMaskUtil.isValid(Laptop.class, mask)) {
+            throw new IllegalArgumentException("invalid read mask: " + FieldMaskUtil.toString(mask));
+        }
+
+        Node root = new Node();
+        for (String path : mask.getPathsList()) {
+            Descriptors.Descriptor type = Laptop.getDescriptor();
+            Node node = root;
+            for (String name : path.split("\\.")) {
+                if (node.whole) {
+                    break; // a parent is already selected
+                }
+                Descriptors.FieldDescriptor field = type.findFieldByName(name);
+                Node parent = node;
+                node = node.fields.computeIfAbsent(field, f -> new Node());
+                parent.byNumber.put(field.getNumber(), node);
+                if (field.getJavaType() == Descriptors.FieldDescriptor.JavaType.MESSAGE) {
+                    type = field.getMessageType();
+                }
+            }
+            // covers any sub-path selected before
+            node.whole = true;
+            node.fields.clear();
+            node.byNumber.clear();
+        }
+        return new LaptopProjection(root);
+    }
+
+    public boolean isAll() {
+        return root == null;
+    }
+
+    public Laptop project(Laptop laptop) {
+        if (root == null) {
+            // deep copy
+            return laptop.toBuilder().build();
+        }
+        return (Laptop) project(laptop, root);
+    }
+
+    // same projection on a serialized laptop: the selected fields are sliced out of the bytes
+    // and joined, without parsing the laptop or encoding it again
+    public ByteString project(ByteString bytes) {
+        if (root == null) {
+            return bytes;
+        }
+
+        try {
+            return project(bytes, root);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("cannot project serialized laptop: " + e.getMessage(), e);
+        }
+    }
+
+    private static ByteString project(ByteString bytes, Node node) throws IOException {
+        CodedInputStream input = bytes.newCodedInput();
+        ByteString projected = ByteString.EMPTY;
+        int start = 0;
+        for (int tag = input.readTag(); tag != 0; tag = input.readTag()) {
+            int number = WireFormat.getTagFieldNumber(tag);
+            Node child = node.byNumber.get(number);
+            if (child == null) {
+                input.skipField(tag);
+            } else if (child.whole) {
+                input.skipField(tag);
+                projected = projected.concat(bytes.substring(start, input.getTotalBytesRead()));
+            } else {
+                ByteString nested = project(input.readBytes(), child);
+                projected = projected.concat(SerializedMessage.field(number, nested));
+            }
+            start = input.getTotalBytesRead();
+        }
+        return projected;
+    }
+
+    private static Message project(Message message, Node node) {
+        Message.Builder builder = message.newBuilderForType();
+        for (Map.Entry<Descriptors.FieldDescriptor, Node> entry : node.fields.entrySet()) {
+            Descriptors.FieldDescriptor field = entry.getKey();
+            Node child = entry.getValue();
+            if (field.isRepeated()) {
+                if (message.getRepeatedFieldCount(field) > 0) {
+                    builder.setField(field, message.getField(field));
+                }
+            } else if (message.hasField(field) || (field.getJavaType() != Descriptors.FieldDescriptor.JavaType.MESSAGE
+                    && field.getContainingOneof() == null)) {
+                // setting an unset oneof member would switch the case, the bytes don't have it either
+                Object value = message.getField(field);
+                if (!child.whole) {
+                    value = project((Message) value, child);
+                }
+                builder.setField(field, value);
+            }
+        }
+        return builder.build();
+    }
+
+    private static class Node {
+        private final Map<Descriptors.FieldDescriptor, Node> fields = new LinkedHashMap<>();
+        private final Map<Integer, Node> byNumber = new HashMap<>();
+        private boolean whole;
+    }
+}
@@ -3,6 +3,7 @@ package com.gitlab.techschool.pcbook.service;
 import com.github.techschool.pcbook.pb.Laptop;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
+import io.grpc.ServerInterceptors;
 import io.grpc.netty.GrpcSslContexts;
 import io.grpc.netty.NettyServerBuilder;
 import io.grpc.protobuf.services.ProtoReflectionService;
@@ -21,6 +22,7 @@ public class LaptopServer {
 
     private final int port;
     private final Server server;
+    private final UploadThrottle uploadThrottle;
 
     public LaptopServer(int port, LaptopStore laptopStore, ImageStore imageStore, RatingStore ratingStore) {
         this(ServerBuilder.forPort(port), port, laptopStore, imageStore, ratingStore);
@@ -32,9 +34,23 @@ public class LaptopServer {
     }
 
     public LaptopServer(ServerBuilder serverBuilder, int port, LaptopStore laptopStore, ImageStore imageStore, RatingStore ratingStore) {
+        this(serverBuilder, port, laptopStore, imageStore, ratingStore, MessageCompression.defaults());
+    }
+
+    public LaptopServer(ServerBuilder<?> serverBuilder, int port, LaptopStore laptopStore, ImageStore imageStore, RatingStore ratingStore,
+                        MessageCompression compression) {
+        this(serverBuilder, port, laptopStore, imageStore, ratingStore, compression, new UploadThrottle());
+    }
+
+    public LaptopServer(ServerBuilder<?> serverBuilder, int port, LaptopStore laptopStore, ImageStore imageStore, RatingStore ratingStore,
+                        MessageCompression compression, UploadThrottle uploadThrottle) {
         this.port = port;
+        this.uploadThrottle = uploadThrottle;
         LaptopService laptopService = new LaptopService(laptopStore, imageStore, ratingStore);
-        server = serverBuilder.addService(laptopService)
+        server = serverBuilder.addService(ServerInterceptors.intercept(laptopService.bindSerialized(),
+                        new ServerCompressionInterceptor(compression), uploadThrottle))
+                .compressorRegistry(MessageCompression.compressorRegistry())
+                .decompressorRegistry(MessageCompression.decompressorRegistry())
                 .addService(ProtoReflectionService.newInstance())
                 .build();
     }
@@ -57,10 +73,16 @@ public class LaptopServer {
         });
     }
 
+    // the bound port, when the server was started on port 0
+    public int getPort() {
+        return server.getPort();
+    }
+
     public void stop() throws InterruptedException {
         if (server != null) {
             server.shutdown().awaitTermination(30, TimeUnit.SECONDS);
         }
+        uploadThrottle.close();
     }
 
     private void blockUntilShutdown() throws InterruptedException {
@@ -2,10 +2,15 @@ package com.gitlab.techschool.pcbook.service;
 
 import com.github.techschool.pcbook.pb.*;
 import com.gitlab.techschool.pcbook.sample.Generator;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.FieldMask;
 import io.grpc.ManagedChannel;
+import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 import io.grpc.inprocess.InProcessChannelBuilder;
 import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
 import io.grpc.stub.StreamObserver;
 import io.grpc.testing.GrpcCleanupRule;
 import org.junit.After;
@@ -13,8 +18,19 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 
@@ -23,6 +39,7 @@ public class LaptopServerTest {
     public final GrpcCleanupRule grpcCleanup = new GrpcCleanupRule(); // automatic shutdown channel at the end of test
 
     private LaptopStore laptopStore;
+    private DiskImageStore imageStore;
     private RatingStore ratingStore;
     private LaptopServer server;
     private ManagedChannel channel;
@@ -33,7 +50,7 @@ public class LaptopServerTest {
         InProcessServerBuilder serverBuilder = InProcessServerBuilder.forName(serverName).directExecutor();
 
         laptopStore = new InMemoryLaptopStore();
-        ImageStore imageStore = new DiskImageStore("img");
+        imageStore = new DiskImageStore("img");
         ratingStore = new InMemoryRatingStore();
 
         server = new LaptopServer(serverBuilder, 0, laptopStore, imageStore, ratingStore);
@@ -47,6 +64,7 @@ public class LaptopServerTest {
     @After
     public void tearDown() throws Exception {
         server.stop();
+        imageStore.close();
     }
 
     @Test
@@ -100,6 +118,551 @@ public class LaptopServerTest {
         CreateLaptopResponse response = stub.createLaptop(request);
     }
 
+    @Test
+    public void updateLaptopPrice() throws Exception {
+        Generator generator = new Generator();
+        Laptop laptop = generator.NewLaptop();
+        laptopStore.Save(laptop);
+
+        UpdateLaptopRequest request = UpdateLaptopRequest.newBuilder()
+                .setLaptop(Laptop.newBuilder().setId(laptop.getId()).setPriceUsd(1999))
+                .setUpdateMask(FieldMask.newBuilder().addPaths("price_usd"))
+                .build();
+
+        LaptopServiceGrpc.LaptopServiceBlockingStub stub = LaptopServiceGrpc.newBlockingStub(channel);
+        UpdateLaptopResponse response = stub.updateLaptop(request);
+        assertEquals(1999, response.getLaptop().getPriceUsd(), 1e-9);
+        assertEquals(laptop.getBrand(), response.getLaptop().getBrand());
+        assertEquals(response.getLaptop(), laptopStore.Find(laptop.getId()));
+    }
+
+    @Test
+    public void deleteLaptop() throws Exception {
+        Generator generator = new Generator();
+        Laptop laptop = generator.NewLaptop();
+        laptopStore.Save(laptop);
+
+        DeleteLaptopRequest request = DeleteLaptopRequest.newBuilder().setId(laptop.getId()).build();
+        LaptopServiceGrpc.LaptopServiceBlockingStub stub = LaptopServiceGrpc.newBlockingStub(channel);
+        stub.deleteLaptop(request);
+        assertNull(laptopStore.Find(laptop.getId()));
+
+        try {
+            stub.deleteLaptop(request);
+            fail();
+        } catch (StatusRuntimeException e) {
+            assertEquals(Status.Code.NOT_FOUND, e.getStatus().getCode());
+        }
+    }
+
+    @Test
+    public void searchLaptopWithExplain() throws Exception {
+        Generator generator = new Generator();
+        int n = 10;
+        for (int i = 0; i < n; i++) {
+            laptopStore.Save(generator.NewLaptop());
+        }
+
+        Filter filter = Filter.newBuilder().setMaxPriceUsd(10000).build();
+        SearchLaptopRequest request = SearchLaptopRequest.newBuilder().setFilter(filter).setExplain(true).build();
+
+        LaptopServiceGrpc.LaptopServiceBlockingStub stub = LaptopServiceGrpc.newBlockingStub(channel);
+        Iterator<SearchLaptopResponse> responses = stub.searchLaptop(request);
+
+        List<SearchLaptopResponse> found = new LinkedList<>();
+        responses.forEachRemaining(found::add);
+        assertEquals(n + 1, found.size());
+
+        SearchPlan plan = found.get(n).getPlan();
+        assertEquals(SearchPlan.AccessPath.FULL_SCAN, plan.getAccessPath());
+        assertEquals(n, plan.getRowsScanned());
+        assertEquals(n, plan.getRowsReturned());
+    }
+
+    @Test
+    public void getLaptopWithReadMask() throws Exception {
+        Generator generator = new Generator();
+        Laptop laptop = generator.NewLaptop();
+        laptopStore.Save(laptop);
+
+        FieldMask mask = FieldMask.newBuilder()
+                .addPaths("id")
+                .addPaths("brand")
+                .addPaths("price_usd")
+                .addPaths("cpu.number_cores")
+                .build();
+        GetLaptopRequest request = GetLaptopRequest.newBuilder().setId(laptop.getId()).setReadMask(mask).build();
+
+        LaptopServiceGrpc.LaptopServiceBlockingStub stub = LaptopServiceGrpc.newBlockingStub(channel);
+        Laptop found = stub.getLaptop(request).getLaptop();
+        Laptop expected = Laptop.newBuilder()
+                .setId(laptop.getId())
+                .setBrand(laptop.getBrand())
+                .setPriceUsd(laptop.getPriceUsd())
+                .setCpu(CPU.newBuilder().setNumberCores(laptop.getCpu().getNumberCores()))
+                .build();
+        assertEquals(expected, found);
+
+        // no mask returns the whole laptop
+        request = GetLaptopRequest.newBuilder().setId(laptop.getId()).build();
+        assertEquals(laptop, stub.getLaptop(request).getLaptop());
+
+        try {
+            request = GetLaptopRequest.newBuilder()
+                    .setId(laptop.getId())
+                    .setReadMask(FieldMask.newBuilder().addPaths("cpu.unknown"))
+                    .build();
+            stub.getLaptop(request);
+            fail();
+        } catch (StatusRuntimeException e) {
+            assertEquals(Status.Code.INVALID_ARGUMENT, e.getStatus().getCode());
+        }
+    }
+
+    @Test
+    public void serveLaptopsThroughTheGeneratedBinding() throws Exception {
+        Generator generator = new Generator();
+        Laptop laptop = generator.NewLaptop();
+        laptopStore.Save(laptop);
+        laptopStore.Save(generator.NewLaptop());
+
+        // a server registering the service the usual way, without bindSerialized()
+        String serverName = InProcessServerBuilder.generateName();
+        grpcCleanup.register(InProcessServerBuilder.forName(serverName).directExecutor()
+                .addService(new LaptopService(laptopStore, imageStore, ratingStore))
+                .build()
+                .start());
+        ManagedChannel plain = grpcCleanup.register(InProcessChannelBuilder.forName(serverName).directExecutor().build());
+        LaptopServiceGrpc.LaptopServiceBlockingStub stub = LaptopServiceGrpc.newBlockingStub(plain);
+
+        GetLaptopRequest get = GetLaptopRequest.newBuilder().setId(laptop.getId()).build();
+        assertEquals(laptop, stub.getLaptop(get).getLaptop());
+
+        SearchLaptopRequest search = SearchLaptopRequest.newBuilder()
+                .setFilter(Filter.newBuilder().setMaxPriceUsd(10000))
+                .setExplain(true)
+                .build();
+        List<Laptop> found = new LinkedList<>();
+        boolean[] plan = new boolean[1];
+        stub.searchLaptop(search).forEachRemaining(response -> {
+            if (response.hasPlan()) {
+                plan[0] = true;
+            } else {
+                found.add(response.getLaptop());
+            }
+        });
+        assertEquals(2, found.size());
+        assertTrue(found.contains(laptop));
+        assertTrue(plan[0]);
+    }
+
+    @Test
+    public void searchLaptopWithReadMask() throws Exception {
+        Generator generator = new Generator();
+        int n = 10;
+        for (int i = 0; i < n; i++) {
+            laptopStore.Save(generator.NewLaptop());
+        }
+
+        Filter filter = Filter.newBuilder().setMaxPriceUsd(10000).build();
+        FieldMask mask = FieldMask.newBuilder().addPaths("id").addPaths("name").addPaths("gpus").build();
+        SearchLaptopRequest request = SearchLaptopRequest.newBuilder().setFilter(filter).setReadMask(mask).build();
+
+        LaptopServiceGrpc.LaptopServiceBlockingStub stub = LaptopServiceGrpc.newBlockingStub(channel);
+        List<Laptop> found = new LinkedList<>();
+        stub.searchLaptop(request).forEachRemaining(response -> found.add(response.getLaptop()));
+        assertEquals(n, found.size());
+
+        for (Laptop laptop : found) {
+            Laptop stored = laptopStore.Find(laptop.getId());
+            Laptop expected = Laptop.newBuilder()
+                    .setId(stored.getId())
+                    .setName(stored.getName())
+                    .addAllGpus(stored.getGpusList())
+                    .build();
+            assertEquals(expected, laptop);
+        }
+    }
+
+    @Test
+    public void searchLaptopInBatches() throws Exception {
+        Generator generator = new Generator();
+        int n = 20;
+        for (int i = 0; i < n; i++) {
+            laptopStore.Save(generator.NewLaptop());
+        }
+
+        Filter filter = Filter.newBuilder().setMaxPriceUsd(10000).build();
+        SearchLaptopRequest request = SearchLaptopRequest.newBuilder()
+                .setFilter(filter)
+                .setBatchSize(8)
+                .setBatchLingerMs(60_000)
+                .build();
+
+        LaptopServiceGrpc.LaptopServiceBlockingStub stub = LaptopServiceGrpc.newBlockingStub(channel);
+        List<Integer> sizes = new LinkedList<>();
+        stub.searchLaptop(request).forEachRemaining(response -> {
+            assertFalse(response.hasLaptop());
+            sizes.add(response.getLaptopsCount());
+        });
+        assertEquals(Arrays.asList(8, 8, 4), sizes);
+
+        // a laptop is about 200 bytes, so a 1000 bytes batch can't hold 8 of them
+        request = request.toBuilder().setBatchBytes(1000).build();
+        int total = 0;
+        Iterator<SearchLaptopResponse> responses = stub.searchLaptop(request);
+        while (responses.hasNext()) {
+            SearchLaptopResponse response = responses.next();
+            assertTrue(response.getLaptopsCount() < 8);
+            assertTrue(response.getSerializedSize() <= 1000 + 10 * response.getLaptopsCount());
+            total += response.getLaptopsCount();
+        }
+        assertEquals(n, total);
+    }
+
+    @Test
+    public void searchLaptopFollowsClientFlowControl() throws Exception {
+        Generator generator = new Generator();
+        int n = 100;
+        for (int i = 0; i < n; i++) {
+            laptopStore.Save(generator.NewLaptop());
+        }
+
+        Filter filter = Filter.newBuilder().setMaxPriceUsd(10000).build();
+        SearchLaptopRequest request = SearchLaptopRequest.newBuilder().setFilter(filter).build();
+
+        List<Laptop> found = new LinkedList<>();
+        ClientCallStreamObserver<?>[] call = new ClientCallStreamObserver<?>[1];
+        LaptopServiceGrpc.LaptopServiceStub stub = LaptopServiceGrpc.newStub(channel);
+        stub.searchLaptop(request, new ClientResponseObserver<SearchLaptopRequest, SearchLaptopResponse>() {
+            @Override
+            public void beforeStart(ClientCallStreamObserver<SearchLaptopRequest> requestStream) {
+                call[0] = requestStream;
+                requestStream.disableAutoInboundFlowControl();
+            }
+
+            @Override
+            public void onNext(SearchLaptopResponse response) {
+                found.add(response.getLaptop());
+            }
+
+            @Override
+            public void onError(Throwable t) {
+            }
+
+            @Override
+            public void onCompleted() {
+                fail();
+            }
+        });
+
+        // the server only produces what the client asked for
+        int initial = found.size();
+        assertTrue(initial <= 1);
+        call[0].request(10);
+        assertEquals(initial + 10, found.size());
+
+        // cancelling the call closes the cursor and releases its snapshot
+        VersionClock clock = ((InMemoryLaptopStore) laptopStore).getClock();
+        assertEquals(1, clock.pinnedCount());
+        call[0].cancel("enough", null);
+        assertEquals(0, clock.pinnedCount());
+        assertEquals(initial + 10, found.size());
+    }
+
+    @Test
+    public void uploadImage() throws Exception {
+        Generator generator = new Generator();
+        Laptop laptop = generator.NewLaptop();
+        laptopStore.Save(laptop);
+
+        LaptopServiceGrpc.LaptopServiceStub stub = LaptopServiceGrpc.newStub(channel);
+        UploadImageResponseStreamObserver responseObserver = new UploadImageResponseStreamObserver();
+        StreamObserver<UploadImageRequest> requestObserver = stub.uploadImage(responseObserver);
+
+        ImageInfo info = ImageInfo.newBuilder().setLaptopId(laptop.getId()).setImageType(".jpg").build();
+        requestObserver.onNext(UploadImageRequest.newBuilder().setInfo(info).build());
+
+        byte[] chunk = new byte[100_000];
+        int n = 5;
+        for (int i = 0; i < n; i++) {
+            Arrays.fill(chunk, (byte) i);
+            requestObserver.onNext(UploadImageRequest.newBuilder().setChunkData(ByteString.copyFrom(chunk)).build());
+        }
+        requestObserver.onCompleted();
+        responseObserver.await();
+
+        assertNull(responseObserver.err);
+        assertTrue(responseObserver.completed);
+        assertEquals(1, responseObserver.responses.size());
+
+        UploadImageResponse response = responseObserver.responses.get(0);
+        assertEquals(n * chunk.length, response.getSize());
+
+        ImageMetadata metadata = imageStore.Find(response.getId());
+        assertNotNull(metadata);
+        assertEquals(laptop.getId(), metadata.getLaptopID());
+        byte[] saved = Files.readAllBytes(Paths.get(metadata.getPath()));
+        assertEquals(n * chunk.length, saved.length);
+        assertEquals(n - 1, saved[saved.length - 1]);
+
+        ListImagesResponse images = LaptopServiceGrpc.newBlockingStub(channel)
+                .listImages(ListImagesRequest.newBuilder().setLaptopId(laptop.getId()).build());
+        assertEquals(1, images.getImagesCount());
+        assertEquals(response.getId(), images.getImages(0).getId());
+        assertEquals(response.getSize(), images.getImages(0).getSize());
+        imageStore.Delete(response.getId());
+    }
+
+    @Test
+    public void resumeUploadAfterBrokenStream() throws Exception {
+        Generator generator = new Generator();
+        Laptop laptop = generator.NewLaptop();
+        laptopStore.Save(laptop);
+
+        LaptopServiceGrpc.LaptopServiceBlockingStub blockingStub = LaptopServiceGrpc.newBlockingStub(channel);
+        ImageInfo info = ImageInfo.newBuilder().setLaptopId(laptop.getId()).setImageType(".jpg").build();
+        String uploadID = blockingStub.initiateUpload(InitiateUploadRequest.newBuilder().setInfo(info).build())
+                .getUploadId();
+        QueryUploadRequest query = QueryUploadRequest.newBuilder().setUploadId(uploadID).build();
+
+        byte[] image = new byte[300_000];
+        new Random(3).nextBytes(image);
+
+        // the first stream breaks after 200 KB
+        LaptopServiceGrpc.LaptopServiceStub stub = LaptopServiceGrpc.newStub(channel);
+        UploadImageResponseStreamObserver responseObserver = new UploadImageResponseStreamObserver();
+        StreamObserver<UploadImageRequest> requestObserver = stub.uploadImage(responseObserver);
+        info = ImageInfo.newBuilder().setUploadId(uploadID).build();
+        requestObserver.onNext(UploadImageRequest.newBuilder().setInfo(info).build());
+        requestObserver.onNext(UploadImageRequest.newBuilder().setChunkData(ByteString.copyFrom(image, 0, 200_000)).build());
+        requestObserver.onError(new RuntimeException("connection lost"));
+
+        long offset = blockingStub.queryUpload(query).getOffset();
+        assertTrue(offset > 0 && offset <= 200_000);
+
+        responseObserver = new UploadImageResponseStreamObserver();
+        requestObserver = stub.uploadImage(responseObserver);
+        info = ImageInfo.newBuilder().setUploadId(uploadID).setOffset(offset).build();
+        requestObserver.onNext(UploadImageRequest.newBuilder().setInfo(info).build());
+        requestObserver.onNext(UploadImageRequest.newBuilder()
+                .setChunkData(ByteString.copyFrom(image, (int) offset, image.length - (int) offset)).build());
+        requestObserver.onCompleted();
+        responseObserver.await();
+
+        assertNull(responseObserver.err);
+        assertTrue(responseObserver.completed);
+        UploadImageResponse response = responseObserver.responses.get(0);
+        assertEquals(image.length, response.getSize());
+        assertEquals(Crc32c.of(ByteString.copyFrom(image)), response.getCrc32C());
+        Path path = Paths.get(imageStore.Find(response.getId()).getPath());
+        assertArrayEquals(image, Files.readAllBytes(path));
+        imageStore.Delete(response.getId());
+
+        try {
+            blockingStub.queryUpload(query);
+            fail("committed upload can still be queried");
+        } catch (StatusRuntimeException e) {
+            assertEquals(Status.Code.NOT_FOUND, e.getStatus().getCode());
+        }
+    }
+
+    @Test
+    public void rejectCorruptedUpload() throws Exception {
+        Generator generator = new Generator();
+        Laptop laptop = generator.NewLaptop();
+        laptopStore.Save(laptop);
+
+        LaptopServiceGrpc.LaptopServiceBlockingStub blockingStub = LaptopServiceGrpc.newBlockingStub(channel);
+        ImageInfo info = ImageInfo.newBuilder().setLaptopId(laptop.getId()).setImageType(".jpg").build();
+        String uploadID = blockingStub.initiateUpload(InitiateUploadRequest.newBuilder().setInfo(info).build())
+                .getUploadId();
+        QueryUploadRequest query = QueryUploadRequest.newBuilder().setUploadId(uploadID).build();
+        info = ImageInfo.newBuilder().setUploadId(uploadID).build();
+
+        byte[] image = new byte[200_000];
+        new Random(5).nextBytes(image);
+        ByteString first = ByteString.copyFrom(image, 0, 100_000);
+        ByteString second = ByteString.copyFrom(image, 100_000, 100_000);
+
+        // the second chunk was corrupted on the way, it is never written
+        LaptopServiceGrpc.LaptopServiceStub stub = LaptopServiceGrpc.newStub(channel);
+        UploadImageResponseStreamObserver responseObserver = new UploadImageResponseStreamObserver();
+        StreamObserver<UploadImageRequest> requestObserver = stub.uploadImage(responseObserver);
+        requestObserver.onNext(UploadImageRequest.newBuilder().setInfo(info).build());
+        requestObserver.onNext(UploadImageRequest.newBuilder()
+                .setChunkData(first).setChunkCrc32C(Crc32c.of(first)).build());
+        requestObserver.onNext(UploadImageRequest.newBuilder()
+                .setChunkData(second).setChunkCrc32C(Crc32c.of(second) + 1).build());
+        responseObserver.await();
+        requestObserver.onCompleted();
+
+        assertEquals(Status.Code.DATA_LOSS, Status.fromThrowable(responseObserver.err).getCode());
+        assertEquals(first.size(), blockingStub.queryUpload(query).getOffset());
+
+        // the chunks match but the image doesn't, the upload is dropped
+        responseObserver = new UploadImageResponseStreamObserver();
+        requestObserver = stub.uploadImage(responseObserver);
+        info = ImageInfo.newBuilder().setUploadId(uploadID).setOffset(first.size()).build();
+        requestObserver.onNext(UploadImageRequest.newBuilder().setInfo(info).build());
+        requestObserver.onNext(UploadImageRequest.newBuilder()
+                .setChunkData(second).setChunkCrc32C(Crc32c.of(second)).build());
+        requestObserver.onNext(UploadImageRequest.newBuilder().setImageCrc32C(Crc32c.of(second)).build());
+        requestObserver.onCompleted();
+        responseObserver.await();
+
+        assertEquals(Status.Code.DATA_LOSS, Status.fromThrowable(responseObserver.err).getCode());
+        try {
+            blockingStub.queryUpload(query);
+            fail("corrupted upload can still be queried");
+        } catch (StatusRuntimeException e) {
+            assertEquals(Status.Code.NOT_FOUND, e.getStatus().getCode());
+        }
+        assertEquals(0, imageStore.FindByLaptop(laptop.getId()).size());
+    }
+
+    @Test
+    public void uploadImageInParts() throws Exception {
+        Generator generator = new Generator();
+        Laptop laptop = generator.NewLaptop();
+        laptopStore.Save(laptop);
+
+        byte[] image = new byte[250_000];
+        new Random(9).nextBytes(image);
+        int partSize = 100_000;
+
+        LaptopServiceGrpc.LaptopServiceBlockingStub blockingStub = LaptopServiceGrpc.newBlockingStub(channel);
+        ImageInfo info = ImageInfo.newBuilder().setLaptopId(laptop.getId()).setImageType(".jpg").build();
+        InitiateUploadRequest initiate = InitiateUploadRequest.newBuilder()
+                .setInfo(info)
+                .setSize(image.length)
+                .setPartSize(partSize)
+                .build();
+        String uploadID = blockingStub.initiateUpload(initiate).getUploadId();
+
+        LaptopServiceGrpc.LaptopServiceStub stub = LaptopServiceGrpc.newStub(channel);
+        for (int part = 2; part >= 0; part--) {
+            UploadPartResponseStreamObserver responseObserver = new UploadPartResponseStreamObserver();
+            StreamObserver<UploadPartRequest> requestObserver = stub.uploadPart(responseObserver);
+            PartInfo partInfo = PartInfo.newBuilder().setUploadId(uploadID).setPartNumber(part).build();
+            requestObserver.onNext(UploadPartRequest.newBuilder().setInfo(partInfo).build());
+
+            int start = part * partSize;
+            int length = Math.min(partSize, image.length - start);
+            requestObserver.onNext(UploadPartRequest.newBuilder()
+                    .setChunkData(ByteString.copyFrom(image, start, length)).build());
+            requestObserver.onCompleted();
+
+            assertNull(responseObserver.err);
+            assertEquals(length, responseObserver.responses.get(0).getSize());
+        }
+
+        UploadImageResponse response = blockingStub.completeUpload(
+                CompleteUploadRequest.newBuilder().setUploadId(uploadID).build());
+        assertEquals(image.length, response.getSize());
+        Path path = Paths.get(imageStore.Find(response.getId()).getPath());
+        assertArrayEquals(image, Files.readAllBytes(path));
+        imageStore.Delete(response.getId());
+    }
+
+    @Test
+    public void rejectEmptyMultipartUpload() throws Exception {
+        Laptop laptop = new Generator().NewLaptop();
+        laptopStore.Save(laptop);
+
+        LaptopServiceGrpc.LaptopServiceBlockingStub blockingStub = LaptopServiceGrpc.newBlockingStub(channel);
+        ImageInfo info = ImageInfo.newBuilder().setLaptopId(laptop.getId()).setImageType(".jpg").build();
+        try {
+            blockingStub.initiateUpload(InitiateUploadRequest.newBuilder().setInfo(info).setPartSize(100_000).build());
+            fail("empty multipart upload was initiated");
+        } catch (StatusRuntimeException e) {
+            assertEquals(Status.Code.INVALID_ARGUMENT, e.getStatus().getCode());
+        }
+    }
+
+    @Test
+    public void downloadImageRange() throws Exception {
+        byte[] image = new byte[200_000];
+        new Random(17).nextBytes(image);
+        ImageWriter writer = imageStore.Create("laptop", ".jpg");
+        writer.write(ByteString.copyFrom(image));
+        String imageID = writer.commit();
+
+        LaptopServiceGrpc.LaptopServiceBlockingStub stub = LaptopServiceGrpc.newBlockingStub(channel);
+        Iterator<DownloadImageResponse> responses = stub.downloadImage(
+                DownloadImageRequest.newBuilder().setImageId(imageID).build());
+        ImageDetails details = responses.next().getDetails();
+        assertEquals(image.length, details.getSize());
+        assertEquals(".jpg", details.getImageType());
+        assertEquals(ByteString.copyFrom(image), download(responses));
+
+        responses = stub.downloadImage(DownloadImageRequest.newBuilder()
+                .setImageId(imageID)
+                .setOffset(150_000)
+                .setLength(100_000) // past the end, cut to the image
+                .build());
+        assertTrue(responses.next().hasDetails());
+        assertEquals(ByteString.copyFrom(image, 150_000, 50_000), download(responses));
+
+        // a length past Long.MAX_VALUE is cut to the image too
+        responses = stub.downloadImage(DownloadImageRequest.newBuilder()
+                .setImageId(imageID)
+                .setOffset(150_000)
+                .setLength(-1)
+                .build());
+        assertTrue(responses.next().hasDetails());
+        assertEquals(ByteString.copyFrom(image, 150_000, 50_000), download(responses));
+
+        for (long offset : new long[]{200_001, -1}) {
+            try {
+                stub.downloadImage(DownloadImageRequest.newBuilder().setImageId(imageID).setOffset(offset).build()).next();
+                fail("offset past the end was accepted");
+            } catch (StatusRuntimeException e) {
+                assertEquals(Status.Code.OUT_OF_RANGE, e.getStatus().getCode());
+            }
+        }
+        imageStore.Delete(imageID);
+    }
+
+    private static ByteString download(Iterator<DownloadImageResponse> responses) {
+        ByteString data = ByteString.EMPTY;
+        while (responses.hasNext()) {
+            DownloadImageResponse response = responses.next();
+            assertTrue(response.getChunkData().size() <= 64 << 10);
+            data = data.concat(response.getChunkData());
+        }
+        return data;
+    }
+
+    @Test
+    public void getImageVariant() throws Exception {
+        BufferedImage image = new BufferedImage(640, 480, BufferedImage.TYPE_INT_RGB);
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", png);
+        ImageWriter writer = imageStore.Create("laptop", ".png");
+        writer.write(ByteString.copyFrom(png.toByteArray()));
+        String imageID = writer.commit();
+
+        LaptopServiceGrpc.LaptopServiceBlockingStub stub = LaptopServiceGrpc.newBlockingStub(channel);
+        GetImageVariantResponse response = stub.getImageVariant(GetImageVariantRequest.newBuilder()
+                .setImageId(imageID)
+                .setVariant("thumbnail")
+                .setWait(true)
+                .build());
+        assertEquals(GetImageVariantResponse.State.READY, response.getState());
+        assertEquals(160, response.getWidth());
+        assertEquals(120, response.getHeight());
+        assertEquals(160, ImageIO.read(response.getData().newInput()).getWidth());
+
+        try {
+            stub.getImageVariant(GetImageVariantRequest.newBuilder().setImageId(imageID).setVariant("huge").build());
+            fail("unknown variant was accepted");
+        } catch (StatusRuntimeException e) {
+            assertEquals(Status.Code.INVALID_ARGUMENT, e.getStatus().getCode());
+        }
+        imageStore.Delete(imageID);
+    }
+
     @Test
     public void rateLaptop() throws Exception {
         Generator generator = new Generator();
@@ -136,6 +699,54 @@ public class LaptopServerTest {
         }
     }
 
+    private class UploadImageResponseStreamObserver implements StreamObserver<UploadImageResponse> {
+        public List<UploadImageResponse> responses = new LinkedList<>();
+        public Throwable err;
+        public boolean completed;
+        private CountDownLatch done = new CountDownLatch(1);
+
+        @Override
+        public void onNext(UploadImageResponse response) {
+            responses.add(response);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            err = t;
+            done.countDown();
+        }
+
+        @Override
+        public void onCompleted() {
+            completed = true;
+            done.countDown();
+        }
+
+        // the response is only sent once the image is durable, after the request stream ends
+        public void await() throws InterruptedException {
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+        }
+    }
+
+    private class UploadPartResponseStreamObserver implements StreamObserver<UploadPartResponse> {
+        public List<UploadPartResponse> responses = new LinkedList<>();
+        public Throwable err;
+
+        @Override
+        public void onNext(UploadPartResponse response) {
+            responses.add(response);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            err = t;
+        }
+
+        @Override
+        public void onCompleted() {
+        }
+    }
+
     private class RateLaptopResponseStreamObserver implements StreamObserver<RateLaptopResponse> {
         public List<RateLaptopResponse> responses;
         public Throwable err;
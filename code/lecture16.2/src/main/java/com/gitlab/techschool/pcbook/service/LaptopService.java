@@ -2,17 +2,29 @@ package com.gitlab.techschool.pcbook.service;
 
 import com.github.techschool.pcbook.pb.*;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Parser;
 import io.grpc.Context;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerMethodDefinition;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.ServiceDescriptor;
 import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.ServerCalls;
 import io.grpc.stub.StreamObserver;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Logger;
 
 public class LaptopService extends LaptopServiceGrpc.LaptopServiceImplBase {
     private static final Logger logger = Logger.getLogger(LaptopService.class.getName());
+    private static final int DOWNLOAD_CHUNK_SIZE = 64 << 10; // 64 kilobytes
 
     private LaptopStore laptopStore;
     private ImageStore imageStore;
@@ -91,121 +103,807 @@ public class LaptopService extends LaptopServiceGrpc.LaptopServiceImplBase {
         logger.info("saved laptop with ID: " + other.getId());
     }
 
+    @Override
+    public void updateLaptop(UpdateLaptopRequest request, StreamObserver<UpdateLaptopResponse> responseObserver) {
+        Laptop laptop = request.getLaptop();
+        logger.info("got an update-laptop request with ID: " + laptop.getId() +
+                ", mask: " + request.getUpdateMask().getPathsList());
+
+        Laptop updated;
+        try {
+            updated = laptopStore.Update(laptop, request.getUpdateMask());
+        } catch (NotFoundException e) {
+            responseObserver.onError(
+                    Status.NOT_FOUND
+                            .withDescription(e.getMessage())
+                            .asRuntimeException()
+            );
+            return;
+        } catch (IllegalArgumentException e) {
+            responseObserver.onError(
+                    Status.INVALID_ARGUMENT
+                            .withDescription(e.getMessage())
+                            .asRuntimeException()
+            );
+            return;
+        } catch (Exception e) {
+            responseObserver.onError(
+                    Status.INTERNAL
+                            .withDescription(e.getMessage())
+                            .asRuntimeException()
+            );
+            return;
+        }
+
+        UpdateLaptopResponse response = UpdateLaptopResponse.newBuilder().setLaptop(updated).build();
+        responseObserver.onNext(response);
+        responseObserver.onCompleted();
+
+        logger.info("updated laptop with ID: " + updated.getId());
+    }
+
+    @Override
+    public void deleteLaptop(DeleteLaptopRequest request, StreamObserver<DeleteLaptopResponse> responseObserver) {
+        String id = request.getId();
+        logger.info("got a delete-laptop request with ID: " + id);
+
+        try {
+            laptopStore.Delete(id);
+        } catch (NotFoundException e) {
+            responseObserver.onError(
+                    Status.NOT_FOUND
+                            .withDescription(e.getMessage())
+                            .asRuntimeException()
+            );
+            return;
+        } catch (Exception e) {
+            responseObserver.onError(
+                    Status.INTERNAL
+                            .withDescription(e.getMessage())
+                            .asRuntimeException()
+            );
+            return;
+        }
+
+        DeleteLaptopResponse response = DeleteLaptopResponse.newBuilder().setId(id).build();
+        responseObserver.onNext(response);
+        responseObserver.onCompleted();
+
+        logger.info("deleted laptop with ID: " + id);
+    }
+
+    // GetLaptop and SearchLaptop responses are put together from the serialized laptops the store keeps,
+    // so those methods are bound with a marshaller that writes them as they are.
+    // bindService() still serves them, through the overrides below that parse the bytes back into messages.
+    public ServerServiceDefinition bindSerialized() {
+        ServerServiceDefinition generated = bindService();
+        MethodDescriptor<GetLaptopRequest, SerializedMessage> getLaptop =
+                serialized(LaptopServiceGrpc.getGetLaptopMethod());
+        MethodDescriptor<SearchLaptopRequest, SerializedMessage> searchLaptop =
+                serialized(LaptopServiceGrpc.getSearchLaptopMethod());
+
+        // the descriptor must list the very method instances that are bound
+        ServiceDescriptor.Builder descriptor = ServiceDescriptor.newBuilder(LaptopServiceGrpc.SERVICE_NAME)
+                .setSchemaDescriptor(generated.getServiceDescriptor().getSchemaDescriptor())
+                .addMethod(getLaptop)
+                .addMethod(searchLaptop);
+        for (ServerMethodDefinition<?, ?> method : generated.getMethods()) {
+            if (!isSerialized(method.getMethodDescriptor())) {
+                descriptor.addMethod(method.getMethodDescriptor());
+            }
+        }
+
+        ServerServiceDefinition.Builder builder = ServerServiceDefinition.builder(descriptor.build())
+                .addMethod(getLaptop, ServerCalls.asyncUnaryCall(this::getLaptopSerialized))
+                .addMethod(searchLaptop, ServerCalls.asyncServerStreamingCall(this::searchLaptopSerialized));
+        for (ServerMethodDefinition<?, ?> method : generated.getMethods()) {
+            if (!isSerialized(method.getMethodDescriptor())) {
+                builder.addMethod(method);
+            }
+        }
+        return builder.build();
+    }
+
+    private static boolean isSerialized(MethodDescriptor<?, ?> method) {
+        return method.getFullMethodName().equals(LaptopServiceGrpc.getGetLaptopMethod().getFullMethodName())
+                || method.getFullMethodName().equals(LaptopServiceGrpc.getSearchLaptopMethod().getFullMethodName());
+    }
+
+    // same method with a pass-through response marshaller
+    private static <ReqT> MethodDescriptor<ReqT, SerializedMessage> serialized(MethodDescriptor<ReqT, ?> method) {
+        return method.toBuilder(method.getRequestMarshaller(), SerializedMessage.marshaller()).build();
+    }
+
+    @Override
+    public void getLaptop(GetLaptopRequest request, StreamObserver<GetLaptopResponse> responseObserver) {
+        getLaptopSerialized(request, new ParsingObserver<>(
+                (ServerCallStreamObserver<GetLaptopResponse>) responseObserver, GetLaptopResponse.parser()));
+    }
+
     @Override
     public void searchLaptop(SearchLaptopRequest request, StreamObserver<SearchLaptopResponse> responseObserver) {
+        searchLaptopSerialized(request, new ParsingObserver<>(
+                (ServerCallStreamObserver<SearchLaptopResponse>) responseObserver, SearchLaptopResponse.parser()));
+    }
+
+    public void getLaptopSerialized(GetLaptopRequest request, StreamObserver<SerializedMessage> responseObserver) {
+        String id = request.getId();
+        logger.info("got a get-laptop request with ID: " + id + ", mask: " + request.getReadMask().getPathsList());
+
+        LaptopProjection projection;
+        try {
+            projection = LaptopProjection.compile(request.getReadMask());
+        } catch (IllegalArgumentException e) {
+            responseObserver.onError(
+                    Status.INVALID_ARGUMENT
+                            .withDescription(e.getMessage())
+                            .asRuntimeException()
+            );
+            return;
+        }
+
+        ByteString laptop = laptopStore.FindSerialized(id);
+        if (laptop == null) {
+            responseObserver.onError(
+                    Status.NOT_FOUND
+                            .withDescription("laptop ID doesn't exist")
+                            .asRuntimeException()
+            );
+            return;
+        }
+
+        ByteString response = SerializedMessage.field(GetLaptopResponse.LAPTOP_FIELD_NUMBER, projection.project(laptop));
+        responseObserver.onNext(new SerializedMessage(response));
+        responseObserver.onCompleted();
+    }
+
+    public void searchLaptopSerialized(SearchLaptopRequest request, StreamObserver<SerializedMessage> responseObserver) {
         Filter filter = request.getFilter();
         logger.info("got a search-laptop request with filters: \n" + filter);
 
-        laptopStore.Search(Context.current(), filter, new LaptopStream() {
+        LaptopProjection projection;
+        try {
+            projection = LaptopProjection.compile(request.getReadMask());
+        } catch (IllegalArgumentException e) {
+            responseObserver.onError(
+                    Status.INVALID_ARGUMENT
+                            .withDescription(e.getMessage())
+                            .asRuntimeException()
+            );
+            return;
+        }
+
+        // the cursor is only advanced while the transport can take more messages,
+        // so a slow client never makes the server buffer more than a flow control window
+        ServerCallStreamObserver<SerializedMessage> serverObserver =
+                (ServerCallStreamObserver<SerializedMessage>) responseObserver;
+        LaptopCursor cursor = laptopStore.Cursor(filter, projection);
+        SearchBatcher batcher = SearchBatcher.forRequest(request);
+
+        serverObserver.setOnCancelHandler(() -> {
+            logger.info("search laptop is cancelled");
+            cursor.close();
+        });
+        serverObserver.setOnReadyHandler(new Runnable() {
+            private boolean done;
+
             @Override
-            public void Send(Laptop laptop) {
-                logger.info("found laptop with ID: " + laptop.getId());
-                SearchLaptopResponse response = SearchLaptopResponse.newBuilder().setLaptop(laptop).build();
-                responseObserver.onNext(response);
+            public void run() {
+                try {
+                    while (!done && serverObserver.isReady() && !serverObserver.isCancelled()) {
+                        boolean found = batcher == null || batcher.isEmpty()
+                                ? cursor.hasNext()
+                                : cursor.hasNext(batcher.deadline());
+                        if (!found) {
+                            if (cursor.isExhausted()) {
+                                done = true;
+                                complete();
+                                return;
+                            }
+                            // the linger time passed while the scan found nothing
+                            sendBatch();
+                            continue;
+                        }
+
+                        ByteString laptop = cursor.nextSerialized();
+                        if (batcher == null) {
+                            ByteString response = SerializedMessage.field(SearchLaptopResponse.LAPTOP_FIELD_NUMBER, laptop);
+                            serverObserver.onNext(new SerializedMessage(response));
+                            continue;
+                        }
+
+                        if (!batcher.fits(laptop)) {
+                            sendBatch();
+                        }
+                        long now = System.nanoTime();
+                        batcher.add(laptop, now);
+                        if (batcher.isReady(now)) {
+                            sendBatch();
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    done = true;
+                    cursor.close();
+                    serverObserver.onError(
+                            Status.INTERNAL
+                                    .withDescription("cannot search laptop: " + e.getMessage())
+                                    .asRuntimeException()
+                    );
+                }
             }
-        });
 
-        responseObserver.onCompleted();
-        logger.info("search laptop completed");
+            private void sendBatch() {
+                logger.info("found " + batcher.size() + " laptops");
+                serverObserver.onNext(batcher.flush());
+            }
+
+            private void complete() {
+                if (batcher != null && !batcher.isEmpty()) {
+                    sendBatch();
+                }
+
+                SearchPlan plan = cursor.getPlan();
+                cursor.close();
+                if (request.getExplain()) {
+                    logger.info("search plan:\n" + plan);
+                    SearchLaptopResponse response = SearchLaptopResponse.newBuilder().setPlan(plan).build();
+                    serverObserver.onNext(SerializedMessage.of(response));
+                }
+
+                serverObserver.onCompleted();
+                logger.info("search laptop completed, found " + plan.getRowsReturned() + " laptops");
+            }
+        });
     }
 
     @Override
     public StreamObserver<UploadImageRequest> uploadImage(StreamObserver<UploadImageResponse> responseObserver) {
         return new StreamObserver<UploadImageRequest>() {
-            private static final int maxImageSize = 1 << 20; // 1 megabyte
-            private String laptopID;
-            private String imageType;
-            private ByteArrayOutputStream imageData;
+            private ImageWriter imageWriter;
+            private Integer imageCrc32c; // sent by the client after the last chunk
+            private boolean failed;
 
             @Override
             public void onNext(UploadImageRequest request) {
+                if (failed) {
+                    return;
+                }
+
+                if (request.getDataCase() == UploadImageRequest.DataCase.IMAGE_CRC32C) {
+                    imageCrc32c = request.getImageCrc32C();
+                    return;
+                }
+
                 if (request.getDataCase() == UploadImageRequest.DataCase.INFO) {
                     ImageInfo info = request.getInfo();
                     logger.info("receive image info:\n" + info);
 
-                    laptopID = info.getLaptopId();
-                    imageType = info.getImageType();
-                    imageData = new ByteArrayOutputStream();
+                    if (imageWriter != null) {
+                        fail(Status.INVALID_ARGUMENT.withDescription("image info was already sent"));
+                        return;
+                    }
+
+                    if (!info.getUploadId().isEmpty()) {
+                        resume(info.getUploadId(), info.getOffset());
+                        return;
+                    }
 
                     // check laptop exists
-                    Laptop found = laptopStore.Find(laptopID);
-                    if (found == null) {
-                        responseObserver.onError(
-                                Status.NOT_FOUND
-                                        .withDescription("laptop ID doesn't exists")
-                                        .asRuntimeException()
-                        );
+                    if (!laptopStore.Exists(info.getLaptopId())) {
+                        fail(Status.NOT_FOUND.withDescription("laptop ID doesn't exists"));
+                        return;
                     }
 
+                    try {
+                        imageWriter = imageStore.Create(info.getLaptopId(), info.getImageType());
+                    } catch (IOException e) {
+                        fail(Status.INTERNAL.withDescription("cannot create image: " + e.getMessage()));
+                    }
                     return;
                 }
 
                 ByteString chunkData = request.getChunkData();
-                logger.info("receive image chunk with size: " + chunkData.size());
+                logger.fine("receive image chunk with size: " + chunkData.size());
 
-                if (imageData == null) {
+                if (imageWriter == null) {
                     logger.info("image info wasn't sent before");
-                    responseObserver.onError(
-                            Status.INVALID_ARGUMENT
-                                    .withDescription("image info wasn't sent beefore")
-                                    .asRuntimeException()
-                    );
+                    fail(Status.INVALID_ARGUMENT.withDescription("image info wasn't sent beefore"));
+                    return;
+                }
+                if (imageCrc32c != null) {
+                    fail(Status.INVALID_ARGUMENT.withDescription("chunk sent after the image CRC32C"));
+                    return;
+                }
+                // a corrupted chunk is never written, a resumable upload goes on from the bytes before it
+                if (request.hasChunkCrc32C() && Crc32c.of(chunkData) != request.getChunkCrc32C()) {
+                    logger.info("chunk at offset " + imageWriter.size() + " doesn't match its CRC32C");
+                    fail(Status.DATA_LOSS.withDescription(
+                            "chunk at offset " + imageWriter.size() + " doesn't match its CRC32C"));
                     return;
                 }
 
-                int size = imageData.size() + chunkData.size();
-                if (size > maxImageSize) {
-                    logger.info("image is too large: " + size);
-                    responseObserver.onError(
-                            Status.INVALID_ARGUMENT
-                                    .withDescription("image is too large: " + size)
-                                    .asRuntimeException()
-                    );
+                try {
+                    imageWriter.write(chunkData);
+                } catch (ImageTooLargeException e) {
+                    logger.info(e.getMessage());
+                    // the upload can never complete
+                    imageWriter.abort();
+                    fail(Status.INVALID_ARGUMENT.withDescription(e.getMessage()));
+                } catch (IOException e) {
+                    fail(Status.INTERNAL.withDescription("cannot write chunk data: " + e.getMessage()));
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                logger.warning(t.getMessage());
+                if (imageWriter != null) {
+                    // a resumable upload keeps the bytes received so far
+                    imageWriter.suspend();
+                }
+            }
+
+            @Override
+            public void onCompleted() {
+                if (failed) {
+                    return;
+                }
+                if (imageWriter == null) {
+                    fail(Status.INVALID_ARGUMENT.withDescription("image info wasn't sent"));
                     return;
                 }
 
+                UploadImageResponse.Builder response = UploadImageResponse.newBuilder()
+                        .setSize(imageWriter.size());
+                CompletableFuture<String> imageID;
                 try {
-                    chunkData.writeTo(imageData);
+                    int crc32c = imageWriter.crc32c();
+                    if (imageCrc32c != null && crc32c != imageCrc32c) {
+                        // the chunks can't tell which bytes differ, the upload has to start over
+                        imageWriter.abort();
+                        fail(Status.DATA_LOSS.withDescription("image doesn't match its CRC32C"));
+                        return;
+                    }
+                    response.setCrc32C(crc32c);
+                    imageID = imageWriter.commitAsync();
                 } catch (IOException e) {
-                    responseObserver.onError(
-                            Status.INTERNAL
-                                    .withDescription("cannot write chunk data: " + e.getMessage())
-                                    .asRuntimeException()
-                    );
+                    fail(Status.INTERNAL.withDescription("cannot save image to the store: " + e.getMessage()));
+                    return;
+                }
+
+                // the image is only acknowledged once it is durable, the call doesn't hold a thread meanwhile
+                sendCommitted(imageID, response, responseObserver);
+            }
+
+            private void resume(String uploadID, long offset) {
+                try {
+                    imageWriter = imageStore.Resume(uploadID, offset);
+                } catch (NotFoundException e) {
+                    fail(Status.NOT_FOUND.withDescription(e.getMessage()));
+                } catch (IllegalArgumentException e) {
+                    fail(Status.OUT_OF_RANGE.withDescription(e.getMessage()));
+                } catch (IOException e) {
+                    fail(Status.INTERNAL.withDescription("cannot resume upload: " + e.getMessage()));
+                }
+            }
+
+            // ends the call with the status, later messages are ignored.
+            // A resumable upload keeps the bytes received so far, any other partial image is dropped.
+            private void fail(Status status) {
+                failed = true;
+                if (imageWriter != null) {
+                    imageWriter.suspend();
+                }
+                responseObserver.onError(status.asRuntimeException());
+            }
+        };
+    }
+
+    @Override
+    public void initiateUpload(InitiateUploadRequest request, StreamObserver<InitiateUploadResponse> responseObserver) {
+        ImageInfo info = request.getInfo();
+        logger.info("got an initiate-upload request:\n" + info);
+
+        if (!laptopStore.Exists(info.getLaptopId())) {
+            responseObserver.onError(
+                    Status.NOT_FOUND
+                            .withDescription("laptop ID doesn't exists")
+                            .asRuntimeException()
+            );
+            return;
+        }
+
+        String uploadID;
+        try {
+            // an empty image has no part to send, the store rejects a multipart upload of 0 bytes
+            if (request.getSize() != 0 || request.getPartSize() != 0) {
+                uploadID = imageStore.InitiateMultipart(info.getLaptopId(), info.getImageType(),
+                        request.getSize(), request.getPartSize());
+            } else {
+                uploadID = imageStore.Initiate(info.getLaptopId(), info.getImageType());
+            }
+        } catch (ImageTooLargeException | IllegalArgumentException e) {
+            responseObserver.onError(
+                    Status.INVALID_ARGUMENT
+                            .withDescription(e.getMessage())
+                            .asRuntimeException()
+            );
+            return;
+        } catch (UnsupportedOperationException e) {
+            // the store only takes images sent in a single stream
+            responseObserver.onError(
+                    Status.UNIMPLEMENTED
+                            .withDescription(e.getMessage())
+                            .asRuntimeException()
+            );
+            return;
+        } catch (IOException e) {
+            responseObserver.onError(
+                    Status.INTERNAL
+                            .withDescription("cannot initiate upload: " + e.getMessage())
+                            .asRuntimeException()
+            );
+            return;
+        }
+
+        InitiateUploadResponse response = InitiateUploadResponse.newBuilder().setUploadId(uploadID).build();
+        responseObserver.onNext(response);
+        responseObserver.onCompleted();
+    }
+
+    @Override
+    public void queryUpload(QueryUploadRequest request, StreamObserver<QueryUploadResponse> responseObserver) {
+        long offset;
+        try {
+            offset = imageStore.Query(request.getUploadId());
+        } catch (NotFoundException e) {
+            responseObserver.onError(
+                    Status.NOT_FOUND
+                            .withDescription(e.getMessage())
+                            .asRuntimeException()
+            );
+            return;
+        }
+
+        QueryUploadResponse response = QueryUploadResponse.newBuilder().setOffset(offset).build();
+        responseObserver.onNext(response);
+        responseObserver.onCompleted();
+    }
+
+    @Override
+    public StreamObserver<UploadPartRequest> uploadPart(StreamObserver<UploadPartResponse> responseObserver) {
+        return new StreamObserver<UploadPartRequest>() {
+            private int partNumber;
+            private ImageWriter partWriter;
+            private boolean failed;
+
+            @Override
+            public void onNext(UploadPartRequest request) {
+                if (failed) {
+                    return;
+                }
+
+                if (request.getDataCase() == UploadPartRequest.DataCase.INFO) {
+                    PartInfo info = request.getInfo();
+                    logger.info("receive part info:\n" + info);
+
+                    if (partWriter != null) {
+                        fail(Status.INVALID_ARGUMENT.withDescription("part info was already sent"));
+                        return;
+                    }
+
+                    partNumber = info.getPartNumber();
+                    try {
+                        partWriter = imageStore.WritePart(info.getUploadId(), partNumber);
+                    } catch (NotFoundException e) {
+                        fail(Status.NOT_FOUND.withDescription(e.getMessage()));
+                    } catch (IllegalArgumentException e) {
+                        fail(Status.OUT_OF_RANGE.withDescription(e.getMessage()));
+                    } catch (IOException e) {
+                        fail(Status.INTERNAL.withDescription("cannot write part: " + e.getMessage()));
+                    }
                     return;
                 }
+
+                if (partWriter == null) {
+                    fail(Status.INVALID_ARGUMENT.withDescription("part info wasn't sent before"));
+                    return;
+                }
+
+                try {
+                    partWriter.write(request.getChunkData());
+                } catch (ImageTooLargeException e) {
+                    fail(Status.INVALID_ARGUMENT.withDescription("part " + partNumber + " is too large"));
+                } catch (IOException e) {
+                    fail(Status.INTERNAL.withDescription("cannot write chunk data: " + e.getMessage()));
+                }
             }
 
             @Override
             public void onError(Throwable t) {
                 logger.warning(t.getMessage());
+                if (partWriter != null) {
+                    partWriter.abort();
+                }
             }
 
             @Override
             public void onCompleted() {
-                String imageID = "";
-                int imageSize = imageData.size();
+                if (failed) {
+                    return;
+                }
+                if (partWriter == null) {
+                    fail(Status.INVALID_ARGUMENT.withDescription("part info wasn't sent"));
+                    return;
+                }
+
+                long partSize = partWriter.size();
                 try {
-                    imageID = imageStore.Save(laptopID, imageType, imageData);
+                    partWriter.commit();
+                } catch (IllegalStateException e) {
+                    fail(Status.INVALID_ARGUMENT.withDescription(e.getMessage()));
+                    return;
                 } catch (IOException e) {
-                    responseObserver.onError(
-                            Status.INTERNAL
-                                    .withDescription("cannot save image to the store: " + e.getMessage())
-                                    .asRuntimeException()
-                    );
+                    fail(Status.INTERNAL.withDescription("cannot save part: " + e.getMessage()));
+                    return;
                 }
 
-                UploadImageResponse response = UploadImageResponse.newBuilder()
-                        .setId(imageID)
-                        .setSize(imageSize)
+                UploadPartResponse response = UploadPartResponse.newBuilder()
+                        .setPartNumber(partNumber)
+                        .setSize(partSize)
                         .build();
 
                 responseObserver.onNext(response);
                 responseObserver.onCompleted();
             }
+
+            private void fail(Status status) {
+                failed = true;
+                if (partWriter != null) {
+                    partWriter.abort();
+                }
+                responseObserver.onError(status.asRuntimeException());
+            }
         };
     }
 
+    @Override
+    public void completeUpload(CompleteUploadRequest request, StreamObserver<UploadImageResponse> responseObserver) {
+        String uploadID = request.getUploadId();
+        logger.info("got a complete-upload request with ID: " + uploadID);
+
+        CompletableFuture<String> imageID;
+        long imageSize;
+        try {
+            imageSize = imageStore.Query(uploadID);
+            imageID = imageStore.Complete(uploadID);
+        } catch (NotFoundException e) {
+            responseObserver.onError(
+                    Status.NOT_FOUND
+                            .withDescription(e.getMessage())
+                            .asRuntimeException()
+            );
+            return;
+        } catch (IllegalStateException e) {
+            responseObserver.onError(
+                    Status.FAILED_PRECONDITION
+                            .withDescription(e.getMessage())
+                            .asRuntimeException()
+            );
+            return;
+        } catch (IOException e) {
+            responseObserver.onError(
+                    Status.INTERNAL
+                            .withDescription("cannot save image to the store: " + e.getMessage())
+                            .asRuntimeException()
+            );
+            return;
+        }
+
+        sendCommitted(imageID, UploadImageResponse.newBuilder().setSize(imageSize), responseObserver);
+    }
+
+    private static void sendCommitted(CompletableFuture<String> imageID, UploadImageResponse.Builder response,
+                                      StreamObserver<UploadImageResponse> responseObserver) {
+        imageID.whenComplete((id, error) -> {
+            if (error != null) {
+                responseObserver.onError(
+                        Status.INTERNAL
+                                .withDescription("cannot save image to the store: " + error.getMessage())
+                                .asRuntimeException()
+                );
+                return;
+            }
+
+            responseObserver.onNext(response.setId(id).build());
+            responseObserver.onCompleted();
+        });
+    }
+
+    @Override
+    public void downloadImage(DownloadImageRequest request, StreamObserver<DownloadImageResponse> responseObserver) {
+        String imageID = request.getImageId();
+        logger.info("got a download-image request with ID: " + imageID
+                + ", offset: " + request.getOffset() + ", length: " + request.getLength());
+
+        ImageMetadata metadata = imageStore.Find(imageID);
+        if (metadata == null) {
+            responseObserver.onError(
+                    Status.NOT_FOUND
+                            .withDescription("image ID doesn't exist")
+                            .asRuntimeException()
+            );
+            return;
+        }
+        // offset and length are uint64, a value past Long.MAX_VALUE arrives negative
+        if (Long.compareUnsigned(request.getOffset(), metadata.getSize()) > 0) {
+            responseObserver.onError(
+                    Status.OUT_OF_RANGE
+                            .withDescription("offset is past the " + metadata.getSize() + " bytes image")
+                            .asRuntimeException()
+            );
+            return;
+        }
+
+        ImageReader reader;
+        try {
+            reader = imageStore.Open(imageID);
+        } catch (NotFoundException e) {
+            responseObserver.onError(
+                    Status.NOT_FOUND
+                            .withDescription(e.getMessage())
+                            .asRuntimeException()
+            );
+            return;
+        } catch (IOException e) {
+            responseObserver.onError(
+                    Status.INTERNAL
+                            .withDescription("cannot open image: " + e.getMessage())
+                            .asRuntimeException()
+            );
+            return;
+        }
+
+        long remaining = metadata.getSize() - request.getOffset();
+        long end = request.getLength() == 0 || Long.compareUnsigned(request.getLength(), remaining) > 0
+                ? metadata.getSize()
+                : request.getOffset() + request.getLength();
+        ImageDetails details = metadata.toDetails();
+
+        // like a search, the file is only read while the transport can take more chunks
+        ServerCallStreamObserver<DownloadImageResponse> serverObserver =
+                (ServerCallStreamObserver<DownloadImageResponse>) responseObserver;
+        serverObserver.setOnCancelHandler(() -> {
+            logger.info("download image is cancelled");
+            close(reader);
+        });
+        serverObserver.setOnReadyHandler(new Runnable() {
+            private boolean sentDetails;
+            private long offset = request.getOffset();
+            private boolean done;
+
+            @Override
+            public void run() {
+                try {
+                    while (!done && serverObserver.isReady() && !serverObserver.isCancelled()) {
+                        if (!sentDetails) {
+                            sentDetails = true;
+                            serverObserver.onNext(DownloadImageResponse.newBuilder().setDetails(details).build());
+                            continue;
+                        }
+                        if (offset >= end) {
+                            done = true;
+                            close(reader);
+                            serverObserver.onCompleted();
+                            logger.info("download image completed: " + imageID);
+                            return;
+                        }
+
+                        ByteString chunk = reader.read(offset, (int) Math.min(DOWNLOAD_CHUNK_SIZE, end - offset));
+                        offset += chunk.size();
+                        serverObserver.onNext(DownloadImageResponse.newBuilder().setChunkData(chunk).build());
+                    }
+                } catch (IOException | RuntimeException e) {
+                    done = true;
+                    close(reader);
+                    serverObserver.onError(
+                            Status.INTERNAL
+                                    .withDescription("cannot read image: " + e.getMessage())
+                                    .asRuntimeException()
+                    );
+                }
+            }
+        });
+    }
+
+    @Override
+    public void listImages(ListImagesRequest request, StreamObserver<ListImagesResponse> responseObserver) {
+        String laptopID = request.getLaptopId();
+        logger.info("got a list-images request with laptop ID: " + laptopID);
+
+        // answered from the index in memory, the image files aren't touched
+        ListImagesResponse.Builder response = ListImagesResponse.newBuilder();
+        for (ImageMetadata metadata : imageStore.FindByLaptop(laptopID)) {
+            response.addImages(metadata.toDetails());
+        }
+
+        responseObserver.onNext(response.build());
+        responseObserver.onCompleted();
+    }
+
+    @Override
+    public void getImageVariant(GetImageVariantRequest request, StreamObserver<GetImageVariantResponse> responseObserver) {
+        logger.info("got a get-image-variant request with ID: " + request.getImageId()
+                + ", variant: " + request.getVariant());
+
+        CompletableFuture<ImageVariant> variant;
+        try {
+            variant = imageStore.GetVariant(request.getImageId(), request.getVariant());
+        } catch (NotFoundException e) {
+            responseObserver.onError(
+                    Status.NOT_FOUND
+                            .withDescription(e.getMessage())
+                            .asRuntimeException()
+            );
+            return;
+        } catch (IllegalArgumentException e) {
+            responseObserver.onError(
+                    Status.INVALID_ARGUMENT
+                            .withDescription(e.getMessage())
+                            .asRuntimeException()
+            );
+            return;
+        }
+
+        if (!variant.isDone() && !request.getWait()) {
+            GetImageVariantResponse response = GetImageVariantResponse.newBuilder()
+                    .setState(GetImageVariantResponse.State.PENDING)
+                    .build();
+            responseObserver.onNext(response);
+            responseObserver.onCompleted();
+            return;
+        }
+
+        // a waiting call holds no thread, it is answered by the worker that finishes the variant
+        ServerCallStreamObserver<GetImageVariantResponse> serverObserver =
+                (ServerCallStreamObserver<GetImageVariantResponse>) responseObserver;
+        variant.whenComplete((ready, error) -> {
+            if (serverObserver.isCancelled()) {
+                return;
+            }
+
+            GetImageVariantResponse.Builder response = GetImageVariantResponse.newBuilder();
+            if (error != null) {
+                response.setState(GetImageVariantResponse.State.FAILED);
+            } else {
+                try (InputStream data = Files.newInputStream(Paths.get(ready.getPath()))) {
+                    response.setState(GetImageVariantResponse.State.READY)
+                            .setImageType(ready.getType())
+                            .setWidth(ready.getWidth())
+                            .setHeight(ready.getHeight())
+                            .setData(ByteString.readFrom(data));
+                } catch (IOException e) {
+                    serverObserver.onError(
+                            Status.INTERNAL
+                                    .withDescription("cannot read variant: " + e.getMessage())
+                                    .asRuntimeException()
+                    );
+                    return;
+                }
+            }
+            serverObserver.onNext(response.build());
+            serverObserver.onCompleted();
+        });
+    }
+
+    private static void close(ImageReader reader) {
+        try {
+            reader.close();
+        } catch (IOException e) {
+            logger.warning("cannot close image: " + e.getMessage());
+        }
+    }
+
     @Override
     public StreamObserver<RateLaptopRequest> rateLaptop(StreamObserver<RateLaptopResponse> responseObserver) {
         return new StreamObserver<RateLaptopRequest>() {
@@ -216,8 +914,7 @@ public class LaptopService extends LaptopServiceGrpc.LaptopServiceImplBase {
 
                 logger.info("received rate-laptop request: id = " + laptopId + ", score = " + score);
 
-                Laptop found = laptopStore.Find(laptopId);
-                if (found == null) {
+                if (!laptopStore.Exists(laptopId)) {
                     responseObserver.onError(
                             Status.NOT_FOUND
                                     .withDescription("laptop ID doesn't exists")
@@ -247,4 +944,75 @@ public class LaptopService extends LaptopServiceGrpc.LaptopServiceImplBase {
             }
         };
     }
+
+    // the typed side of a method bound through bindService(): the serialized responses are parsed back
+    // and flow control is passed through, so the search still follows the readiness of the transport
+    private static class ParsingObserver<T> extends ServerCallStreamObserver<SerializedMessage> {
+        private final ServerCallStreamObserver<T> delegate;
+        private final Parser<T> parser;
+
+        ParsingObserver(ServerCallStreamObserver<T> delegate, Parser<T> parser) {
+            this.delegate = delegate;
+            this.parser = parser;
+        }
+
+        @Override
+        public void onNext(SerializedMessage message) {
+            try {
+                delegate.onNext(parser.parseFrom(message.getBytes()));
+            } catch (InvalidProtocolBufferException e) {
+                throw new IllegalStateException("cannot parse a serialized response", e);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            delegate.onError(t);
+        }
+
+        @Override
+        public void onCompleted() {
+            delegate.onCompleted();
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return delegate.isCancelled();
+        }
+
+        @Override
+        public void setOnCancelHandler(Runnable onCancelHandler) {
+            delegate.setOnCancelHandler(onCancelHandler);
+        }
+
+        @Override
+        public void setCompression(String compression) {
+            delegate.setCompression(compression);
+        }
+
+        @Override
+        public boolean isReady() {
+            return delegate.isReady();
+        }
+
+        @Override
+        public void setOnReadyHandler(Runnable onReadyHandler) {
+            delegate.setOnReadyHandler(onReadyHandler);
+        }
+
+        @Override
+        public void disableAutoInboundFlowControl() {
+            delegate.disableAutoInboundFlowControl();
+        }
+
+        @Override
+        public void request(int count) {
+            delegate.request(count);
+        }
+
+        @Override
+        public void setMessageCompression(boolean enable) {
+            delegate.setMessageCompression(enable);
+        }
+    }
 }
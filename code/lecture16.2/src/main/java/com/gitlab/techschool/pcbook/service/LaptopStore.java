@@ -2,11 +2,44 @@ package com.gitlab.techschool.pcbook.service;
 
 import com.github.techschool.pcbook.pb.Filter;
 import com.github.techschool.pcbook.pb.Laptop;
+import com.github.techschool.pcbook.pb.SearchPlan;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.FieldMask;
 import io.grpc.Context;
 
+import java.util.logging.Logger;
+
 public interface LaptopStore {
+    Logger logger = Logger.getLogger(LaptopStore.class.getName()); // of the default methods
+
     void Save(Laptop laptop) throws Exception; // consider using a separate db model
+    Laptop Update(Laptop laptop, FieldMask mask) throws Exception;
+    void Delete(String id) throws Exception;
     Laptop Find(String id);
-    void Search(Context ctx, Filter filter, LaptopStream stream);
-}
 
+    // the laptop in wire format, stores that keep serialized laptops return them without encoding again
+    default ByteString FindSerialized(String id) {
+        Laptop laptop = Find(id);
+        return laptop == null ? null : laptop.toByteString();
+    }
+
+    boolean Exists(String id);
+    LaptopCursor Cursor(Filter filter, LaptopProjection projection); // the caller must close the cursor
+
+    default LaptopCursor Cursor(Filter filter) {
+        return Cursor(filter, LaptopProjection.ALL);
+    }
+
+    default SearchPlan Search(Context ctx, Filter filter, LaptopStream stream) {
+        try (LaptopCursor cursor = Cursor(filter)) {
+            while (cursor.hasNext()) {
+                if (ctx.isCancelled()) {
+                    logger.info("context is cancelled");
+                    break;
+                }
+                stream.Send(cursor.next());
+            }
+            return cursor.getPlan();
+        }
+    }
+}
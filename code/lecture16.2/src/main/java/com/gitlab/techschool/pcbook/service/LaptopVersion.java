@@ -0,0 +1,65 @@
+package com.gitlab.techschool.pcbook.service;
+
+import com.github.techschool.pcbook.pb.Laptop;
+import com.google.protobuf.ByteString;
+
+// One version in the chain of a laptop, newest first. A null laptop marks a deletion.
+public class LaptopVersion implements StoredLaptop {
+    private final Laptop laptop;
+    private final long version;
+    private volatile LaptopVersion previous;
+    private volatile ByteString bytes; // serialized on first read, racing readers produce equal bytes
+
+    public LaptopVersion(Laptop laptop, long version, LaptopVersion previous) {
+        this.laptop = laptop;
+        this.version = version;
+        this.previous = previous;
+    }
+
+    @Override
+    public Laptop getLaptop() {
+        return laptop;
+    }
+
+    @Override
+    public ByteString getBytes() {
+        ByteString serialized = bytes;
+        if (serialized == null && laptop != null) {
+            serialized = laptop.toByteString();
+            bytes = serialized;
+        }
+        return serialized;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public LaptopVersion getPrevious() {
+        return previous;
+    }
+
+    public boolean isDeleted() {
+        return laptop == null;
+    }
+
+    // returns the version seen by a snapshot, which may be a deletion, or null if there was none
+    public LaptopVersion versionAt(long snapshot) {
+        LaptopVersion node = this;
+        while (node != null && node.version > snapshot) {
+            node = node.previous;
+        }
+        return node;
+    }
+
+    // cuts off the versions that no snapshot at or after the horizon can see and returns them, newest first
+    public LaptopVersion prune(long horizon) {
+        LaptopVersion node = this;
+        while (node.version > horizon && node.previous != null) {
+            node = node.previous;
+        }
+        LaptopVersion dropped = node.previous;
+        node.previous = null;
+        return dropped;
+    }
+}
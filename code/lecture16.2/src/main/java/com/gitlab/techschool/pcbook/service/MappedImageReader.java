@@ -0,0 +1,56 @@
+package com.gitlab.techschool.pcbook.service;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Maps the image one window at a time, a mapping can't exceed 2 GB and a window is enough
+// for a reader that moves forward. The chunks are views of the mapping, not copies on the heap.
+public class MappedImageReader implements ImageReader {
+    private static final int WINDOW_SIZE = 64 << 20; // 64 megabytes
+
+    private final FileChannel channel;
+    private final long size;
+    private MappedByteBuffer window;
+    private long windowStart;
+
+    public MappedImageReader(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.size = channel.size();
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public ByteString read(long offset, int length) throws IOException {
+        if (offset < 0 || offset > size) {
+            throw new IllegalArgumentException("offset " + offset + " is outside the " + size + " bytes image");
+        }
+        if (offset == size || length == 0) {
+            return ByteString.EMPTY;
+        }
+        if (window == null || offset < windowStart || offset >= windowStart + window.capacity()) {
+            windowStart = offset;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(WINDOW_SIZE, size - offset));
+        }
+
+        ByteBuffer chunk = window.duplicate();
+        int position = (int) (offset - windowStart);
+        chunk.position(position);
+        chunk.limit(Math.min(chunk.capacity(), position + length));
+        // the mapping stays valid after the file is closed or deleted, until the GC drops it
+        return UnsafeByteOperations.unsafeWrap(chunk.slice());
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,69 @@
+package com.gitlab.techschool.pcbook.service;
+
+import com.github.techschool.pcbook.pb.LaptopServiceGrpc;
+import com.google.protobuf.MessageLite;
+import io.grpc.Codec;
+import io.grpc.CompressorRegistry;
+import io.grpc.DecompressorRegistry;
+import io.grpc.MethodDescriptor;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Which encoding each method uses, and below which size a message is sent uncompressed anyway.
+// The encoding is only used when the peer advertises it, otherwise messages go uncompressed.
+public class MessageCompression {
+    public static final int DEFAULT_MIN_MESSAGE_BYTES = 1024;
+
+    private final Map<String, String> encodings;
+    private final int minMessageBytes;
+
+    public MessageCompression(int minMessageBytes) {
+        this.encodings = new HashMap<>();
+        this.minMessageBytes = minMessageBytes;
+    }
+
+    // search results compress well, images are already compressed and rating messages are tiny
+    public static MessageCompression defaults() {
+        return new MessageCompression(DEFAULT_MIN_MESSAGE_BYTES)
+                .forMethod(LaptopServiceGrpc.getSearchLaptopMethod(), Lz4Codec.ENCODING)
+                .forMethod(LaptopServiceGrpc.getGetLaptopMethod(), Lz4Codec.ENCODING);
+    }
+
+    public static MessageCompression none() {
+        return new MessageCompression(Integer.MAX_VALUE);
+    }
+
+    public static CompressorRegistry compressorRegistry() {
+        CompressorRegistry registry = CompressorRegistry.newEmptyInstance();
+        registry.register(Codec.Identity.NONE);
+        registry.register(new Codec.Gzip());
+        registry.register(new Lz4Codec());
+        return registry;
+    }
+
+    public static DecompressorRegistry decompressorRegistry() {
+        return DecompressorRegistry.getDefaultInstance().with(new Lz4Codec(), true);
+    }
+
+    // encoding is "gzip", "lz4" or "identity"
+    public MessageCompression forMethod(MethodDescriptor<?, ?> method, String encoding) {
+        encodings.put(method.getFullMethodName(), encoding);
+        return this;
+    }
+
+    // null if the method isn't compressed
+    public String encodingOf(MethodDescriptor<?, ?> method) {
+        return encodings.get(method.getFullMethodName());
+    }
+
+    public boolean shouldCompress(Object message) {
+        if (message instanceof SerializedMessage) {
+            return ((SerializedMessage) message).size() >= minMessageBytes;
+        }
+        if (message instanceof MessageLite) {
+            return ((MessageLite) message).getSerializedSize() >= minMessageBytes;
+        }
+        return true;
+    }
+}
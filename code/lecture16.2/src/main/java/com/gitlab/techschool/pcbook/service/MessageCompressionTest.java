@@ -0,0 +1,170 @@
+package com.gitlab.techschool.pcbook.service;
+
+import com.github.techschool.pcbook.pb.*;
+import com.gitlab.techschool.pcbook.sample.Generator;
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.ForwardingClientCall;
+import io.grpc.ForwardingClientCallListener;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerBuilder;
+import io.grpc.testing.GrpcCleanupRule;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MessageCompressionTest {
+    private static final Metadata.Key<String> ENCODING =
+            Metadata.Key.of("grpc-encoding", Metadata.ASCII_STRING_MARSHALLER);
+
+    @Rule
+    public final GrpcCleanupRule grpcCleanup = new GrpcCleanupRule();
+
+    private LaptopStore laptopStore;
+    private LaptopServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        laptopStore = new InMemoryLaptopStore();
+        Generator generator = new Generator();
+        for (int i = 0; i < 100; i++) {
+            laptopStore.Save(generator.NewLaptop());
+        }
+
+        MessageCompression compression = new MessageCompression(1024)
+                .forMethod(LaptopServiceGrpc.getSearchLaptopMethod(), Lz4Codec.ENCODING);
+        server = new LaptopServer(ServerBuilder.forPort(0), 0, laptopStore, new DiskImageStore("img"),
+                new InMemoryRatingStore(), compression);
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void lz4RoundTrip() throws Exception {
+        SearchLaptopResponse.Builder batch = SearchLaptopResponse.newBuilder();
+        laptopStore.Search(io.grpc.Context.ROOT, Filter.newBuilder().setMaxPriceUsd(10000).build(), batch::addLaptops);
+        byte[] bytes = batch.build().toByteArray();
+
+        Lz4Codec codec = new Lz4Codec();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (OutputStream os = codec.compress(compressed)) {
+            os.write(bytes);
+        }
+        assertTrue(compressed.size() < bytes.length);
+
+        try (InputStream is = codec.decompress(new ByteArrayInputStream(compressed.toByteArray()))) {
+            assertEquals(batch.build(), SearchLaptopResponse.parseFrom(is));
+        }
+    }
+
+    @Test
+    public void negotiateCompressionPerMethod() {
+        List<String> encodings = new ArrayList<>();
+        ManagedChannel channel = grpcCleanup.register(ManagedChannelBuilder.forAddress("localhost", server.getPort())
+                .usePlaintext()
+                .compressorRegistry(MessageCompression.compressorRegistry())
+                .decompressorRegistry(MessageCompression.decompressorRegistry())
+                .intercept(new ClientCompressionInterceptor(new MessageCompression(0)
+                        .forMethod(LaptopServiceGrpc.getSearchLaptopMethod(), "gzip")))
+                .intercept(new EncodingRecorder(encodings))
+                .build());
+
+        // batches are above the threshold, both directions are compressed
+        assertEquals(100, search(channel, 50));
+        assertEquals("lz4", encodings.get(0));
+
+        // methods without an encoding are left alone
+        encodings.clear();
+        GetLaptopRequest request = GetLaptopRequest.newBuilder().setId("unknown").build();
+        try {
+            LaptopServiceGrpc.newBlockingStub(channel).getLaptop(request);
+            fail();
+        } catch (io.grpc.StatusRuntimeException e) {
+            assertEquals(io.grpc.Status.Code.NOT_FOUND, e.getStatus().getCode());
+        }
+        assertUncompressed(encodings.get(0));
+    }
+
+    @Test
+    public void fallBackToIdentityWhenTheClientDoesNotAcceptTheEncoding() {
+        List<String> encodings = new ArrayList<>();
+        ManagedChannel channel = grpcCleanup.register(ManagedChannelBuilder.forAddress("localhost", server.getPort())
+                .usePlaintext()
+                .intercept(new EncodingRecorder(encodings))
+                .build());
+
+        assertEquals(100, search(channel, 50));
+        assertUncompressed(encodings.get(0));
+    }
+
+    private static void assertUncompressed(String encoding) {
+        assertTrue(encoding == null || encoding.equals("identity"));
+    }
+
+    private static int search(Channel channel, int batchSize) {
+        SearchLaptopRequest request = SearchLaptopRequest.newBuilder()
+                .setFilter(Filter.newBuilder().setMaxPriceUsd(10000))
+                .setBatchSize(batchSize)
+                .build();
+
+        int found = 0;
+        for (java.util.Iterator<SearchLaptopResponse> it = LaptopServiceGrpc.newBlockingStub(channel).searchLaptop(request);
+             it.hasNext(); ) {
+            found += it.next().getLaptopsCount();
+        }
+        return found;
+    }
+
+    // records the message encoding chosen by the server for each call
+    private static class EncodingRecorder implements ClientInterceptor {
+        private final List<String> encodings;
+
+        EncodingRecorder(List<String> encodings) {
+            this.encodings = encodings;
+        }
+
+        @Override
+        public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(MethodDescriptor<ReqT, RespT> method,
+                                                                   CallOptions callOptions, Channel next) {
+            return new ForwardingClientCall.SimpleForwardingClientCall<ReqT, RespT>(next.newCall(method, callOptions)) {
+                @Override
+                public void start(Listener<RespT> responseListener, Metadata headers) {
+                    super.start(new ForwardingClientCallListener.SimpleForwardingClientCallListener<RespT>(responseListener) {
+                        @Override
+                        public void onHeaders(Metadata headers) {
+                            encodings.add(headers.get(ENCODING));
+                            super.onHeaders(headers);
+                        }
+
+                        @Override
+                        public void onClose(io.grpc.Status status, Metadata trailers) {
+                            if (encodings.isEmpty()) {
+                                encodings.add(null);
+                            }
+                            super.onClose(status, trailers);
+                        }
+                    }, headers);
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,7 @@
+package com.gitlab.techschool.pcbook.service;
+
+public class NotFoundException extends RuntimeException {
+    public NotFoundException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,64 @@
+package com.gitlab.techschool.pcbook.service;
+
+import com.github.techschool.pcbook.pb.Filter;
+import com.github.techschool.pcbook.pb.SearchPlan;
+
+// Picks the cheapest access path for a filter from the catalog statistics.
+public class QueryPlanner {
+    // relative cost of visiting one laptop through each access path
+    private static final double SCAN_ROW_COST = 1.0;
+    private static final double INDEX_ROW_COST = 2.0; // skip list step + hash lookup + predicate check
+    private static final double BITMAP_ROW_COST = 1.5; // ordinal lookup + predicate check
+    private static final double BITMAP_WORD_COST = 0.1; // OR one 64-bit word of one bitmap
+
+    private final CatalogStatistics stats;
+
+    public QueryPlanner(CatalogStatistics stats) {
+        this.stats = stats;
+    }
+
+    public SearchPlan plan(Filter filter) {
+        double rows = stats.rowCount();
+
+        SearchPlan.Candidate fullScan = candidate(SearchPlan.AccessPath.FULL_SCAN, rows, rows * SCAN_ROW_COST);
+
+        double priceRows = stats.estimatePriceAtMost(filter.getMaxPriceUsd());
+        SearchPlan.Candidate priceIndex = candidate(SearchPlan.AccessPath.PRICE_INDEX,
+                priceRows, priceRows * INDEX_ROW_COST);
+
+        double ramRows = stats.estimateRamAtLeast(FilterMatcher.toBit(filter.getMinRam()));
+        SearchPlan.Candidate ramIndex = candidate(SearchPlan.AccessPath.RAM_INDEX,
+                ramRows, ramRows * INDEX_ROW_COST);
+
+        double coresRows = stats.estimateCoresAtLeast(filter.getMinCpuCores());
+        double bitmapWords = Math.ceil(rows / 64) * stats.distinctCoresAtLeast(filter.getMinCpuCores());
+        SearchPlan.Candidate coresBitmap = candidate(SearchPlan.AccessPath.CORES_BITMAP,
+                coresRows, bitmapWords * BITMAP_WORD_COST + coresRows * BITMAP_ROW_COST);
+
+        SearchPlan.Candidate best = fullScan;
+        for (SearchPlan.Candidate candidate : new SearchPlan.Candidate[]{priceIndex, ramIndex, coresBitmap}) {
+            if (candidate.getEstimatedCost() < best.getEstimatedCost()) {
+                best = candidate;
+            }
+        }
+
+        return SearchPlan.newBuilder()
+                .setAccessPath(best.getAccessPath())
+                .setEstimatedCost(best.getEstimatedCost())
+                .setEstimatedRowsScanned(best.getEstimatedRowsScanned())
+                .setEstimatedRowsReturned(Math.round(stats.estimateMatches(filter)))
+                .addCandidates(fullScan)
+                .addCandidates(priceIndex)
+                .addCandidates(ramIndex)
+                .addCandidates(coresBitmap)
+                .build();
+    }
+
+    private static SearchPlan.Candidate candidate(SearchPlan.AccessPath path, double rows, double cost) {
+        return SearchPlan.Candidate.newBuilder()
+                .setAccessPath(path)
+                .setEstimatedRowsScanned(Math.round(rows))
+                .setEstimatedCost(cost)
+                .build();
+    }
+}
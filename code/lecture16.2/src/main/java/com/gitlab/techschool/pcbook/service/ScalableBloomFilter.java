@@ -0,0 +1,141 @@
+package com.gitlab.techschool.pcbook.service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Bloom filter that keeps its false positive rate bounded as it grows: when a stage is full,
+// a new stage twice as large with half the error rate is added. The error rates form a geometric
+// series, so the overall rate stays below the configured one however many IDs are added.
+public class ScalableBloomFilter {
+    private static final int GROWTH = 2;
+    private static final double TIGHTENING = 0.5;
+
+    private final double falsePositiveRate;
+    private final List<Stage> stages;
+
+    public ScalableBloomFilter(int expectedInsertions, double falsePositiveRate) {
+        this.falsePositiveRate = falsePositiveRate;
+        this.stages = new CopyOnWriteArrayList<>();
+        stages.add(new Stage(Math.max(expectedInsertions, 64), falsePositiveRate * (1 - TIGHTENING)));
+    }
+
+    public void add(String id) {
+        long hash = hash(id);
+        if (contains(hash)) {
+            return;
+        }
+
+        Stage stage = stages.get(stages.size() - 1);
+        if (stage.isFull()) {
+            synchronized (this) {
+                stage = stages.get(stages.size() - 1);
+                if (stage.isFull()) {
+                    stage = new Stage(stage.capacity * GROWTH, stage.falsePositiveRate * TIGHTENING);
+                    stages.add(stage);
+                }
+            }
+        }
+        stage.add(hash);
+    }
+
+    public boolean mightContain(String id) {
+        return contains(hash(id));
+    }
+
+    public double getFalsePositiveRate() {
+        return falsePositiveRate;
+    }
+
+    // estimated from how many bits are set in each stage
+    public double expectedFalsePositiveRate() {
+        double negative = 1;
+        for (Stage stage : stages) {
+            negative *= 1 - stage.expectedFalsePositiveRate();
+        }
+        return 1 - negative;
+    }
+
+    public int stageCount() {
+        return stages.size();
+    }
+
+    private boolean contains(long hash) {
+        for (Stage stage : stages) {
+            if (stage.mightContain(hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 64-bit FNV-1a followed by a murmur finalizer
+    private static long hash(String id) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : id.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static class Stage {
+        private final int capacity;
+        private final double falsePositiveRate;
+        private final long bitCount;
+        private final int hashCount;
+        private final AtomicLongArray bits;
+        private final AtomicLongArray counters; // [0] = IDs added, [1] = bits set
+
+        Stage(int capacity, double falsePositiveRate) {
+            this.capacity = capacity;
+            this.falsePositiveRate = falsePositiveRate;
+            // optimal sizes: m = -n ln(p) / ln(2)^2, k = m / n ln(2)
+            long m = (long) Math.ceil(-capacity * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+            this.bitCount = Math.max(64, (m + 63) / 64 * 64);
+            this.hashCount = Math.max(1, (int) Math.round((double) bitCount / capacity * Math.log(2)));
+            this.bits = new AtomicLongArray((int) (bitCount / 64));
+            this.counters = new AtomicLongArray(2);
+        }
+
+        boolean isFull() {
+            return counters.get(0) >= capacity;
+        }
+
+        void add(long hash) {
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 0; i < hashCount; i++) {
+                long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % bitCount;
+                long mask = 1L << bit;
+                long previous = bits.getAndAccumulate((int) (bit >>> 6), mask, (value, m) -> value | m);
+                if ((previous & mask) == 0) {
+                    counters.incrementAndGet(1);
+                }
+            }
+            counters.incrementAndGet(0);
+        }
+
+        boolean mightContain(long hash) {
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 0; i < hashCount; i++) {
+                long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % bitCount;
+                if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        double expectedFalsePositiveRate() {
+            return Math.pow((double) counters.get(1) / bitCount, hashCount);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.gitlab.techschool.pcbook.service;
+
+import com.github.techschool.pcbook.pb.SearchLaptopRequest;
+import com.github.techschool.pcbook.pb.SearchLaptopResponse;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+
+import java.util.concurrent.TimeUnit;
+
+// Groups search results into responses of many laptops, bounded by count and by serialized size.
+// A partial batch is sent once its first laptop has waited for the linger time, even in the middle
+// of a scan that finds nothing more.
+public class SearchBatcher {
+    public static final int DEFAULT_BATCH_BYTES = 256 << 10;
+    public static final int MAX_BATCH_BYTES = 1 << 20; // well below the default 4 MB message limit
+    public static final int DEFAULT_LINGER_MS = 50;
+
+    private final int maxCount;
+    private final int maxBytes;
+    private final long lingerNanos;
+
+    private ByteString batch;
+    private int count;
+    private long startedAt;
+
+    public SearchBatcher(int maxCount, int maxBytes, long lingerNanos) {
+        this.maxCount = maxCount;
+        this.maxBytes = maxBytes;
+        this.lingerNanos = lingerNanos;
+        this.batch = ByteString.EMPTY;
+    }
+
+    // returns null if the request asks for one laptop per response
+    public static SearchBatcher forRequest(SearchLaptopRequest request) {
+        if (request.getBatchSize() == 0) {
+            return null;
+        }
+
+        int maxBytes = request.getBatchBytes() == 0 ? DEFAULT_BATCH_BYTES : request.getBatchBytes();
+        int lingerMs = request.getBatchLingerMs() == 0 ? DEFAULT_LINGER_MS : request.getBatchLingerMs();
+        return new SearchBatcher(
+                request.getBatchSize(),
+                Math.min(maxBytes, MAX_BATCH_BYTES),
+                TimeUnit.MILLISECONDS.toNanos(lingerMs)
+        );
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    // a laptop bigger than the byte limit still goes out, alone in its batch.
+    // The limit counts the tag and the length in front of every laptop.
+    public boolean fits(ByteString laptop) {
+        return isEmpty() || (count < maxCount && batch.size() + entrySize(laptop) <= maxBytes);
+    }
+
+    // when the batch must be sent, only meaningful if it isn't empty
+    public long deadline() {
+        return startedAt + lingerNanos;
+    }
+
+    // laptop is in wire format and is appended to the batch without being copied
+    public void add(ByteString laptop, long now) {
+        if (isEmpty()) {
+            startedAt = now;
+        }
+        batch = batch.concat(SerializedMessage.field(SearchLaptopResponse.LAPTOPS_FIELD_NUMBER, laptop));
+        count++;
+    }
+
+    public boolean isReady(long now) {
+        return count >= maxCount || batch.size() >= maxBytes || now - startedAt >= lingerNanos;
+    }
+
+    private static int entrySize(ByteString laptop) {
+        return CodedOutputStream.computeTagSize(SearchLaptopResponse.LAPTOPS_FIELD_NUMBER)
+                + CodedOutputStream.computeUInt32SizeNoTag(laptop.size())
+                + laptop.size();
+    }
+
+    // a SearchLaptopResponse with the laptops of the batch
+    public SerializedMessage flush() {
+        SerializedMessage response = new SerializedMessage(batch);
+        batch = ByteString.EMPTY;
+        count = 0;
+        return response;
+    }
+}
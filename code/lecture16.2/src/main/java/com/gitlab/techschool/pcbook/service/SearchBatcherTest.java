@@ -0,0 +1,81 @@
+package com.gitlab.techschool.pcbook.service;
+
+import com.github.techschool.pcbook.pb.Filter;
+import com.github.techschool.pcbook.pb.Laptop;
+import com.github.techschool.pcbook.pb.SearchLaptopResponse;
+import com.github.techschool.pcbook.pb.SearchPlan;
+import com.gitlab.techschool.pcbook.sample.Generator;
+import com.google.protobuf.ByteString;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SearchBatcherTest {
+
+    @Test
+    public void countFieldHeadersInTheByteLimit() throws Exception {
+        ByteString laptop = Laptop.newBuilder().setId(new String(new char[98]).replace('\0', 'x')).build().toByteString();
+        assertEquals(100, laptop.size());
+        // two laptops of 100 bytes take 204 bytes in the response
+        SearchBatcher batcher = new SearchBatcher(10, 203, TimeUnit.SECONDS.toNanos(1));
+        batcher.add(laptop, 0);
+        assertFalse(batcher.fits(laptop));
+
+        batcher = new SearchBatcher(10, 204, TimeUnit.SECONDS.toNanos(1));
+        batcher.add(laptop, 0);
+        assertTrue(batcher.fits(laptop));
+        batcher.add(laptop, 0);
+        assertTrue(batcher.isReady(0));
+        assertEquals(2, SearchLaptopResponse.parseFrom(batcher.flush().getBytes()).getLaptopsCount());
+    }
+
+    @Test
+    public void stopScanAtTheLinger() {
+        Generator generator = new Generator();
+        List<StoredLaptop> candidates = new ArrayList<>();
+        candidates.add(new LaptopVersion(generator.NewLaptop().toBuilder().setPriceUsd(100).build(), 1, null));
+        for (int i = 0; i < 1000; i++) {
+            candidates.add(new LaptopVersion(generator.NewLaptop().toBuilder().setPriceUsd(5000).build(), 1, null));
+        }
+        // a slow scan: every candidate takes a millisecond to look at
+        Iterator<StoredLaptop> it = candidates.iterator();
+        Iterator<StoredLaptop> slow = new Iterator<StoredLaptop>() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public StoredLaptop next() {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return it.next();
+            }
+        };
+        Filter cheap = Filter.newBuilder().setMaxPriceUsd(1000).build();
+        FilterCursor cursor = new FilterCursor(slow, cheap, SearchPlan.getDefaultInstance(), LaptopProjection.ALL, () -> {
+        });
+
+        SearchBatcher batcher = new SearchBatcher(10, SearchBatcher.DEFAULT_BATCH_BYTES, TimeUnit.MILLISECONDS.toNanos(20));
+        assertTrue(cursor.hasNext());
+        long start = System.nanoTime();
+        batcher.add(cursor.nextSerialized(), start);
+
+        // the rest of the scan matches nothing, the batch can't wait for its end
+        assertFalse(cursor.hasNext(batcher.deadline()));
+        assertFalse(cursor.isExhausted());
+        assertTrue(batcher.isReady(System.nanoTime()));
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+
+        assertFalse(cursor.hasNext());
+        assertTrue(cursor.isExhausted());
+    }
+}
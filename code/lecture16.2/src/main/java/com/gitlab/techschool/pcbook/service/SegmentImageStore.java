@@ -0,0 +1,711 @@
+package com.gitlab.techschool.pcbook.service;
+
+import com.github.techschool.pcbook.pb.ImageDetails;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.UnsafeByteOperations;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+
+// Packs the images into large append-only segment files, in the style of Haystack, so that millions
+// of small images don't cost a file and a folder entry each. An image is a needle in a segment and
+// the index maps its ID to the segment and offset of the needle: a read is a map lookup and a slice
+// of the memory-mapped segment, no file is opened.
+// The needle headers carry the metadata, so the index is rebuilt by scanning the segments at start.
+// Deleting an image only flags its needle, a background compactor copies the live needles out of
+// the segments that are mostly dead and deletes them.
+// An image is held in memory until it is committed, so the store is meant for small images:
+// resumable and multipart uploads are left to DiskImageStore.
+public class SegmentImageStore implements ImageStore, Closeable {
+    private static final Logger logger = Logger.getLogger(SegmentImageStore.class.getName());
+    public static final long DEFAULT_SEGMENT_SIZE = 1L << 30; // 1 gigabyte
+    public static final long DEFAULT_MAX_IMAGE_SIZE = 16 << 20; // 16 megabytes
+    public static final double DEFAULT_COMPACT_RATIO = 0.5; // dead share of a segment that gets it compacted
+    private static final long COMPACT_INTERVAL = TimeUnit.MINUTES.toNanos(1);
+    private static final long MAP_STEP = 64 << 20; // the active segment is mapped ahead 64 megabytes at a time
+    private static final int COMMIT_BATCH_SIZE = 128;
+
+    // needle layout: int magic | byte flags | int details length | int data length | int CRC32 | details | data
+    private static final int MAGIC = 0x4e444c45;
+    private static final int HEADER_SIZE = Integer.BYTES + 1 + Integer.BYTES * 3;
+    private static final int FLAGS_OFFSET = Integer.BYTES;
+    private static final byte LIVE = 0;
+    private static final byte DELETED = 1;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+    private static final String VARIANT_FOLDER = "variants";
+
+    private final Path folder;
+    private final long segmentSize;
+    private final long maxImageSize;
+    private final double compactRatio;
+    private final ConcurrentMap<String, Needle> needles; // image ID -> needle
+    private final ConcurrentMap<String, Set<String>> byLaptop; // laptop ID -> image IDs
+    private final ConcurrentMap<String, Integer> contents; // content hash -> images, the variants go with the last one
+    private final TreeMap<Integer, Segment> segments; // guarded by this
+    private Segment active; // the segment appended to, guarded by this
+    private final GroupCommitter<Needle, String> committer;
+    private final ThumbnailPipeline variants;
+    private final ScheduledExecutorService compactor;
+    private final Object compaction; // one compaction at a time
+
+    public SegmentImageStore(String folder) throws IOException {
+        this(folder, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_IMAGE_SIZE, DEFAULT_COMPACT_RATIO);
+    }
+
+    public SegmentImageStore(String folder, long segmentSize, long maxImageSize, double compactRatio)
+            throws IOException {
+        if (segmentSize > Integer.MAX_VALUE || maxImageSize + HEADER_SIZE >= segmentSize) {
+            throw new IllegalArgumentException("a segment of " + segmentSize + " bytes can't be mapped at once"
+                    + " or can't hold an image of " + maxImageSize + " bytes");
+        }
+        this.folder = Paths.get(folder);
+        this.segmentSize = segmentSize;
+        this.maxImageSize = maxImageSize;
+        this.compactRatio = compactRatio;
+        this.needles = new ConcurrentHashMap<>();
+        this.byLaptop = new ConcurrentHashMap<>();
+        this.contents = new ConcurrentHashMap<>();
+        this.segments = new TreeMap<>();
+        this.compaction = new Object();
+
+        this.committer = new GroupCommitter<>("segment-commit", COMMIT_BATCH_SIZE, 0, this::publish);
+        this.variants = new ThumbnailPipeline(this.folder.resolve(VARIANT_FOLDER), this::openContent);
+
+        Files.createDirectories(this.folder);
+        load();
+        this.compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "segment-compactor");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        this.compactor.scheduleWithFixedDelay(this::compactQuietly, COMPACT_INTERVAL, COMPACT_INTERVAL,
+                TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public ImageWriter Create(String laptopID, String imageType) {
+        return new SegmentImageWriter(UUID.randomUUID().toString(), laptopID, imageType);
+    }
+
+    @Override
+    public String Initiate(String laptopID, String imageType) {
+        throw new UnsupportedOperationException("segment store only takes images sent in a single stream");
+    }
+
+    @Override
+    public ImageWriter Resume(String uploadID, long offset) {
+        throw new NotFoundException("upload ID doesn't exist");
+    }
+
+    @Override
+    public long Query(String uploadID) {
+        throw new NotFoundException("upload ID doesn't exist");
+    }
+
+    @Override
+    public String InitiateMultipart(String laptopID, String imageType, long size, long partSize) {
+        throw new UnsupportedOperationException("segment store only takes images sent in a single stream");
+    }
+
+    @Override
+    public ImageWriter WritePart(String uploadID, int partNumber) {
+        throw new NotFoundException("upload ID doesn't exist");
+    }
+
+    @Override
+    public CompletableFuture<String> Complete(String uploadID) {
+        throw new NotFoundException("upload ID doesn't exist");
+    }
+
+    @Override
+    public ImageMetadata Find(String imageID) {
+        Needle needle = needles.get(imageID);
+        return needle == null ? null : needle.metadata;
+    }
+
+    @Override
+    public List<ImageMetadata> FindByLaptop(String laptopID) {
+        Set<String> imageIDs = byLaptop.get(laptopID);
+        if (imageIDs == null) {
+            return Collections.emptyList();
+        }
+        List<ImageMetadata> images = new ArrayList<>(imageIDs.size());
+        for (String imageID : imageIDs) {
+            Needle needle = needles.get(imageID);
+            if (needle != null) {
+                images.add(needle.metadata);
+            }
+        }
+        return images;
+    }
+
+    @Override
+    public ImageReader Open(String imageID) {
+        Needle needle = needles.get(imageID);
+        if (needle == null) {
+            throw new NotFoundException("image ID doesn't exist");
+        }
+        ByteString data = needle.data();
+        return new ImageReader() {
+            @Override
+            public long size() {
+                return data.size();
+            }
+
+            @Override
+            public ByteString read(long offset, int length) {
+                if (offset < 0 || offset > data.size()) {
+                    throw new IllegalArgumentException("offset " + offset + " is outside the " + data.size()
+                            + " bytes image");
+                }
+                return data.substring((int) offset, (int) Math.min(data.size(), offset + length));
+            }
+
+            @Override
+            public void close() {
+                // the slice belongs to the mapping of the segment, which outlives the reader
+            }
+        };
+    }
+
+    @Override
+    public CompletableFuture<ImageVariant> GetVariant(String imageID, String variant) {
+        ImageMetadata metadata = Find(imageID);
+        if (metadata == null) {
+            throw new NotFoundException("image ID doesn't exist");
+        }
+        return variants.get(metadata, variant);
+    }
+
+    @Override
+    public void Delete(String imageID) throws IOException {
+        Needle needle = needles.remove(imageID);
+        if (needle == null) {
+            throw new NotFoundException("image ID doesn't exist");
+        }
+        forget(needle.metadata);
+        markDeleted(needle);
+    }
+
+    // copies the live needles of the sealed segments that are mostly dead to the active segment
+    // and deletes those segments, returns the number of segments reclaimed
+    public int compact() throws IOException {
+        synchronized (compaction) {
+            List<Segment> candidates = new ArrayList<>();
+            synchronized (this) {
+                for (Segment segment : segments.values()) {
+                    // a segment with needles waiting for their commit isn't in the index yet
+                    if (segment != active && segment.pending == 0
+                            && segment.deadBytes >= segment.end * compactRatio) {
+                        candidates.add(segment);
+                    }
+                }
+            }
+            for (Segment segment : candidates) {
+                compact(segment);
+            }
+            return candidates.size();
+        }
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    // bytes of deleted or replaced needles not reclaimed yet
+    public synchronized long getDeadBytes() {
+        long total = 0;
+        for (Segment segment : segments.values()) {
+            total += segment.deadBytes;
+        }
+        return total;
+    }
+
+    public int getImageCount() {
+        return needles.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        compactor.shutdownNow();
+        try {
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        committer.close();
+        variants.close();
+        synchronized (this) {
+            // the active segment is mapped ahead, the zeros after its last needle aren't kept
+            active.channel.truncate(active.end);
+            for (Segment segment : segments.values()) {
+                segment.channel.close();
+            }
+        }
+    }
+
+    private void compactQuietly() {
+        try {
+            int compacted = compact();
+            if (compacted > 0) {
+                logger.info("compacted " + compacted + " segments");
+            }
+        } catch (IOException e) {
+            logger.warning("cannot compact segments: " + e.getMessage());
+        }
+    }
+
+    private void compact(Segment segment) throws IOException {
+        List<Needle> moved = new ArrayList<>();
+        List<Needle> copies = new ArrayList<>();
+        long position = 0;
+        while (position < segment.end) {
+            Needle needle = parse(segment, position, false);
+            if (needle == null) {
+                throw new IOException("segment " + segment.path + " is corrupted at " + position);
+            }
+            position += needle.length;
+
+            Needle current = needles.get(needle.metadata.getID());
+            if (current == null || current.segment != segment || current.offset != needle.offset) {
+                continue;
+            }
+            moved.add(current);
+            List<ByteBuffer> data = Collections.singletonList(current.data().asReadOnlyByteBuffer());
+            copies.add(append(current.metadata.toDetails(), data));
+        }
+
+        Set<Segment> touched = new HashSet<>();
+        for (Needle copy : copies) {
+            touched.add(copy.segment);
+        }
+        for (Segment target : touched) {
+            target.channel.force(false);
+        }
+
+        for (int i = 0; i < moved.size(); i++) {
+            Needle copy = copies.get(i);
+            // an image deleted while it was copied stays deleted
+            if (!needles.replace(moved.get(i).metadata.getID(), moved.get(i), copy)) {
+                markDeleted(copy);
+            }
+            committed(copy);
+        }
+
+        synchronized (this) {
+            segments.remove(segment.number);
+        }
+        // the readers of the moved images keep the mapping, which outlives the file
+        segment.channel.close();
+        Files.delete(segment.path);
+    }
+
+    // appends a needle to the active segment, it only becomes visible once it is published
+    private synchronized Needle append(ImageDetails details, List<ByteBuffer> data) throws IOException {
+        byte[] detailsBytes = details.toByteArray();
+        long length = HEADER_SIZE + detailsBytes.length + details.getSize();
+        if (length > segmentSize) {
+            throw new ImageTooLargeException("image is too large for a segment: " + details.getSize());
+        }
+        if (active.end + length > segmentSize) {
+            roll();
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(detailsBytes);
+        for (ByteBuffer buffer : data) {
+            crc.update(buffer.duplicate());
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + detailsBytes.length);
+        header.putInt(MAGIC)
+                .put(LIVE)
+                .putInt(detailsBytes.length)
+                .putInt((int) details.getSize())
+                .putInt((int) crc.getValue())
+                .put(detailsBytes)
+                .flip();
+
+        ByteBuffer[] buffers = new ByteBuffer[data.size() + 1];
+        buffers[0] = header;
+        for (int i = 0; i < data.size(); i++) {
+            buffers[i + 1] = data.get(i).duplicate();
+        }
+
+        Segment segment = active;
+        long offset = segment.end;
+        segment.map(offset + length);
+        segment.channel.position(offset);
+        long written = 0;
+        while (written < length) {
+            written += segment.channel.write(buffers);
+        }
+        // a needle torn by a failed write is overwritten by the next one, as end only moves here
+        segment.end = offset + length;
+        segment.pending++;
+        return new Needle(metadata(details, segment), segment, offset, (int) length,
+                HEADER_SIZE + detailsBytes.length);
+    }
+
+    // seals the active segment and starts the next one, must hold the lock
+    private void roll() throws IOException {
+        active.channel.truncate(active.end);
+        active.channel.force(false);
+        active = openSegment(active.number + 1);
+        segments.put(active.number, active);
+    }
+
+    // the batch writer of the committer: one fsync per segment makes the whole batch durable
+    private void publish(List<Needle> batch, List<CompletableFuture<String>> futures) throws IOException {
+        Set<Segment> touched = new HashSet<>();
+        for (Needle needle : batch) {
+            touched.add(needle.segment);
+        }
+        try {
+            for (Segment segment : touched) {
+                segment.channel.force(false);
+            }
+        } catch (IOException | RuntimeException e) {
+            for (Needle needle : batch) {
+                discard(needle);
+            }
+            throw e;
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            Needle needle = batch.get(i);
+            index(needle);
+            committed(needle);
+            futures.get(i).complete(needle.metadata.getID());
+            variants.submit(needle.metadata);
+        }
+    }
+
+    private synchronized void committed(Needle needle) {
+        needle.segment.pending--;
+    }
+
+    // a needle that never became visible: flagged like a deleted one, so a restart doesn't bring it back
+    // and compaction reclaims its space
+    private void discard(Needle needle) {
+        try {
+            markDeleted(needle);
+        } catch (IOException e) {
+            logger.warning("cannot flag the failed image " + needle.metadata.getID() + ": " + e.getMessage());
+        } finally {
+            committed(needle);
+        }
+    }
+
+    private void index(Needle needle) {
+        ImageMetadata metadata = needle.metadata;
+        needles.put(metadata.getID(), needle);
+        byLaptop.computeIfAbsent(metadata.getLaptopID(), k -> ConcurrentHashMap.newKeySet()).add(metadata.getID());
+        contents.merge(metadata.getHash(), 1, Integer::sum);
+    }
+
+    private void forget(ImageMetadata metadata) {
+        Set<String> imageIDs = byLaptop.get(metadata.getLaptopID());
+        if (imageIDs != null) {
+            imageIDs.remove(metadata.getID());
+            if (imageIDs.isEmpty()) {
+                byLaptop.remove(metadata.getLaptopID(), imageIDs);
+            }
+        }
+        if (contents.computeIfPresent(metadata.getHash(), (k, count) -> count == 1 ? null : count - 1) == null) {
+            variants.remove(metadata.getHash());
+        }
+    }
+
+    // flags the needle in place, its space is reclaimed when its segment is compacted
+    private void markDeleted(Needle needle) throws IOException {
+        synchronized (this) {
+            needle.segment.deadBytes += needle.length;
+        }
+        try {
+            needle.segment.channel.write(ByteBuffer.wrap(new byte[]{DELETED}), needle.offset + FLAGS_OFFSET);
+            needle.segment.channel.force(false);
+        } catch (ClosedChannelException e) {
+            // the segment was compacted meanwhile and the compactor flagged the copy
+        }
+    }
+
+    private InputStream openContent(ImageMetadata image) throws IOException {
+        Needle needle = needles.get(image.getID());
+        if (needle == null) {
+            throw new IOException("image " + image.getID() + " was deleted");
+        }
+        return needle.data().newInput();
+    }
+
+    private void load() throws IOException {
+        List<Integer> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : files) {
+                String name = path.getFileName().toString();
+                numbers.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                        name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        Collections.sort(numbers);
+
+        for (int i = 0; i < numbers.size(); i++) {
+            Segment segment = openSegment(numbers.get(i));
+            segments.put(segment.number, segment);
+            long size = segment.channel.size();
+            segment.map = segment.channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            // the segments before the last one were made durable when they were sealed,
+            // only the needles of the last one can be torn by a crash
+            boolean last = i == numbers.size() - 1;
+            long position = 0;
+            Needle needle;
+            while ((needle = parse(segment, position, last)) != null) {
+                Needle previous = needles.get(needle.metadata.getID());
+                if (previous != null) {
+                    // a copy left by a compaction that didn't finish, the later needle wins
+                    needles.remove(previous.metadata.getID());
+                    forget(previous.metadata);
+                    previous.segment.deadBytes += previous.length;
+                }
+                if (segment.map.get((int) position + FLAGS_OFFSET) == LIVE) {
+                    index(needle);
+                } else {
+                    segment.deadBytes += needle.length;
+                }
+                position += needle.length;
+            }
+            segment.end = position;
+            if (position < size) {
+                segment.channel.truncate(position);
+            }
+        }
+
+        if (segments.isEmpty()) {
+            segments.put(1, openSegment(1));
+        }
+        active = segments.lastEntry().getValue();
+        logger.info("loaded " + needles.size() + " images from " + segments.size() + " segments");
+    }
+
+    // returns the needle at position, or null if there is none or it is torn
+    private Needle parse(Segment segment, long position, boolean verify) {
+        ByteBuffer map = segment.map;
+        if (position + HEADER_SIZE > map.capacity()) {
+            return null;
+        }
+        int start = (int) position;
+        if (map.getInt(start) != MAGIC) {
+            return null;
+        }
+        int detailsLength = map.getInt(start + FLAGS_OFFSET + 1);
+        int dataLength = map.getInt(start + FLAGS_OFFSET + 1 + Integer.BYTES);
+        int crc = map.getInt(start + FLAGS_OFFSET + 1 + Integer.BYTES * 2);
+        long length = (long) HEADER_SIZE + detailsLength + dataLength;
+        if (detailsLength < 0 || dataLength < 0 || position + length > map.capacity()) {
+            return null;
+        }
+
+        ByteBuffer body = map.duplicate();
+        body.position(start + HEADER_SIZE);
+        body.limit((int) (start + length));
+        body = body.slice();
+        if (verify) {
+            CRC32 actual = new CRC32();
+            actual.update(body.duplicate());
+            if ((int) actual.getValue() != crc) {
+                return null;
+            }
+        }
+
+        ImageDetails details;
+        try {
+            body.limit(detailsLength);
+            details = ImageDetails.parseFrom(body);
+        } catch (InvalidProtocolBufferException e) {
+            return null;
+        }
+        if (details.getSize() != dataLength) {
+            return null;
+        }
+        return new Needle(metadata(details, segment), segment, position, (int) length, HEADER_SIZE + detailsLength);
+    }
+
+    private ImageMetadata metadata(ImageDetails details, Segment segment) {
+        return new ImageMetadata(details.getId(), details.getLaptopId(), details.getImageType(),
+                segment.path.toString(), details.getSha256(), details.getSize());
+    }
+
+    private Segment openSegment(int number) throws IOException {
+        Path path = folder.resolve(String.format("%s%06d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        return new Segment(number, path, channel);
+    }
+
+    // an append-only file of needles and its read-only mapping
+    private class Segment {
+        private final int number;
+        private final Path path;
+        private final FileChannel channel;
+        private volatile MappedByteBuffer map; // covers at least the needles up to end
+        private long end; // guarded by the store
+        private long deadBytes; // guarded by the store
+        private int pending; // needles appended and not committed yet, guarded by the store
+
+        Segment(int number, Path path, FileChannel channel) {
+            this.number = number;
+            this.path = path;
+            this.channel = channel;
+        }
+
+        // maps the segment up to at least length bytes. Mapping past the end of the file grows it,
+        // the zeros after the last needle end the scan at the next start.
+        void map(long length) throws IOException {
+            if (map != null && map.capacity() >= length) {
+                return;
+            }
+            long mapped = Math.min(segmentSize, (length + MAP_STEP - 1) / MAP_STEP * MAP_STEP);
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.max(mapped, length));
+        }
+    }
+
+    // an image in a segment, visible once its commit is durable
+    private static class Needle {
+        private final ImageMetadata metadata;
+        private final Segment segment;
+        private final long offset; // of the header in the segment
+        private final int length; // header, details and data
+        private final int dataOffset; // from the start of the needle
+
+        Needle(ImageMetadata metadata, Segment segment, long offset, int length, int dataOffset) {
+            this.metadata = metadata;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.dataOffset = dataOffset;
+        }
+
+        // a view of the mapping, not a copy on the heap
+        ByteString data() {
+            ByteBuffer data = segment.map.duplicate();
+            data.position((int) offset + dataOffset);
+            data.limit((int) offset + length);
+            return UnsafeByteOperations.unsafeWrap(data.slice());
+        }
+    }
+
+    // holds the chunks until the commit, which appends them to a segment in one write
+    private class SegmentImageWriter implements ImageWriter {
+        private final String imageID;
+        private final String laptopID;
+        private final String imageType;
+        private final List<ByteString> chunks;
+        private final MessageDigest digest;
+        private final CRC32C crc;
+        private long size;
+        private boolean done;
+
+        SegmentImageWriter(String imageID, String laptopID, String imageType) {
+            this.imageID = imageID;
+            this.laptopID = laptopID;
+            this.imageType = imageType;
+            this.chunks = new ArrayList<>();
+            this.digest = DiskImageStore.newDigest();
+            this.crc = new CRC32C();
+        }
+
+        @Override
+        public void write(ByteString chunk) throws IOException {
+            if (done) {
+                throw new IOException("image is already committed or aborted");
+            }
+            if (size + chunk.size() > maxImageSize) {
+                throw new ImageTooLargeException("image is too large: " + (size + chunk.size()));
+            }
+            for (ByteBuffer buffer : chunk.asReadOnlyByteBufferList()) {
+                crc.update(buffer.duplicate());
+                digest.update(buffer);
+            }
+            chunks.add(chunk);
+            size += chunk.size();
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public int crc32c() {
+            return (int) crc.getValue();
+        }
+
+        @Override
+        public CompletableFuture<String> commitAsync() throws IOException {
+            if (done) {
+                throw new IOException("image is already committed or aborted");
+            }
+            done = true;
+
+            ImageDetails details = ImageDetails.newBuilder()
+                    .setId(imageID)
+                    .setLaptopId(laptopID)
+                    .setImageType(imageType)
+                    .setSize(size)
+                    .setSha256(DiskImageStore.toHex(digest.digest()))
+                    .build();
+            List<ByteBuffer> data = new ArrayList<>();
+            for (ByteString chunk : chunks) {
+                data.addAll(chunk.asReadOnlyByteBufferList());
+            }
+            chunks.clear();
+            Needle needle = append(details, data);
+            CompletableFuture<String> future = committer.submit(needle);
+            if (future.isCompletedExceptionally()) {
+                discard(needle); // the committer is closed
+            }
+            return future;
+        }
+
+        @Override
+        public void abort() {
+            done = true;
+            chunks.clear();
+        }
+
+        @Override
+        public void suspend() {
+            abort();
+        }
+    }
+}
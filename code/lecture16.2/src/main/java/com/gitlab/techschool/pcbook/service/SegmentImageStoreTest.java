@@ -0,0 +1,181 @@
+package com.gitlab.techschool.pcbook.service;
+
+import com.google.protobuf.ByteString;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class SegmentImageStoreTest {
+    private static final long SEGMENT_SIZE = 64 << 10;
+    private static final long MAX_IMAGE_SIZE = 16 << 10;
+
+    private Path folder;
+    private Random random;
+
+    @Before
+    public void setUp() throws Exception {
+        folder = Files.createTempDirectory("segments");
+        random = new Random(21);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try (Stream<Path> paths = Files.walk(folder)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void packImagesIntoSegments() throws Exception {
+        try (SegmentImageStore store = open()) {
+            byte[][] images = new byte[10][];
+            String[] imageIDs = new String[images.length];
+            for (int i = 0; i < images.length; i++) {
+                images[i] = randomBytes(10_000);
+                imageIDs[i] = upload(store, "laptop-" + (i % 2), images[i]);
+            }
+
+            // six images fit in a segment
+            assertEquals(2, store.getSegmentCount());
+            assertEquals(2, countSegmentFiles());
+            for (int i = 0; i < images.length; i++) {
+                ImageMetadata metadata = store.Find(imageIDs[i]);
+                assertEquals("laptop-" + (i % 2), metadata.getLaptopID());
+                assertEquals(images[i].length, metadata.getSize());
+                try (ImageReader reader = store.Open(imageIDs[i])) {
+                    assertEquals(ByteString.copyFrom(images[i]), reader.read(0, images[i].length));
+                    assertEquals(ByteString.copyFrom(images[i], 100, 50), reader.read(100, 50));
+                }
+            }
+            assertEquals(5, store.FindByLaptop("laptop-1").size());
+
+            ImageWriter writer = store.Create("laptop-0", ".jpg");
+            try {
+                writer.write(ByteString.copyFrom(new byte[(int) MAX_IMAGE_SIZE + 1]));
+                fail("image larger than the limit was accepted");
+            } catch (ImageTooLargeException e) {
+                writer.abort();
+            }
+            try {
+                store.Initiate("laptop-0", ".jpg");
+                fail("resumable upload was started");
+            } catch (UnsupportedOperationException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void reloadSegmentsAfterRestart() throws Exception {
+        byte[][] images = new byte[3][];
+        String[] imageIDs = new String[images.length];
+        try (SegmentImageStore store = open()) {
+            for (int i = 0; i < images.length; i++) {
+                images[i] = randomBytes(1000 * (i + 1));
+                imageIDs[i] = upload(store, "laptop", images[i]);
+            }
+            store.Delete(imageIDs[1]);
+        }
+        // a needle torn by a crash, its data never made it to the file
+        Files.write(folder.resolve("segment-000001.dat"), new byte[]{0x4e, 0x44, 0x4c, 0x45, 0, 0, 0, 0, 9, 0, 0, 0, 5},
+                StandardOpenOption.APPEND);
+
+        String imageID;
+        try (SegmentImageStore store = open()) {
+            assertNull(store.Find(imageIDs[1]));
+            assertEquals(2, store.getImageCount());
+            assertEquals(2, store.FindByLaptop("laptop").size());
+            assertTrue(store.getDeadBytes() > images[1].length);
+            for (int i : new int[]{0, 2}) {
+                try (ImageReader reader = store.Open(imageIDs[i])) {
+                    assertEquals(ByteString.copyFrom(images[i]), reader.read(0, images[i].length));
+                }
+            }
+            imageID = upload(store, "laptop", images[1]);
+        }
+
+        try (SegmentImageStore store = open()) {
+            assertEquals(3, store.getImageCount());
+            try (ImageReader reader = store.Open(imageID)) {
+                assertEquals(ByteString.copyFrom(images[1]), reader.read(0, images[1].length));
+            }
+        }
+    }
+
+    @Test
+    public void compactDeletedSpace() throws Exception {
+        byte[][] images = new byte[18][];
+        String[] imageIDs = new String[images.length];
+        try (SegmentImageStore store = open()) {
+            for (int i = 0; i < images.length; i++) {
+                images[i] = randomBytes(10_000);
+                imageIDs[i] = upload(store, "laptop", images[i]);
+            }
+            assertEquals(3, store.getSegmentCount());
+
+            // only the last image of the first segment is kept
+            for (int i = 0; i < 5; i++) {
+                store.Delete(imageIDs[i]);
+            }
+            ImageReader before = store.Open(imageIDs[5]);
+            long deadBytes = store.getDeadBytes();
+
+            assertEquals(1, store.compact());
+            assertFalse(Files.exists(folder.resolve("segment-000001.dat")));
+            assertTrue(store.getDeadBytes() < deadBytes);
+            assertEquals(0, store.compact());
+
+            // the reader opened before keeps the old mapping
+            assertEquals(ByteString.copyFrom(images[5]), before.read(0, images[5].length));
+            before.close();
+            for (int i = 5; i < images.length; i++) {
+                try (ImageReader reader = store.Open(imageIDs[i])) {
+                    assertEquals(ByteString.copyFrom(images[i]), reader.read(0, images[i].length));
+                }
+            }
+        }
+
+        try (SegmentImageStore store = open()) {
+            assertEquals(images.length - 5, store.getImageCount());
+            assertNull(store.Find(imageIDs[0]));
+            try (ImageReader reader = store.Open(imageIDs[5])) {
+                assertEquals(ByteString.copyFrom(images[5]), reader.read(0, images[5].length));
+            }
+        }
+    }
+
+    private SegmentImageStore open() throws IOException {
+        return new SegmentImageStore(folder.toString(), SEGMENT_SIZE, MAX_IMAGE_SIZE,
+                SegmentImageStore.DEFAULT_COMPACT_RATIO);
+    }
+
+    private static String upload(ImageStore store, String laptopID, byte[] image) throws IOException {
+        ImageWriter writer = store.Create(laptopID, ".jpg");
+        // sent in two chunks, like a stream would
+        writer.write(ByteString.copyFrom(image, 0, image.length / 2));
+        writer.write(ByteString.copyFrom(image, image.length / 2, image.length - image.length / 2));
+        return writer.commit();
+    }
+
+    private byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private long countSegmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(folder)) {
+            return files.filter(path -> path.getFileName().toString().endsWith(".dat")).count();
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.gitlab.techschool.pcbook.service;
+
+import com.google.common.io.ByteStreams;
+import com.google.protobuf.ByteOutput;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.UnsafeByteOperations;
+import com.google.protobuf.WireFormat;
+import io.grpc.Drainable;
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+// A message already in wire format, put together from cached fields.
+// Concatenated byte strings share their parts, so building a message copies nothing.
+public final class SerializedMessage {
+    private static final MethodDescriptor.Marshaller<SerializedMessage> MARSHALLER = new Marshaller();
+
+    private final ByteString bytes;
+
+    public SerializedMessage(ByteString bytes) {
+        this.bytes = bytes;
+    }
+
+    public static SerializedMessage of(MessageLite message) {
+        return new SerializedMessage(message.toByteString());
+    }
+
+    public static MethodDescriptor.Marshaller<SerializedMessage> marshaller() {
+        return MARSHALLER;
+    }
+
+    // a length-delimited field: precomputed tag and length followed by the value as it is
+    public static ByteString field(int fieldNumber, ByteString value) {
+        byte[] header = new byte[CodedOutputStream.computeTagSize(fieldNumber)
+                + CodedOutputStream.computeUInt32SizeNoTag(value.size())];
+        CodedOutputStream output = CodedOutputStream.newInstance(header);
+        try {
+            output.writeTag(fieldNumber, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+            output.writeUInt32NoTag(value.size());
+        } catch (IOException e) {
+            throw new AssertionError(e); // the array is sized for the header
+        }
+        return ByteString.copyFrom(header).concat(value);
+    }
+
+    public ByteString getBytes() {
+        return bytes;
+    }
+
+    public int size() {
+        return bytes.size();
+    }
+
+    // The framer asks for the length up front and then drains the stream into its pooled transport buffers,
+    // instead of copying an unknown length stream through a fresh array and a buffer chain first
+    private static class DrainableStream extends InputStream implements Drainable, KnownLength {
+        private ByteString remaining;
+        private InputStream partial; // only used if the stream is read rather than drained
+
+        DrainableStream(ByteString bytes) {
+            this.remaining = bytes;
+        }
+
+        @Override
+        public int drainTo(OutputStream target) throws IOException {
+            if (partial != null) {
+                return (int) ByteStreams.copy(partial, target);
+            }
+
+            int size = remaining.size();
+            CoalescingOutput output = new CoalescingOutput(target);
+            UnsafeByteOperations.unsafeWriteTo(remaining, output);
+            output.flush();
+            remaining = ByteString.EMPTY;
+            return size;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return partial != null ? partial.available() : remaining.size();
+        }
+
+        @Override
+        public int read() throws IOException {
+            return stream().read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return stream().read(b, off, len);
+        }
+
+        private InputStream stream() {
+            if (partial == null) {
+                partial = remaining.newInput();
+                remaining = ByteString.EMPTY;
+            }
+            return partial;
+        }
+    }
+
+    // Gathers the small parts of a message, such as field headers and short laptops, into a reused array,
+    // so that the transport sees a few large writes rather than one per part
+    private static class CoalescingOutput extends ByteOutput {
+        private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[8192]);
+
+        private final OutputStream target;
+        private final byte[] scratch;
+        private int position;
+
+        CoalescingOutput(OutputStream target) {
+            this.target = target;
+            this.scratch = SCRATCH.get();
+        }
+
+        @Override
+        public void write(byte value) throws IOException {
+            if (position == scratch.length) {
+                flush();
+            }
+            scratch[position++] = value;
+        }
+
+        @Override
+        public void write(byte[] value, int offset, int length) throws IOException {
+            if (length >= scratch.length) {
+                flush();
+                target.write(value, offset, length);
+                return;
+            }
+            if (position + length > scratch.length) {
+                flush();
+            }
+            System.arraycopy(value, offset, scratch, position, length);
+            position += length;
+        }
+
+        @Override
+        public void writeLazy(byte[] value, int offset, int length) throws IOException {
+            write(value, offset, length);
+        }
+
+        @Override
+        public void write(ByteBuffer value) throws IOException {
+            if (value.hasArray()) {
+                write(value.array(), value.arrayOffset() + value.position(), value.remaining());
+                return;
+            }
+            // direct buffers, such as mapped cold records
+            ByteBuffer source = value.duplicate();
+            while (source.hasRemaining()) {
+                if (position == scratch.length) {
+                    flush();
+                }
+                int length = Math.min(scratch.length - position, source.remaining());
+                source.get(scratch, position, length);
+                position += length;
+            }
+        }
+
+        @Override
+        public void writeLazy(ByteBuffer value) throws IOException {
+            write(value);
+        }
+
+        void flush() throws IOException {
+            if (position > 0) {
+                target.write(scratch, 0, position);
+                position = 0;
+            }
+        }
+    }
+
+    private static class Marshaller implements MethodDescriptor.Marshaller<SerializedMessage> {
+        @Override
+        public InputStream stream(SerializedMessage value) {
+            return new DrainableStream(value.bytes);
+        }
+
+        @Override
+        public SerializedMessage parse(InputStream stream) {
+            try {
+                return new SerializedMessage(ByteString.readFrom(stream));
+            } catch (IOException e) {
+                throw new IllegalArgumentException("cannot read message: " + e.getMessage(), e);
+            }
+        }
+    }
+}
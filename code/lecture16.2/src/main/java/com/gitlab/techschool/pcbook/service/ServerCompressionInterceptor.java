@@ -0,0 +1,34 @@
+package com.gitlab.techschool.pcbook.service;
+
+import io.grpc.ForwardingServerCall;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+
+// Compresses the responses of each method with its configured encoding, above the size threshold
+public class ServerCompressionInterceptor implements ServerInterceptor {
+    private final MessageCompression compression;
+
+    public ServerCompressionInterceptor(MessageCompression compression) {
+        this.compression = compression;
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+        String encoding = compression.encodingOf(call.getMethodDescriptor());
+        if (encoding == null) {
+            return next.startCall(call, headers);
+        }
+
+        call.setCompression(encoding);
+        return next.startCall(new ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(call) {
+            @Override
+            public void sendMessage(RespT message) {
+                setMessageCompression(compression.shouldCompress(message));
+                super.sendMessage(message);
+            }
+        }, headers);
+    }
+}
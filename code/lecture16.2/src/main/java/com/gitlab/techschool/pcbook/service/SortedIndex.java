@@ -0,0 +1,61 @@
+package com.gitlab.techschool.pcbook.service;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+// Secondary index that keeps laptop IDs ordered by a numeric key, for range predicates.
+public class SortedIndex {
+    private final ConcurrentSkipListSet<Entry> entries;
+
+    public SortedIndex() {
+        entries = new ConcurrentSkipListSet<>();
+    }
+
+    public void add(double key, String id) {
+        entries.add(new Entry(key, id));
+    }
+
+    public void remove(double key, String id) {
+        entries.remove(new Entry(key, id));
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public Iterator<Entry> atMost(double key) {
+        // laptop IDs are never empty, so this entry sorts after every entry with the given key
+        return entries.headSet(new Entry(Math.nextUp(key), ""), false).iterator();
+    }
+
+    public Iterator<Entry> atLeast(double key) {
+        return entries.tailSet(new Entry(key, ""), true).iterator();
+    }
+
+    public static class Entry implements Comparable<Entry> {
+        private final double key;
+        private final String id;
+
+        public Entry(double key, String id) {
+            this.key = key;
+            this.id = id;
+        }
+
+        public double getKey() {
+            return key;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            int cmp = Double.compare(key, other.key);
+            if (cmp != 0) {
+                return cmp;
+            }
+            return id.compareTo(other.id);
+        }
+    }
+}
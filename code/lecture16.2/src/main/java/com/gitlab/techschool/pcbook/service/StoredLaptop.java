@@ -0,0 +1,17 @@
+package com.gitlab.techschool.pcbook.service;
+
+import com.github.techschool.pcbook.pb.Filter;
+import com.github.techschool.pcbook.pb.Laptop;
+import com.google.protobuf.ByteString;
+
+// A laptop as kept by a store, with its serialized form computed at most once and shared by all readers
+public interface StoredLaptop {
+    Laptop getLaptop();
+
+    ByteString getBytes();
+
+    default boolean matches(Filter filter) {
+        Laptop laptop = getLaptop();
+        return laptop != null && FilterMatcher.isQualified(filter, laptop);
+    }
+}
@@ -0,0 +1,274 @@
+package com.gitlab.techschool.pcbook.service;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+// Generates the resized variants of the uploaded images on a pool of low priority threads.
+// The work queue is bounded and a full queue drops the job instead of blocking the upload,
+// the variants of a dropped job are generated when they are first asked for.
+// Variants belong to the content, so duplicate images share them.
+public class ThumbnailPipeline implements Closeable {
+    private static final Logger logger = Logger.getLogger(ThumbnailPipeline.class.getName());
+    public static final Map<String, Integer> VARIANTS; // name -> longest side in pixels
+    private static final long MAX_SOURCE_SIZE = 64 << 20; // 64 megabytes
+    // a small file can declare a huge image, 128 megabytes once decoded at 4 bytes a pixel
+    private static final long MAX_SOURCE_PIXELS = 32_000_000;
+    private static final String[] FORMATS = {"jpg", "png"};
+    private static final int QUEUE_CAPACITY = 256;
+
+    static {
+        Map<String, Integer> variants = new LinkedHashMap<>();
+        variants.put("thumbnail", 160);
+        variants.put("small", 480);
+        variants.put("medium", 1024);
+        VARIANTS = Collections.unmodifiableMap(variants);
+    }
+
+    private final Path variantFolder;
+    private final Source source;
+    private final ThreadPoolExecutor executor;
+    private final ConcurrentMap<String, CompletableFuture<Map<String, ImageVariant>>> jobs; // content hash -> variants
+    private final AtomicLong dropped;
+
+    // reads the images from the files of their metadata
+    public ThumbnailPipeline(Path variantFolder) {
+        this(variantFolder, image -> Files.newInputStream(Paths.get(image.getPath())));
+    }
+
+    public ThumbnailPipeline(Path variantFolder, Source source) {
+        this(variantFolder, source, Runtime.getRuntime().availableProcessors(), QUEUE_CAPACITY);
+    }
+
+    public ThumbnailPipeline(Path variantFolder, int workers, int queueCapacity) {
+        this(variantFolder, image -> Files.newInputStream(Paths.get(image.getPath())), workers, queueCapacity);
+    }
+
+    public ThumbnailPipeline(Path variantFolder, Source source, int workers, int queueCapacity) {
+        this.variantFolder = variantFolder;
+        this.source = source;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(workers, workers, 1, TimeUnit.MINUTES,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+            Thread thread = new Thread(runnable, "thumbnail-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            // resizing is never more urgent than answering a call
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+        this.jobs = new ConcurrentHashMap<>();
+        this.dropped = new AtomicLong();
+    }
+
+    // queues the variants of a new image, never blocks
+    public void submit(ImageMetadata image) {
+        schedule(image);
+    }
+
+    // completes once the variant is generated, or exceptionally if the image can't be resized.
+    // Throws IllegalArgumentException for an unknown variant.
+    public CompletableFuture<ImageVariant> get(ImageMetadata image, String name) {
+        if (!VARIANTS.containsKey(name)) {
+            throw new IllegalArgumentException("unknown variant " + name + ", expected one of " + VARIANTS.keySet());
+        }
+        return schedule(image).thenApply(variants -> variants.get(name));
+    }
+
+    // deletes the variants of a content that no image uses anymore, a running job deletes them once it is done
+    public void remove(String hash) {
+        CompletableFuture<Map<String, ImageVariant>> job = jobs.remove(hash);
+        if (job == null) {
+            delete(hash);
+            return;
+        }
+        job.whenComplete((variants, e) -> {
+            // the same content uploaded again in the meantime has its own job writing the same files
+            if (!jobs.containsKey(hash)) {
+                delete(hash);
+            }
+        });
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    // the jobs still queued fail, so nobody waits for their variants
+    @Override
+    public void close() {
+        for (Runnable queued : executor.shutdownNow()) {
+            Job job = (Job) queued;
+            jobs.remove(job.image.getHash(), job.variants);
+            job.variants.completeExceptionally(new IOException("thumbnail pipeline is closed"));
+        }
+    }
+
+    private CompletableFuture<Map<String, ImageVariant>> schedule(ImageMetadata image) {
+        CompletableFuture<Map<String, ImageVariant>> job = jobs.get(image.getHash());
+        if (job != null) {
+            return job;
+        }
+
+        CompletableFuture<Map<String, ImageVariant>> created = new CompletableFuture<>();
+        job = jobs.putIfAbsent(image.getHash(), created);
+        if (job != null) {
+            return job;
+        }
+
+        try {
+            executor.execute(new Job(image, created));
+        } catch (RejectedExecutionException e) {
+            // the next request for a variant schedules the job again
+            dropped.incrementAndGet();
+            jobs.remove(image.getHash(), created);
+            created.completeExceptionally(new IOException("thumbnail queue is full"));
+        }
+        return created;
+    }
+
+    // a failed job leaves nothing behind, the next request for a variant tries again
+    private void generate(ImageMetadata image, CompletableFuture<Map<String, ImageVariant>> job) {
+        try {
+            job.complete(resize(image));
+        } catch (Exception e) {
+            logger.warning("cannot generate variants of image " + image.getID() + ": " + e.getMessage());
+            delete(image.getHash());
+            jobs.remove(image.getHash(), job);
+            job.completeExceptionally(e);
+        }
+    }
+
+    // deletes whatever files the jobs of a content wrote, finished or not
+    private void delete(String hash) {
+        for (String name : VARIANTS.keySet()) {
+            for (String format : FORMATS) {
+                Path path = variantFolder.resolve(fileName(hash, name, format));
+                try {
+                    Files.deleteIfExists(path);
+                    Files.deleteIfExists(path.resolveSibling(path.getFileName() + ".tmp"));
+                } catch (IOException e) {
+                    logger.warning("cannot delete variant " + path + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private static String fileName(String hash, String variant, String format) {
+        return hash + "-" + variant + "." + format;
+    }
+
+    private Map<String, ImageVariant> resize(ImageMetadata image) throws IOException {
+        if (image.getSize() > MAX_SOURCE_SIZE) {
+            throw new IOException("image is too large to resize: " + image.getSize());
+        }
+        BufferedImage source;
+        try (InputStream input = this.source.open(image)) {
+            source = decode(input);
+        }
+
+        // photos compress better as JPEG, only the images with transparency need PNG
+        boolean alpha = source.getColorModel().hasAlpha();
+        String format = alpha ? "png" : "jpg";
+        Files.createDirectories(variantFolder);
+
+        Map<String, ImageVariant> variants = new HashMap<>();
+        for (Map.Entry<String, Integer> entry : VARIANTS.entrySet()) {
+            double scale = Math.min(1.0, (double) entry.getValue() / Math.max(source.getWidth(), source.getHeight()));
+            int width = Math.max(1, (int) Math.round(source.getWidth() * scale));
+            int height = Math.max(1, (int) Math.round(source.getHeight() * scale));
+
+            BufferedImage resized = new BufferedImage(width, height,
+                    alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+            Graphics2D graphics = resized.createGraphics();
+            try {
+                graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                graphics.drawImage(source, 0, 0, width, height, null);
+            } finally {
+                graphics.dispose();
+            }
+
+            String fileName = fileName(image.getHash(), entry.getKey(), format);
+            Path temp = variantFolder.resolve(fileName + ".tmp");
+            if (!ImageIO.write(resized, format, temp.toFile())) {
+                throw new IOException("no writer for " + format);
+            }
+            Path path = variantFolder.resolve(fileName);
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            variants.put(entry.getKey(), new ImageVariant(entry.getKey(), "." + format, path.toString(), width, height));
+        }
+        return variants;
+    }
+
+    // like ImageIO.read, but the size the image declares is checked before its pixels are allocated
+    private static BufferedImage decode(InputStream input) throws IOException {
+        try (ImageInputStream stream = ImageIO.createImageInputStream(input)) {
+            Iterator<ImageReader> readers = stream == null ? null : ImageIO.getImageReaders(stream);
+            if (readers == null || !readers.hasNext()) {
+                throw new IOException("not an image in a supported format");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(stream, true, true);
+                long pixels = (long) reader.getWidth(0) * reader.getHeight(0);
+                if (pixels > MAX_SOURCE_PIXELS) {
+                    throw new IOException("image is too large to resize: " + reader.getWidth(0) + "x"
+                            + reader.getHeight(0) + " pixels");
+                }
+                return reader.read(0);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    // a queued job, kept whole so that closing the pipeline can fail its future
+    private class Job implements Runnable {
+        private final ImageMetadata image;
+        private final CompletableFuture<Map<String, ImageVariant>> variants;
+
+        Job(ImageMetadata image, CompletableFuture<Map<String, ImageVariant>> variants) {
+            this.image = image;
+            this.variants = variants;
+        }
+
+        @Override
+        public void run() {
+            generate(image, variants);
+        }
+    }
+
+    // where the content of an image is read from
+    public interface Source {
+        InputStream open(ImageMetadata image) throws IOException;
+    }
+}
@@ -0,0 +1,238 @@
+package com.gitlab.techschool.pcbook.service;
+
+import com.google.protobuf.ByteString;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+public class ThumbnailPipelineTest {
+    private Path folder;
+    private DiskImageStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        folder = Files.createTempDirectory("images");
+        store = new DiskImageStore(folder.toString());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+        try (Stream<Path> paths = Files.walk(folder)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void resizeUploadedImage() throws Exception {
+        String imageID = upload(image(1200, 800), ".png");
+
+        ImageVariant thumbnail = store.GetVariant(imageID, "thumbnail").get(10, TimeUnit.SECONDS);
+        assertEquals(160, thumbnail.getWidth());
+        assertEquals(107, thumbnail.getHeight());
+        assertEquals(".jpg", thumbnail.getType());
+        BufferedImage saved = ImageIO.read(Paths.get(thumbnail.getPath()).toFile());
+        assertEquals(160, saved.getWidth());
+
+        // never enlarged
+        ImageVariant medium = store.GetVariant(imageID, "medium").get(10, TimeUnit.SECONDS);
+        assertEquals(1024, medium.getWidth());
+        ImageVariant small = store.GetVariant(upload(image(300, 200), ".png"), "small").get(10, TimeUnit.SECONDS);
+        assertEquals(300, small.getWidth());
+
+        store.Delete(imageID);
+        assertFalse(Files.exists(Paths.get(thumbnail.getPath())));
+    }
+
+    @Test
+    public void failOnUnsupportedContent() throws Exception {
+        ImageWriter writer = store.Create("laptop", ".jpg");
+        writer.write(ByteString.copyFromUtf8("not an image"));
+        String imageID = writer.commit();
+
+        try {
+            store.GetVariant(imageID, "thumbnail").get(10, TimeUnit.SECONDS);
+            fail("variant of a text file was generated");
+        } catch (ExecutionException e) {
+            // expected
+        }
+        try {
+            store.GetVariant(imageID, "huge");
+            fail("unknown variant was accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void dropJobsWhenTheQueueIsFull() throws Exception {
+        try (ThumbnailPipeline pipeline = new ThumbnailPipeline(folder.resolve("variants"), 1, 1)) {
+            ImageMetadata[] images = new ImageMetadata[5];
+            for (int i = 0; i < images.length; i++) {
+                images[i] = store.Find(upload(image(2000 + i, 1500), ".png"));
+            }
+            // one job runs, one waits and the others don't fit
+            for (ImageMetadata image : images) {
+                pipeline.submit(image);
+            }
+            assertTrue(pipeline.getDroppedCount() > 0);
+
+            // a dropped job runs again when its variant is asked for
+            for (ImageMetadata image : images) {
+                while (true) {
+                    try {
+                        assertNotNull(pipeline.get(image, "small").get(10, TimeUnit.SECONDS));
+                        break;
+                    } catch (ExecutionException e) {
+                        Thread.sleep(10); // still full
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void removeVariantsOfARunningJob() throws Exception {
+        ImageMetadata image = store.Find(upload(image(1200, 800), ".png"));
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch resume = new CountDownLatch(1);
+        ThumbnailPipeline.Source source = metadata -> {
+            started.countDown();
+            try {
+                resume.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return Files.newInputStream(Paths.get(metadata.getPath()));
+        };
+
+        // not the folder of the store, whose own pipeline resizes the same image
+        Path variantFolder = folder.resolve("removed");
+        try (ThumbnailPipeline pipeline = new ThumbnailPipeline(variantFolder, source, 1, 1)) {
+            CompletableFuture<ImageVariant> variant = pipeline.get(image, "thumbnail");
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            // the last image with this content is deleted while its variants are generated
+            pipeline.remove(image.getHash());
+            resume.countDown();
+
+            Path path = Paths.get(variant.get(10, TimeUnit.SECONDS).getPath());
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (Files.exists(path) && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            try (Stream<Path> variants = Files.list(variantFolder)) {
+                assertEquals(0, variants.count());
+            }
+        }
+    }
+
+    @Test
+    public void retryAJobThatFailed() throws Exception {
+        ImageMetadata image = store.Find(upload(image(400, 300), ".png"));
+        AtomicInteger opened = new AtomicInteger();
+        ThumbnailPipeline.Source source = metadata -> {
+            if (opened.incrementAndGet() == 1) {
+                throw new IOException("disk is busy");
+            }
+            return Files.newInputStream(Paths.get(metadata.getPath()));
+        };
+
+        try (ThumbnailPipeline pipeline = new ThumbnailPipeline(folder.resolve("retried"), source, 1, 1)) {
+            try {
+                pipeline.get(image, "small").get(10, TimeUnit.SECONDS);
+                fail("variant of an unreadable image was generated");
+            } catch (ExecutionException e) {
+                // expected
+            }
+            assertEquals(400, pipeline.get(image, "small").get(10, TimeUnit.SECONDS).getWidth());
+            assertEquals(2, opened.get());
+        }
+    }
+
+    @Test
+    public void failQueuedJobsOnClose() throws Exception {
+        ImageMetadata first = store.Find(upload(image(400, 300), ".png"));
+        ImageMetadata second = store.Find(upload(image(500, 300), ".png"));
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch resume = new CountDownLatch(1);
+        ThumbnailPipeline.Source source = metadata -> {
+            started.countDown();
+            try {
+                resume.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return Files.newInputStream(Paths.get(metadata.getPath()));
+        };
+
+        ThumbnailPipeline pipeline = new ThumbnailPipeline(folder.resolve("closed"), source, 1, 1);
+        pipeline.get(first, "small");
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        CompletableFuture<ImageVariant> queued = pipeline.get(second, "small");
+        pipeline.close();
+        try {
+            queued.get(10, TimeUnit.SECONDS);
+            fail("variant of a job dropped by close was generated");
+        } catch (ExecutionException e) {
+            // expected
+        } finally {
+            resume.countDown();
+        }
+    }
+
+    @Test
+    public void rejectImagesDeclaringTooManyPixels() throws Exception {
+        // a few hundred bytes of PNG whose header claims 100000 x 100000 pixels
+        byte[] png = image(100, 100);
+        ByteBuffer header = ByteBuffer.wrap(png);
+        header.putInt(16, 100_000).putInt(20, 100_000);
+        CRC32 crc = new CRC32();
+        crc.update(png, 12, 17);
+        header.putInt(29, (int) crc.getValue());
+        String imageID = upload(png, ".png");
+
+        try {
+            store.GetVariant(imageID, "thumbnail").get(10, TimeUnit.SECONDS);
+            fail("variant of a huge image was generated");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("too large"));
+        }
+    }
+
+    private String upload(byte[] image, String imageType) throws Exception {
+        ImageWriter writer = store.Create("laptop", imageType);
+        writer.write(ByteString.copyFrom(image));
+        return writer.commit();
+    }
+
+    private static byte[] image(int width, int height) throws Exception {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y += 10) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, x * y);
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+}
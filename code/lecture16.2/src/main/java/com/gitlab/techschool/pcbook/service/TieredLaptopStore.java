@@ -0,0 +1,296 @@
+package com.gitlab.techschool.pcbook.service;
+
+import com.github.techschool.pcbook.pb.Filter;
+import com.github.techschool.pcbook.pb.Laptop;
+import com.github.techschool.pcbook.pb.SearchPlan;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.FieldMask;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.UnsafeByteOperations;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.logging.Logger;
+
+// Keeps the recently used laptops as objects on the heap, within a byte budget,
+// and the rest serialized in a memory-mapped file. A cold laptop is promoted back on access.
+// Searches are weakly consistent: they see the hot tier as of their start and then scan the cold file.
+public class TieredLaptopStore implements LaptopStore, Closeable {
+    private static final Logger logger = Logger.getLogger(TieredLaptopStore.class.getName());
+    private static final int REGION_SIZE = 64 << 20; // 64 megabytes
+
+    private final long hotBytesBudget;
+    private final LinkedHashMap<String, HotLaptop> hot; // least recently used first, guarded by this
+    private long hotBytes;
+    private final ColdLaptopFile cold;
+
+    // hotBytesBudget is measured in serialized bytes
+    public TieredLaptopStore(Path coldFile, long hotBytesBudget) throws IOException {
+        this.hotBytesBudget = hotBytesBudget;
+        this.hot = new LinkedHashMap<>(16, 0.75f, true);
+        this.cold = new ColdLaptopFile(coldFile, REGION_SIZE);
+    }
+
+    @Override
+    public synchronized void Save(Laptop laptop) throws Exception {
+        if (hot.containsKey(laptop.getId()) || cold.contains(laptop.getId())) {
+            throw new AlreadyExistsException("laptop ID already exists");
+        }
+
+        // deep copy
+        putHot(laptop.toBuilder().build(), true);
+    }
+
+    @Override
+    public synchronized Laptop Update(Laptop laptop, FieldMask mask) throws Exception {
+        HotLaptop current = get(laptop.getId());
+        if (current == null) {
+            throw new NotFoundException("laptop ID doesn't exist");
+        }
+
+        Laptop updated = LaptopPatch.apply(current.laptop, laptop, mask);
+        cold.remove(updated.getId());
+        putHot(updated, true);
+
+        // deep copy
+        return updated.toBuilder().build();
+    }
+
+    @Override
+    public synchronized void Delete(String id) throws Exception {
+        HotLaptop removed = hot.remove(id);
+        if (removed != null) {
+            hotBytes -= removed.size;
+        }
+        if (!cold.remove(id) && removed == null) {
+            throw new NotFoundException("laptop ID doesn't exist");
+        }
+    }
+
+    @Override
+    public Laptop Find(String id) {
+        HotLaptop entry = find(id);
+        if (entry == null) {
+            return null;
+        }
+
+        // deep copy
+        return entry.laptop.toBuilder().build();
+    }
+
+    @Override
+    public ByteString FindSerialized(String id) {
+        HotLaptop entry = find(id);
+        return entry == null ? null : entry.getBytes();
+    }
+
+    @Override
+    public synchronized boolean Exists(String id) {
+        return hot.containsKey(id) || cold.contains(id);
+    }
+
+    @Override
+    public LaptopCursor Cursor(Filter filter, LaptopProjection projection) {
+        List<HotLaptop> hotLaptops;
+        Set<String> hotIds;
+        ColdLaptopFile.Records records;
+        synchronized (this) {
+            hotLaptops = new ArrayList<>(hot.size());
+            hotIds = new HashSet<>(hot.size() * 2);
+            for (HotLaptop entry : hot.values()) {
+                hotLaptops.add(entry);
+                hotIds.add(entry.laptop.getId());
+            }
+            records = cold.records();
+        }
+
+        // laptops evicted or promoted after the copy above are either in hotIds or still in the file
+        Iterator<HotLaptop> hotCandidates = hotLaptops.iterator();
+        Iterator<StoredLaptop> candidates = new Iterator<StoredLaptop>() {
+            private boolean coldPending;
+
+            @Override
+            public boolean hasNext() {
+                if (hotCandidates.hasNext() || coldPending) {
+                    return true;
+                }
+                while (records.next()) {
+                    if (!hotIds.contains(records.id())) {
+                        coldPending = true;
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            @Override
+            public StoredLaptop next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                if (hotCandidates.hasNext()) {
+                    return hotCandidates.next();
+                }
+                coldPending = false;
+                return new ColdLaptop(records.id(), records.laptop());
+            }
+        };
+
+        SearchPlan plan = SearchPlan.newBuilder().setAccessPath(SearchPlan.AccessPath.FULL_SCAN).build();
+        // nothing to release, the scan doesn't hold anything the writers wait for
+        return new FilterCursor(candidates, filter, plan, projection, () -> {
+        });
+    }
+
+    public synchronized long getHotBytes() {
+        return hotBytes;
+    }
+
+    public synchronized int getHotCount() {
+        return hot.size();
+    }
+
+    public int getColdCount() {
+        return cold.count();
+    }
+
+    @Override
+    public void close() throws IOException {
+        cold.close();
+    }
+
+    private HotLaptop find(String id) {
+        try {
+            synchronized (this) {
+                return get(id);
+            }
+        } catch (IOException e) {
+            logger.warning("cannot read laptop " + id + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    // returns the laptop from either tier and promotes it if it was cold, must hold the lock
+    private HotLaptop get(String id) throws IOException {
+        HotLaptop entry = hot.get(id);
+        if (entry != null) {
+            return entry;
+        }
+
+        ByteBuffer bytes = cold.read(id);
+        if (bytes == null) {
+            return null;
+        }
+
+        // the cold record stays valid, so evicting the laptop again costs nothing
+        ByteString serialized = UnsafeByteOperations.unsafeWrap(bytes);
+        return putHot(new HotLaptop(Laptop.parseFrom(serialized), serialized, false));
+    }
+
+    private HotLaptop putHot(Laptop laptop, boolean dirty) throws IOException {
+        return putHot(new HotLaptop(laptop, null, dirty));
+    }
+
+    private HotLaptop putHot(HotLaptop entry) throws IOException {
+        Laptop laptop = entry.laptop;
+        HotLaptop previous = hot.put(laptop.getId(), entry);
+        if (previous != null) {
+            hotBytes -= previous.size;
+        }
+        hotBytes += entry.size;
+        evict();
+        return entry;
+    }
+
+    private void evict() throws IOException {
+        Iterator<Map.Entry<String, HotLaptop>> it = hot.entrySet().iterator();
+        // always keep the most recently used laptop on the heap
+        while (hotBytes > hotBytesBudget && hot.size() > 1) {
+            HotLaptop entry = it.next().getValue();
+            if (entry.dirty) {
+                cold.append(entry.laptop.getId(), entry.getBytes().toByteArray());
+            }
+            it.remove();
+            hotBytes -= entry.size;
+        }
+    }
+
+    private static class HotLaptop implements StoredLaptop {
+        private final Laptop laptop;
+        private final int size;
+        private final boolean dirty; // not in the cold file yet
+        private volatile ByteString bytes;
+
+        HotLaptop(Laptop laptop, ByteString bytes, boolean dirty) {
+            this.laptop = laptop;
+            this.size = laptop.getSerializedSize();
+            this.dirty = dirty;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public Laptop getLaptop() {
+            return laptop;
+        }
+
+        @Override
+        public ByteString getBytes() {
+            ByteString serialized = bytes;
+            if (serialized == null) {
+                serialized = laptop.toByteString();
+                bytes = serialized;
+            }
+            return serialized;
+        }
+    }
+
+    // a record of the cold file, filtered on its bytes and only parsed if the caller asks for the object
+    private static class ColdLaptop implements StoredLaptop {
+        private final String id;
+        private final ByteString bytes;
+        private Laptop laptop;
+
+        ColdLaptop(String id, ByteBuffer bytes) {
+            this.id = id;
+            this.bytes = UnsafeByteOperations.unsafeWrap(bytes);
+        }
+
+        // a record that doesn't parse fails the search rather than being skipped silently
+        @Override
+        public Laptop getLaptop() {
+            if (laptop == null) {
+                try {
+                    laptop = Laptop.parseFrom(bytes);
+                } catch (InvalidProtocolBufferException e) {
+                    throw new UncheckedIOException("cannot parse cold laptop " + id, e);
+                }
+            }
+            return laptop;
+        }
+
+        @Override
+        public ByteString getBytes() {
+            return bytes;
+        }
+
+        @Override
+        public boolean matches(Filter filter) {
+            try {
+                return FilterMatcher.isQualified(filter, bytes);
+            } catch (UncheckedIOException e) {
+                throw new UncheckedIOException("cannot parse cold laptop " + id, e.getCause());
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.gitlab.techschool.pcbook.service;
+
+import com.github.techschool.pcbook.pb.Filter;
+import com.github.techschool.pcbook.pb.Laptop;
+import com.github.techschool.pcbook.pb.SearchPlan;
+import com.gitlab.techschool.pcbook.sample.Generator;
+import com.google.protobuf.FieldMask;
+import io.grpc.Context;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class TieredLaptopStoreTest {
+    private Path coldFile;
+    private TieredLaptopStore laptopStore;
+
+    @Before
+    public void setUp() throws Exception {
+        coldFile = Files.createTempFile("laptops", ".cold");
+        laptopStore = new TieredLaptopStore(coldFile, 4096);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        laptopStore.close();
+        Files.deleteIfExists(coldFile);
+    }
+
+    @Test
+    public void evictAndPromote() throws Exception {
+        Generator generator = new Generator();
+        List<Laptop> laptops = new LinkedList<>();
+        for (int i = 0; i < 100; i++) {
+            Laptop laptop = generator.NewLaptop();
+            laptopStore.Save(laptop);
+            laptops.add(laptop);
+        }
+
+        assertTrue(laptopStore.getHotBytes() <= 4096);
+        assertTrue(laptopStore.getColdCount() > 0);
+
+        for (Laptop laptop : laptops) {
+            assertEquals(laptop, laptopStore.Find(laptop.getId()));
+            assertTrue(laptopStore.getHotBytes() <= 4096);
+        }
+
+        Filter everything = Filter.newBuilder().setMaxPriceUsd(10000).build();
+        Map<String, Laptop> found = new HashMap<>();
+        SearchPlan plan = laptopStore.Search(Context.ROOT, everything, laptop -> {
+            assertNull(found.put(laptop.getId(), laptop));
+        });
+        assertEquals(laptops.size(), found.size());
+        assertEquals(laptops.size(), plan.getRowsReturned());
+        for (Laptop laptop : laptops) {
+            assertEquals(laptop, found.get(laptop.getId()));
+        }
+    }
+
+    @Test
+    public void updateAndDeleteColdLaptop() throws Exception {
+        Generator generator = new Generator();
+        Laptop first = generator.NewLaptop();
+        laptopStore.Save(first);
+        for (int i = 0; i < 50; i++) {
+            laptopStore.Save(generator.NewLaptop());
+        }
+
+        Laptop patch = Laptop.newBuilder().setId(first.getId()).setPriceUsd(999).build();
+        Laptop updated = laptopStore.Update(patch, FieldMask.newBuilder().addPaths("price_usd").build());
+        assertEquals(999, updated.getPriceUsd(), 1e-9);
+        assertEquals(first.getName(), updated.getName());
+
+        for (int i = 0; i < 50; i++) {
+            laptopStore.Save(generator.NewLaptop());
+        }
+        assertEquals(updated, laptopStore.Find(first.getId()));
+
+        laptopStore.Delete(first.getId());
+        assertNull(laptopStore.Find(first.getId()));
+
+        Filter everything = Filter.newBuilder().setMaxPriceUsd(10000).build();
+        SearchPlan plan = laptopStore.Search(Context.ROOT, everything, laptop -> {
+            assertNotEquals(first.getId(), laptop.getId());
+        });
+        assertEquals(100, plan.getRowsReturned());
+    }
+}
@@ -0,0 +1,233 @@
+package com.gitlab.techschool.pcbook.service;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Size-bounded cache with the W-TinyLFU policy: new entries land in a small LRU window,
+// and an entry leaving the window only enters the main SLRU area if the frequency sketch says
+// it is accessed more often than the entry it would evict.
+// Reads never block: if the policy lock is busy, the reordering for that hit is simply skipped.
+public class TinyLfuCache<K, V> {
+    private static final double WINDOW_RATIO = 0.01;
+    private static final double PROTECTED_RATIO = 0.8;
+
+    private final ConcurrentMap<K, Node<K, V>> data;
+    private final ReentrantLock policyLock;
+    private final FrequencySketch sketch;
+
+    private final int maximumSize;
+    private final int windowMax;
+    private final int protectedMax;
+    private final AccessQueue<K, V> window;
+    private final AccessQueue<K, V> probation;
+    private final AccessQueue<K, V> protectedQueue;
+
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder evictions;
+
+    public TinyLfuCache(int maximumSize) {
+        this.maximumSize = maximumSize;
+        this.windowMax = Math.max(1, (int) (maximumSize * WINDOW_RATIO));
+        this.protectedMax = (int) ((maximumSize - windowMax) * PROTECTED_RATIO);
+        this.data = new ConcurrentHashMap<>();
+        this.policyLock = new ReentrantLock();
+        this.sketch = new FrequencySketch(maximumSize);
+        this.window = new AccessQueue<>();
+        this.probation = new AccessQueue<>();
+        this.protectedQueue = new AccessQueue<>();
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+        this.evictions = new LongAdder();
+    }
+
+    public V getIfPresent(K key) {
+        Node<K, V> node = data.get(key);
+        if (node == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+
+        if (policyLock.tryLock()) {
+            try {
+                sketch.increment(key);
+                if (node != null && node.queue != null) {
+                    onAccess(node);
+                }
+            } finally {
+                policyLock.unlock();
+            }
+        }
+        return node == null ? null : node.value;
+    }
+
+    public void put(K key, V value) {
+        policyLock.lock();
+        try {
+            Node<K, V> node = data.get(key);
+            if (node != null) {
+                node.value = value;
+                onAccess(node);
+                return;
+            }
+            add(key, value);
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    public void putIfAbsent(K key, V value) {
+        policyLock.lock();
+        try {
+            if (!data.containsKey(key)) {
+                add(key, value);
+            }
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    public void invalidate(K key) {
+        policyLock.lock();
+        try {
+            Node<K, V> node = data.remove(key);
+            if (node != null) {
+                node.queue.remove(node);
+                node.queue = null;
+            }
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    public int size() {
+        return data.size();
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+
+    public long evictionCount() {
+        return evictions.sum();
+    }
+
+    public double hitRate() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? 1.0 : (double) hitCount / total;
+    }
+
+    private void add(K key, V value) {
+        Node<K, V> node = new Node<>(key, value);
+        data.put(key, node);
+        sketch.increment(key);
+        window.addLast(node);
+        evict();
+    }
+
+    private void onAccess(Node<K, V> node) {
+        if (node.queue == probation) {
+            probation.remove(node);
+            protectedQueue.addLast(node);
+            while (protectedQueue.size > protectedMax) {
+                probation.addLast(protectedQueue.pollFirst());
+            }
+        } else {
+            node.queue.moveToBack(node);
+        }
+    }
+
+    private void evict() {
+        while (window.size > windowMax) {
+            Node<K, V> candidate = window.pollFirst();
+            if (probation.size + protectedQueue.size < maximumSize - windowMax) {
+                probation.addLast(candidate);
+                continue;
+            }
+            if (probation.size + protectedQueue.size == 0) {
+                remove(candidate);
+                continue;
+            }
+
+            Node<K, V> victim = probation.size > 0 ? probation.peekFirst() : protectedQueue.peekFirst();
+            if (sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+                victim.queue.remove(victim);
+                remove(victim);
+                probation.addLast(candidate);
+            } else {
+                remove(candidate);
+            }
+        }
+    }
+
+    private void remove(Node<K, V> node) {
+        node.queue = null;
+        data.remove(node.key, node);
+        evictions.increment();
+    }
+
+    private static class Node<K, V> {
+        private final K key;
+        private volatile V value;
+        private AccessQueue<K, V> queue;
+        private Node<K, V> prev;
+        private Node<K, V> next;
+
+        Node(K key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    // intrusive doubly linked list, least recently used first
+    private static class AccessQueue<K, V> {
+        private final Node<K, V> head;
+        private int size;
+
+        AccessQueue() {
+            head = new Node<>(null, null);
+            head.prev = head;
+            head.next = head;
+        }
+
+        void addLast(Node<K, V> node) {
+            node.queue = this;
+            node.prev = head.prev;
+            node.next = head;
+            head.prev.next = node;
+            head.prev = node;
+            size++;
+        }
+
+        void remove(Node<K, V> node) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.prev = null;
+            node.next = null;
+            size--;
+        }
+
+        Node<K, V> peekFirst() {
+            return head.next;
+        }
+
+        Node<K, V> pollFirst() {
+            Node<K, V> first = head.next;
+            remove(first);
+            return first;
+        }
+
+        void moveToBack(Node<K, V> node) {
+            remove(node);
+            addLast(node);
+        }
+    }
+}
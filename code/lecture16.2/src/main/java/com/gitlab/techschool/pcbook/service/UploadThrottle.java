@@ -0,0 +1,387 @@
+package com.gitlab.techschool.pcbook.service;
+
+import com.github.techschool.pcbook.pb.LaptopServiceGrpc;
+import com.google.protobuf.MessageLite;
+import io.grpc.ForwardingServerCall;
+import io.grpc.ForwardingServerCallListener;
+import io.grpc.Grpc;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+
+import java.io.Closeable;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Bounds the upload messages the server handles at once and the bandwidth of each client by holding back
+// the request(n) of the upload calls: a call only asks the transport for its next message once the
+// server-wide budget has room for it and its client's token bucket isn't in debt. A call held back
+// stops returning flow-control window to its client, whose stream stops being ready, so an overloaded
+// server slows the uploaders down instead of buffering their data or failing their calls.
+// The budget counts the messages asked for and not processed yet, a message being reserved at the size
+// of the previous one of its call. Each call held back also keeps at most a flow-control window of
+// bytes in the transport, which NettyServerBuilder.flowControlWindow sets.
+// A message is processed once the service returns from it. DiskImageStore has written the chunk to its
+// file by then, but SegmentImageStore keeps the chunks of an image until it is committed or aborted, so with
+// that store each upload also holds up to its max image size outside the budget. Counting those bytes until
+// the call ends would let uploads that hold part of the budget wait on each other forever.
+public class UploadThrottle implements ServerInterceptor, Closeable {
+    public static final long DEFAULT_BUDGET = 64L << 20; // 64 megabytes
+    private static final long MIN_RESERVATION = 64 << 10; // 64 kilobytes, the smallest chunk of LaptopClient
+
+    private final long budget;
+    private final long clientRate; // bytes per second, 0 for no limit
+    private final long clientBurst;
+    private final Set<String> methods;
+    private final Map<String, TokenBucket> buckets; // per client host, guarded by this
+    private final ArrayDeque<ThrottledCall> waiting; // calls waiting for the budget in arrival order, guarded by this
+    private final ScheduledExecutorService timer;
+    private long used; // bytes reserved or received and not processed yet, guarded by this
+    private long waitCount; // guarded by this
+
+    public UploadThrottle() {
+        this(DEFAULT_BUDGET, 0, 0);
+    }
+
+    // a client may send clientBurst bytes at once, then clientRate bytes per second
+    public UploadThrottle(long budget, long clientRate, long clientBurst) {
+        if (budget <= 0 || clientRate < 0 || clientBurst < 0) {
+            throw new IllegalArgumentException("bad upload throttle: budget " + budget
+                    + ", client rate " + clientRate + ", client burst " + clientBurst);
+        }
+        this.budget = budget;
+        this.clientRate = clientRate;
+        this.clientBurst = clientBurst;
+        this.methods = new HashSet<>(Arrays.asList(
+                LaptopServiceGrpc.getUploadImageMethod().getFullMethodName(),
+                LaptopServiceGrpc.getUploadPartMethod().getFullMethodName()));
+        this.buckets = new HashMap<>();
+        this.waiting = new ArrayDeque<>();
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "upload-throttle");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+        if (!methods.contains(call.getMethodDescriptor().getFullMethodName())) {
+            return next.startCall(call, headers);
+        }
+
+        ThrottledCall throttled = new ThrottledCall(call, clientOf(call));
+        // the stub asks for every message through request(1), the first one when the call starts
+        ServerCall.Listener<ReqT> listener = next.startCall(
+                new ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(call) {
+                    @Override
+                    public void request(int numMessages) {
+                        throttled.request(numMessages);
+                    }
+                }, headers);
+
+        return new ForwardingServerCallListener.SimpleForwardingServerCallListener<ReqT>(listener) {
+            // the message leaves the budget once the service returns, whatever the store still keeps of it
+            @Override
+            public void onMessage(ReqT message) {
+                int size = message instanceof MessageLite ? ((MessageLite) message).getSerializedSize() : 0;
+                throttled.received(size);
+                try {
+                    super.onMessage(message);
+                } finally {
+                    throttled.processed(size);
+                }
+            }
+
+            @Override
+            public void onHalfClose() {
+                throttled.close();
+                super.onHalfClose();
+            }
+
+            @Override
+            public void onCancel() {
+                throttled.close();
+                super.onCancel();
+            }
+
+            @Override
+            public void onComplete() {
+                throttled.close();
+                super.onComplete();
+            }
+        };
+    }
+
+    public synchronized long getUsed() {
+        return used;
+    }
+
+    // hosts with a bucket, the ones uploading and the ones still paying back their debt
+    public synchronized int getClientCount() {
+        return buckets.size();
+    }
+
+    // times a call was held back, by the budget or by its client's bucket
+    public synchronized long getWaitCount() {
+        return waitCount;
+    }
+
+    @Override
+    public void close() {
+        timer.shutdownNow();
+    }
+
+    // the connections of a host share its bandwidth
+    private static String clientOf(ServerCall<?, ?> call) {
+        SocketAddress address = call.getAttributes().get(Grpc.TRANSPORT_ATTR_REMOTE_ADDR);
+        if (address instanceof InetSocketAddress) {
+            return ((InetSocketAddress) address).getHostString();
+        }
+        return String.valueOf(address);
+    }
+
+    // asks the transport for the next message of each call, outside the lock since the message
+    // may be delivered on the calling thread
+    private static void ask(List<ThrottledCall> ready) {
+        for (ThrottledCall call : ready) {
+            call.call.request(1);
+        }
+    }
+
+    // lets in the calls at the head of the queue while the budget has room for them
+    private void drain(List<ThrottledCall> ready) {
+        while (!waiting.isEmpty()) {
+            ThrottledCall head = waiting.peek();
+            if (head.eligible() && !fits(head)) {
+                return;
+            }
+            waiting.poll();
+            head.queued = false;
+            if (head.eligible()) {
+                grant(head, ready);
+            }
+        }
+    }
+
+    // a call that wants a message gets it now, waits for its bucket or joins the queue
+    private void admit(ThrottledCall call, List<ThrottledCall> ready) {
+        if (!call.eligible() || call.queued) {
+            return;
+        }
+        long delay = call.bucket.delayNanos(System.nanoTime());
+        if (delay > 0) {
+            call.timed = true;
+            waitCount++;
+            try {
+                timer.schedule(call::retry, delay, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                // the server is shutting down, the call is cancelled with it
+            }
+            return;
+        }
+        if (!waiting.isEmpty() || !fits(call)) {
+            call.queued = true;
+            waitCount++;
+            waiting.add(call);
+            return;
+        }
+        grant(call, ready);
+    }
+
+    // a message larger than the whole budget still gets through once nothing else is in flight
+    private boolean fits(ThrottledCall call) {
+        return used == 0 || used + call.expected <= budget;
+    }
+
+    private void grant(ThrottledCall call, List<ThrottledCall> ready) {
+        used += call.expected;
+        call.reserved = call.expected;
+        call.wanted--;
+        call.asked = true;
+        ready.add(call);
+    }
+
+    private TokenBucket acquireBucket(String client) {
+        TokenBucket bucket = buckets.computeIfAbsent(client,
+                key -> new TokenBucket(clientRate, clientBurst, System.nanoTime()));
+        bucket.calls++;
+        return bucket;
+    }
+
+    // a client without calls left keeps its bucket, debt included, until it has refilled to the burst,
+    // or uploading one call after the other would start each of them from a full bucket
+    private void releaseBucket(String client, TokenBucket bucket) {
+        if (--bucket.calls > 0) {
+            return;
+        }
+        long delay = bucket.refillNanos(System.nanoTime());
+        if (delay == 0) {
+            buckets.remove(client, bucket);
+            return;
+        }
+        int releases = ++bucket.releases;
+        try {
+            timer.schedule(() -> evictBucket(client, bucket, releases), delay, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // the throttle is closed
+        }
+    }
+
+    // a bucket used and released again since has its own eviction scheduled
+    private synchronized void evictBucket(String client, TokenBucket bucket, int releases) {
+        if (bucket.calls == 0 && bucket.releases == releases) {
+            buckets.remove(client, bucket);
+        }
+    }
+
+    // the flow control of one upload call, guarded by the throttle
+    private class ThrottledCall {
+        private final ServerCall<?, ?> call;
+        private final String client;
+        private final TokenBucket bucket;
+        private int wanted; // messages the stub requested and the transport wasn't asked for yet
+        private boolean asked; // the transport was asked for a message that didn't arrive yet
+        private long reserved; // budget held for the message asked for
+        private long expected; // budget reserved for the next message
+        private boolean queued;
+        private boolean timed;
+        private boolean closed;
+
+        ThrottledCall(ServerCall<?, ?> call, String client) {
+            this.call = call;
+            this.client = client;
+            this.expected = MIN_RESERVATION;
+            synchronized (UploadThrottle.this) {
+                this.bucket = acquireBucket(client);
+            }
+        }
+
+        boolean eligible() {
+            return !closed && wanted > 0 && !asked && !timed;
+        }
+
+        void request(int numMessages) {
+            List<ThrottledCall> ready = new ArrayList<>();
+            synchronized (UploadThrottle.this) {
+                wanted += numMessages;
+                admit(this, ready);
+            }
+            ask(ready);
+        }
+
+        // the message replaces its reservation until it is processed
+        void received(int size) {
+            synchronized (UploadThrottle.this) {
+                used += size - reserved;
+                reserved = 0;
+                asked = false;
+                expected = Math.max(size, MIN_RESERVATION);
+                bucket.take(size, System.nanoTime());
+            }
+        }
+
+        void processed(int size) {
+            List<ThrottledCall> ready = new ArrayList<>();
+            synchronized (UploadThrottle.this) {
+                used -= size;
+                drain(ready);
+                admit(this, ready);
+            }
+            ask(ready);
+        }
+
+        // called by the timer once the bucket is out of debt
+        void retry() {
+            List<ThrottledCall> ready = new ArrayList<>();
+            synchronized (UploadThrottle.this) {
+                timed = false;
+                admit(this, ready);
+            }
+            ask(ready);
+        }
+
+        // no message comes after the half-close, the reservation of the one asked for is given back
+        void close() {
+            List<ThrottledCall> ready = new ArrayList<>();
+            synchronized (UploadThrottle.this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                used -= reserved;
+                reserved = 0;
+                if (queued) {
+                    waiting.remove(this);
+                    queued = false;
+                }
+                releaseBucket(client, bucket);
+                drain(ready);
+            }
+            ask(ready);
+        }
+    }
+
+    // bytes a client may send, refilled at the rate up to the burst. A message is taken whole when it
+    // arrives, which may put the bucket in debt, and the next one is only asked for once it is paid back.
+    private static class TokenBucket {
+        private final long rate;
+        private final long burst;
+        private double tokens;
+        private long updated;
+        private int calls;
+        private int releases; // times the last call of the client ended
+
+        TokenBucket(long rate, long burst, long now) {
+            this.rate = rate;
+            this.burst = burst;
+            this.tokens = burst;
+            this.updated = now;
+        }
+
+        // nanoseconds until the debt is paid back, 0 without a debt or a limit
+        long delayNanos(long now) {
+            if (rate == 0) {
+                return 0;
+            }
+            refill(now);
+            return tokens >= 0 ? 0 : (long) Math.ceil(-tokens * 1e9 / rate);
+        }
+
+        // nanoseconds until the bucket is full again, 0 without a limit
+        long refillNanos(long now) {
+            if (rate == 0) {
+                return 0;
+            }
+            refill(now);
+            return tokens >= burst ? 0 : (long) Math.ceil((burst - tokens) * 1e9 / rate);
+        }
+
+        void take(long bytes, long now) {
+            if (rate == 0) {
+                return;
+            }
+            refill(now);
+            tokens -= bytes;
+        }
+
+        private void refill(long now) {
+            tokens = Math.min(burst, tokens + (now - updated) * rate / 1e9);
+            updated = now;
+        }
+    }
+}
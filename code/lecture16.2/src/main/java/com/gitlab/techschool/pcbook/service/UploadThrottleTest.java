@@ -0,0 +1,183 @@
+package com.gitlab.techschool.pcbook.service;
+
+import com.github.techschool.pcbook.pb.LaptopServiceGrpc;
+import com.github.techschool.pcbook.pb.UploadImageRequest;
+import com.github.techschool.pcbook.pb.UploadImageResponse;
+import com.google.protobuf.ByteString;
+import io.grpc.Attributes;
+import io.grpc.Grpc;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCall;
+import io.grpc.Status;
+import org.junit.After;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class UploadThrottleTest {
+    private static final int CHUNK_SIZE = 64 << 10;
+
+    private UploadThrottle throttle;
+
+    @After
+    public void tearDown() {
+        throttle.close();
+    }
+
+    @Test
+    public void holdBackCallsOverTheBudget() {
+        // room for two chunks in flight
+        throttle = new UploadThrottle(2 * CHUNK_SIZE + 100, 0, 0);
+        FakeCall first = new FakeCall("10.0.0.1");
+        FakeCall second = new FakeCall("10.0.0.2");
+        FakeCall third = new FakeCall("10.0.0.3");
+        ServerCall.Listener<UploadImageRequest> firstListener = start(first);
+        start(second);
+        start(third);
+
+        assertEquals(1, first.requested.get());
+        assertEquals(1, second.requested.get());
+        assertEquals(0, third.requested.get());
+        assertEquals(1, throttle.getWaitCount());
+
+        // the first call processed its chunk, the waiting call goes before its next one and fills the budget
+        firstListener.onMessage(chunk(CHUNK_SIZE));
+        assertEquals(1, third.requested.get());
+        assertEquals(1, first.requested.get());
+        assertEquals(2 * CHUNK_SIZE, throttle.getUsed());
+    }
+
+    @Test
+    public void releaseTheBudgetOfEndedCalls() {
+        throttle = new UploadThrottle(CHUNK_SIZE, 0, 0);
+        FakeCall first = new FakeCall("10.0.0.1");
+        FakeCall second = new FakeCall("10.0.0.2");
+        ServerCall.Listener<UploadImageRequest> firstListener = start(first);
+        ServerCall.Listener<UploadImageRequest> secondListener = start(second);
+        assertEquals(1, first.requested.get());
+        assertEquals(0, second.requested.get());
+
+        firstListener.onCancel();
+        assertEquals(1, second.requested.get());
+        secondListener.onHalfClose();
+        secondListener.onComplete();
+        assertEquals(0, throttle.getUsed());
+    }
+
+    @Test
+    public void paceClientsByTheirBandwidth() throws Exception {
+        // 1 megabyte per second after a burst of 64 kilobytes
+        throttle = new UploadThrottle(UploadThrottle.DEFAULT_BUDGET, 1 << 20, CHUNK_SIZE);
+        FakeCall call = new FakeCall("10.0.0.1");
+        FakeCall other = new FakeCall("10.0.0.2");
+        ServerCall.Listener<UploadImageRequest> listener = start(call);
+        start(other);
+
+        // 128 kilobytes more than the burst take about 125 milliseconds to pay back
+        long start = System.nanoTime();
+        listener.onMessage(chunk(3 * CHUNK_SIZE));
+        assertEquals(1, call.requested.get());
+        assertEquals(1, other.requested.get());
+
+        while (call.requested.get() < 2 && System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5)) {
+            Thread.sleep(5);
+        }
+        assertEquals(2, call.requested.get());
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    @Test
+    public void keepTheDebtOfEndedCalls() throws Exception {
+        throttle = new UploadThrottle(UploadThrottle.DEFAULT_BUDGET, 1 << 20, CHUNK_SIZE);
+        FakeCall first = new FakeCall("10.0.0.1");
+        ServerCall.Listener<UploadImageRequest> listener = start(first);
+        long start = System.nanoTime();
+        listener.onMessage(chunk(3 * CHUNK_SIZE));
+        listener.onHalfClose();
+        listener.onComplete();
+        assertEquals(1, throttle.getClientCount());
+
+        // the next upload of the same host waits for the debt of the previous one
+        FakeCall second = new FakeCall("10.0.0.1");
+        ServerCall.Listener<UploadImageRequest> secondListener = start(second);
+        assertEquals(0, second.requested.get());
+        while (second.requested.get() < 1 && System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5)) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, second.requested.get());
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+
+        // the bucket of a host without calls goes away once it is full again
+        secondListener.onCancel();
+        while (throttle.getClientCount() > 0 && System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5)) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, throttle.getClientCount());
+    }
+
+    // the stub requests the first message when the call starts and the next one after each message
+    private ServerCall.Listener<UploadImageRequest> start(FakeCall call) {
+        return throttle.interceptCall(call, new Metadata(), (serverCall, headers) -> {
+            serverCall.request(1);
+            return new ServerCall.Listener<UploadImageRequest>() {
+                @Override
+                public void onMessage(UploadImageRequest message) {
+                    serverCall.request(1);
+                }
+            };
+        });
+    }
+
+    private static UploadImageRequest chunk(int size) {
+        // the tag and the length take the place of 4 bytes of data
+        return UploadImageRequest.newBuilder().setChunkData(ByteString.copyFrom(new byte[size - 4])).build();
+    }
+
+    private static class FakeCall extends ServerCall<UploadImageRequest, UploadImageResponse> {
+        private final AtomicInteger requested = new AtomicInteger();
+        private final Attributes attributes;
+
+        FakeCall(String host) {
+            this.attributes = Attributes.newBuilder()
+                    .set(Grpc.TRANSPORT_ATTR_REMOTE_ADDR, new InetSocketAddress(host, 5000))
+                    .build();
+        }
+
+        @Override
+        public void request(int numMessages) {
+            requested.addAndGet(numMessages);
+        }
+
+        @Override
+        public void sendHeaders(Metadata headers) {
+        }
+
+        @Override
+        public void sendMessage(UploadImageResponse message) {
+        }
+
+        @Override
+        public void close(Status status, Metadata trailers) {
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public Attributes getAttributes() {
+            return attributes;
+        }
+
+        @Override
+        public MethodDescriptor<UploadImageRequest, UploadImageResponse> getMethodDescriptor() {
+            return LaptopServiceGrpc.getUploadImageMethod();
+        }
+    }
+}
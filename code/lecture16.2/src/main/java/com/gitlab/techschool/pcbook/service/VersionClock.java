@@ -0,0 +1,78 @@
+package com.gitlab.techschool.pcbook.service;
+
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Hands out write versions and tracks the snapshots pinned by readers.
+// A version becomes visible to new snapshots only once it and every older version are committed,
+// so a snapshot never sees a half-finished write.
+public class VersionClock {
+    private final AtomicLong lastVersion;
+    private final AtomicLong committed;
+    private final ConcurrentSkipListSet<Long> finished;
+    private final TreeMap<Long, Integer> pinned;
+    private volatile long oldestPinned;
+
+    public VersionClock() {
+        lastVersion = new AtomicLong();
+        committed = new AtomicLong();
+        finished = new ConcurrentSkipListSet<>();
+        pinned = new TreeMap<>();
+        oldestPinned = Long.MAX_VALUE;
+    }
+
+    public long begin() {
+        return lastVersion.incrementAndGet();
+    }
+
+    public void commit(long version) {
+        finished.add(version);
+        while (true) {
+            long current = committed.get();
+            if (!finished.contains(current + 1)) {
+                return;
+            }
+            if (committed.compareAndSet(current, current + 1)) {
+                finished.remove(current + 1);
+            }
+        }
+    }
+
+    public long committed() {
+        return committed.get();
+    }
+
+    // the lock is only taken by readers starting or finishing a snapshot, writers never wait on it
+    public synchronized long pin() {
+        // publish a lower bound first, so a concurrent horizon() can never move past this snapshot
+        oldestPinned = Math.min(oldestPinned, committed.get());
+        long snapshot = committed.get();
+        pinned.merge(snapshot, 1, Integer::sum);
+        oldestPinned = pinned.firstKey();
+        return snapshot;
+    }
+
+    // returns true if this released the oldest pinned snapshot
+    public synchronized boolean unpin(long snapshot) {
+        long oldest = oldestPinned;
+        pinned.computeIfPresent(snapshot, (k, count) -> count <= 1 ? null : count - 1);
+        oldestPinned = pinned.isEmpty() ? Long.MAX_VALUE : pinned.firstKey();
+        return oldestPinned != oldest;
+    }
+
+    // versions older than the newest version visible at the horizon can be reclaimed
+    public long horizon() {
+        // read committed before the pins, see pin()
+        long current = committed.get();
+        return Math.min(current, oldestPinned);
+    }
+
+    public synchronized int pinnedCount() {
+        int total = 0;
+        for (int count : pinned.values()) {
+            total += count;
+        }
+        return total;
+    }
+}